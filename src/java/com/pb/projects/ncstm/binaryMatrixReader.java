@@ -0,0 +1,162 @@
+package com.pb.projects.ncstm;
+
+import com.pb.common.matrix.Matrix;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reader of trip tables in the binary matrix format of the North Carolina Statewide Model (NCSTM), see
+ * binaryMatrixWriter for the file layout. Rows are read sequentially. The main method exports a binary trip table
+ * to csv: java com.pb.projects.ncstm.binaryMatrixReader input.bin output.csv [writeZeros]
+ */
+public class binaryMatrixReader implements Closeable {
+
+    static Logger logger = Logger.getLogger(binaryMatrixReader.class);
+    private final File file;
+    private final DataInputStream in;
+    private final int[] zones;
+    private final String[] names;
+    private final Inflater inflater = new Inflater();
+    private byte[] payload;
+    private final ByteBuffer raw;
+    private int rowsRead;
+
+
+    public binaryMatrixReader (File file) throws IOException {
+        // Constructor, reads header
+        this.file = file;
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        if (in.readInt() != binaryMatrixWriter.MAGIC || in.readInt() != binaryMatrixWriter.VERSION) {
+            in.close();
+            throw new IOException("Unknown format of binary matrix " + file);
+        }
+        zones = new int[in.readInt()];
+        for (int i = 0; i < zones.length; i++) zones[i] = in.readInt();
+        names = new String[in.readInt()];
+        for (int c = 0; c < names.length; c++) names[c] = in.readUTF();
+        raw = ByteBuffer.allocate(4 + 8 * zones.length);
+        payload = new byte[raw.capacity()];
+    }
+
+
+    public static void main (String[] args) {
+        // export binary trip table to csv
+        if (args.length < 2) {
+            System.out.println("Usage: binaryMatrixReader input.bin output.csv [writeZeros]");
+            return;
+        }
+        exportToCsv(new File(args[0]), args[1], args.length > 2 && Boolean.parseBoolean(args[2]));
+    }
+
+
+    public static void exportToCsv (File binaryFile, String csvFileName, boolean writeZeros) {
+        // write csv file with one line orig,dest,core1,... per O-D pair, O-D pairs without trips only if writeZeros
+        try (binaryMatrixReader reader = new binaryMatrixReader(binaryFile)) {
+            int[] zones = reader.getZones();
+            float[][] row = new float[reader.getNames().length][zones.length];
+            PrintWriter pw = ncstmUtil.openFileForSequentialWriting(csvFileName);
+            pw.print("orig,dest");
+            for (String name: reader.getNames()) pw.print("," + name);
+            pw.println();
+            for (int orig = 0; orig < zones.length; orig++) {
+                reader.readRow(row);
+                for (int dest = 0; dest < zones.length; dest++) {
+                    boolean hasTrips = false;
+                    for (float[] coreRow: row) hasTrips |= coreRow[dest] != 0;
+                    if (!hasTrips && !writeZeros) continue;
+                    pw.print(zones[orig] + "," + zones[dest]);
+                    for (float[] coreRow: row) pw.print("," + coreRow[dest]);
+                    pw.println();
+                }
+            }
+            pw.close();
+        } catch (IOException e) {
+            logger.error("Could not export binary matrix <" + binaryFile + ">: " + e.getMessage());
+            throw new RuntimeException(e);
+        }
+    }
+
+
+    public static Matrix[] readMatrices (File binaryFile) {
+        // read all cores into matrices with zone numbers as external numbers
+        try (binaryMatrixReader reader = new binaryMatrixReader(binaryFile)) {
+            int[] zones = reader.getZones();
+            String[] names = reader.getNames();
+            float[][][] values = new float[names.length][zones.length][zones.length];
+            float[][] row = new float[names.length][];
+            for (int orig = 0; orig < zones.length; orig++) {
+                for (int c = 0; c < names.length; c++) row[c] = values[c][orig];
+                reader.readRow(row);
+            }
+            Matrix[] matrices = new Matrix[names.length];
+            for (int c = 0; c < names.length; c++) {
+                matrices[c] = new Matrix(names[c], names[c], values[c]);
+                matrices[c].setExternalNumbersZeroBased(zones);
+            }
+            return matrices;
+        } catch (IOException e) {
+            logger.error("Could not read binary matrix <" + binaryFile + ">: " + e.getMessage());
+            throw new RuntimeException(e);
+        }
+    }
+
+
+    public int[] getZones () {
+        return zones;
+    }
+
+
+    public String[] getNames () {
+        return names;
+    }
+
+
+    public void readRow (float[][] target) throws IOException {
+        // read next origin row into target, indexed by [core][destination ordinal]
+        if (rowsRead == zones.length) throw new EOFException("All rows of " + file + " were read already");
+        for (float[] coreRow: target) readRecord(coreRow);
+        rowsRead++;
+    }
+
+
+    private void readRecord (float[] row) throws IOException {
+        int flags = in.readByte();
+        int length = in.readInt();
+        int rawLength = (flags & binaryMatrixWriter.DEFLATED) != 0 ? in.readInt() : length;
+        if (payload.length < length) payload = new byte[length];
+        in.readFully(payload, 0, length);
+        raw.clear();
+        if ((flags & binaryMatrixWriter.DEFLATED) != 0) {
+            inflater.reset();
+            inflater.setInput(payload, 0, length);
+            try {
+                if (inflater.inflate(raw.array(), 0, rawLength) != rawLength) throw new IOException("Truncated row in " + file);
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt row in " + file, e);
+            }
+        } else {
+            System.arraycopy(payload, 0, raw.array(), 0, length);
+        }
+        raw.limit(rawLength);
+        if ((flags & binaryMatrixWriter.SPARSE) != 0) {
+            Arrays.fill(row, 0);
+            int nonZeros = raw.getInt();
+            int valueStart = 4 + 4 * nonZeros;
+            for (int k = 0; k < nonZeros; k++) row[raw.getInt(4 + 4 * k)] = raw.getFloat(valueStart + 4 * k);
+        } else {
+            for (int dest = 0; dest < zones.length; dest++) row[dest] = raw.getFloat();
+        }
+    }
+
+
+    @Override
+    public void close () throws IOException {
+        inflater.end();
+        in.close();
+    }
+}
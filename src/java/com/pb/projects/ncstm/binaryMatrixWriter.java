@@ -0,0 +1,196 @@
+package com.pb.projects.ncstm;
+
+import com.pb.common.matrix.Matrix;
+import com.pb.common.util.ResourceUtil;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.ResourceBundle;
+import java.util.zip.Deflater;
+
+/**
+ * Writer of trip tables in the binary matrix format of the North Carolina Statewide Model (NCSTM), an alternative
+ * to csv trip tables that is read back by binaryMatrixReader and can be exported to csv with its main method.
+ *
+ * File layout: magic "NCBM", version, number of zones, zone numbers, number of cores, core names, followed by one
+ * record per origin row and core, rows in zone order and cores in name order. A record is a flag byte, the length
+ * of the payload and the payload. The payload of a dense row holds n float values, the payload of a sparse row the
+ * number of non-zero cells, their destination ordinals and their values. The smaller of both is used. If the row is
+ * compressed (flag 2), the payload is deflated and its uncompressed length precedes it. All numbers are big-endian.
+ *
+ * Properties:
+ *   trip.table.format               csv (default), binary or both
+ *   trip.table.binary.compress      deflate rows, default true
+ */
+public class binaryMatrixWriter implements Closeable {
+
+    static Logger logger = Logger.getLogger(binaryMatrixWriter.class);
+    static final int MAGIC = 0x4E43424D;    // "NCBM"
+    static final int VERSION = 1;
+    static final int SPARSE = 1;
+    static final int DEFLATED = 2;
+    private final File file;
+    private final int[] zones;
+    private final String[] names;
+    private final DataOutputStream out;
+    private final Deflater deflater;
+    private final ByteBuffer raw;
+    private byte[] compressed;
+    private int rowsWritten;
+
+
+    public binaryMatrixWriter (File file, int[] zones, String[] names, boolean compress) throws IOException {
+        // Constructor, writes header
+        this.file = file;
+        this.zones = zones;
+        this.names = names;
+        deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+        raw = ByteBuffer.allocate(4 + 8 * zones.length);
+        compressed = new byte[raw.capacity() + 64];
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(zones.length);
+        for (int zone: zones) out.writeInt(zone);
+        out.writeInt(names.length);
+        for (String name: names) out.writeUTF(name);
+    }
+
+
+    public static boolean writeCsv (ResourceBundle rb) {
+        return !ResourceUtil.getProperty(rb, "trip.table.format", "csv").equalsIgnoreCase("binary");
+    }
+
+
+    public static boolean writeBinary (ResourceBundle rb) {
+        String format = ResourceUtil.getProperty(rb, "trip.table.format", "csv");
+        return format.equalsIgnoreCase("binary") || format.equalsIgnoreCase("both");
+    }
+
+
+    public static String getFileName (String csvFileName) {
+        // return name of binary file that replaces csvFileName
+        return (csvFileName.endsWith(".csv") ? csvFileName.substring(0, csvFileName.length() - 4) : csvFileName) + ".bin";
+    }
+
+
+    public static void write (ResourceBundle rb, String csvFileName, int[] zones, String[] names, float[][][] tables) {
+        // write tables indexed by zone ordinals [core][orig][dest]
+        binaryMatrixWriter writer = open(rb, csvFileName, zones, names);
+        float[][] row = new float[names.length][];
+        for (int orig = 0; orig < zones.length; orig++) {
+            for (int c = 0; c < names.length; c++) row[c] = tables[c][orig];
+            writer.writeRow(row);
+        }
+        writer.close();
+    }
+
+
+    public static void write (ResourceBundle rb, String csvFileName, int[] zones, String[] names, Matrix[] tables) {
+        // write dense matrices indexed by zone numbers
+        binaryMatrixWriter writer = open(rb, csvFileName, zones, names);
+        float[][] row = new float[names.length][zones.length];
+        for (int orig = 0; orig < zones.length; orig++) {
+            for (int c = 0; c < names.length; c++) {
+                for (int dest = 0; dest < zones.length; dest++) row[c][dest] = tables[c].getValueAt(zones[orig], zones[dest]);
+            }
+            writer.writeRow(row);
+        }
+        writer.close();
+    }
+
+
+    public static void write (ResourceBundle rb, String csvFileName, int[] zones, String[] names, sparseMatrix[] tables) {
+        // write sparse matrices indexed by zone ordinals
+        binaryMatrixWriter writer = open(rb, csvFileName, zones, names);
+        float[][] row = new float[names.length][];
+        for (int orig = 0; orig < zones.length; orig++) {
+            for (int c = 0; c < names.length; c++) row[c] = tables[c].getRow(orig, row[c]);
+            writer.writeRow(row);
+        }
+        writer.close();
+    }
+
+
+    public static binaryMatrixWriter open (ResourceBundle rb, String csvFileName, int[] zones, String[] names) {
+        // open writer for the binary file that belongs to csvFileName
+        String fileName = getFileName(csvFileName);
+        logger.info("  Writing binary trip table " + fileName);
+        try {
+            return new binaryMatrixWriter(new File(fileName), zones, names,
+                    ResourceUtil.getBooleanProperty(rb, "trip.table.binary.compress", true));
+        } catch (IOException e) {
+            logger.error("Could not open file <" + fileName + ">.");
+            throw new RuntimeException(e);
+        }
+    }
+
+
+    public void writeRow (float[][] values) {
+        // write next origin row, values are indexed by [core][destination ordinal]
+        if (rowsWritten == zones.length) throw new RuntimeException("All rows of " + file + " were written already");
+        try {
+            for (float[] coreRow: values) writeRecord(coreRow);
+        } catch (IOException e) {
+            logger.error("Could not write to file <" + file + ">.");
+            throw new RuntimeException(e);
+        }
+        rowsWritten++;
+    }
+
+
+    private void writeRecord (float[] row) throws IOException {
+        // encode row densely or sparsely, whichever is smaller, and deflate it if requested
+        int nonZeros = 0;
+        for (float value: row) if (value != 0) nonZeros++;
+        int flags = 0;
+        raw.clear();
+        if (4 + 8 * nonZeros < 4 * row.length) {
+            flags |= SPARSE;
+            raw.putInt(nonZeros);
+            for (int dest = 0; dest < row.length; dest++) if (row[dest] != 0) raw.putInt(dest);
+            for (float value: row) if (value != 0) raw.putFloat(value);
+        } else {
+            for (float value: row) raw.putFloat(value);
+        }
+        int rawLength = raw.position();
+        if (deflater != null) {
+            deflater.reset();
+            deflater.setInput(raw.array(), 0, rawLength);
+            deflater.finish();
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == compressed.length) compressed = Arrays.copyOf(compressed, 2 * compressed.length);
+                length += deflater.deflate(compressed, length, compressed.length - length);
+            }
+            if (length < rawLength) {
+                out.writeByte(flags | DEFLATED);
+                out.writeInt(length);
+                out.writeInt(rawLength);
+                out.write(compressed, 0, length);
+                return;
+            }
+        }
+        out.writeByte(flags);
+        out.writeInt(rawLength);
+        out.write(raw.array(), 0, rawLength);
+    }
+
+
+    @Override
+    public void close () {
+        // close file, rows that were not written are filled with zeros
+        try {
+            float[][] empty = new float[names.length][zones.length];
+            while (rowsWritten < zones.length) writeRow(empty);
+            out.close();
+        } catch (IOException e) {
+            logger.error("Could not close file <" + file + ">.");
+            throw new RuntimeException(e);
+        } finally {
+            if (deflater != null) deflater.end();
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package com.pb.projects.ncstm;
+
+import com.pb.sawdust.util.concurrent.DnCRecursiveAction;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Streaming reader for skims stored as orig,dest,value csv files for the North Carolina Statewide Model (NCSTM).
+ * The file is split into chunks at line breaks, chunks are parsed on several cores directly from memory-mapped
+ * bytes and values are written straight into the skim buffer. Malformed rows, rows with unknown zones and O-D pairs
+ * missing in the file are reported instead of being skipped silently.
+ */
+public class csvSkimReader {
+
+    static Logger logger = Logger.getLogger(csvSkimReader.class);
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    private static final int MAX_REPORTED = 10;
+    private static final double[] POWERS_OF_TEN = new double[23];
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+
+    private final String fileName;
+    private final int[] zones;
+    private final int[] zoneIndex;
+    private final FloatBuffer values;
+    private final AtomicLong rowCount = new AtomicLong();
+    private final AtomicLong malformedRows = new AtomicLong();
+    private final AtomicLong unknownZoneRows = new AtomicLong();
+    private final List<String> problems = new ArrayList<>();
+    private int origColumn;
+    private int destColumn;
+    private int valueColumn;
+    private int numberOfColumns;
+
+
+    private csvSkimReader (String fileName, int[] zones) {
+        // Constructor
+        this.fileName = fileName;
+        this.zones = zones;
+        zoneIndex = new int[ncstmUtil.getHighestVal(zones) + 1];
+        Arrays.fill(zoneIndex, -1);
+        for (int i = 0; i < zones.length; i++) zoneIndex[zones[i]] = i;
+        float[] flat = new float[zones.length * zones.length];
+        Arrays.fill(flat, Float.NaN);
+        values = FloatBuffer.wrap(flat);
+    }
+
+
+    public static skimMatrix read (String fileName, String columnName, String skimName, int[] zones) {
+        // read csv skim with columns orig, dest and columnName into a skim ordered by zones
+        csvSkimReader reader = new csvSkimReader(fileName, zones);
+        reader.parse(columnName);
+        return new skimMatrix(skimName, zones, reader.values);
+    }
+
+
+    private void parse (String columnName) {
+        // split file into chunks and parse chunks in parallel
+
+        long startTime = System.currentTimeMillis();
+        long dataStart;
+        long fileSize;
+        try (RandomAccessFile raf = new RandomAccessFile(fileName, "r")) {
+            FileChannel channel = raf.getChannel();
+            fileSize = channel.size();
+            dataStart = readHeader(channel, columnName);
+        } catch (IOException e) {
+            throw new RuntimeException("File not found: <" + fileName + ">.", e);
+        }
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        long chunkSize = Math.max(1 << 20, Math.min(64 << 20, (fileSize - dataStart) / (4 * threads) + 1));
+        List<long[]> chunks = new ArrayList<>();
+        for (long start = dataStart; start < fileSize; start += chunkSize) {
+            chunks.add(new long[]{start, Math.min(fileSize, start + chunkSize)});
+        }
+
+        DnCRecursiveAction action = new ParseChunkAction(chunks, fileSize);
+        ncstmUtil.runAction(action);
+
+        long missingCells = fillMissingCells();
+        logger.info("  Read " + rowCount.get() + " rows from " + fileName + " in " +
+                ncstmUtil.rounder((System.currentTimeMillis() - startTime) / 1000f, 1) + " seconds");
+        if (malformedRows.get() > 0) logger.warn("  " + malformedRows.get() + " malformed rows in " + fileName);
+        if (unknownZoneRows.get() > 0) logger.warn("  " + unknownZoneRows.get() + " rows in " + fileName +
+                " refer to zones that are not part of the zone system");
+        if (missingCells > 0) logger.warn("  " + missingCells + " O-D pairs are missing in " + fileName +
+                " and were set to 0");
+        for (String problem: problems) logger.warn("    " + problem);
+    }
+
+
+    private long readHeader (FileChannel channel, String columnName) throws IOException {
+        // find positions of columns orig, dest and columnName, return position of first data row
+
+        ByteBuffer buf = ByteBuffer.allocate((int) Math.min(channel.size(), MAX_LINE_LENGTH));
+        channel.read(buf, 0);
+        int end = 0;
+        while (end < buf.position() && buf.get(end) != '\n') end++;
+        String[] labels = new String(buf.array(), 0, end, "ISO-8859-1").trim().split(",");
+        origColumn = destColumn = valueColumn = -1;
+        for (int i = 0; i < labels.length; i++) {
+            String label = labels[i].trim().replace("\"", "");
+            if (label.equalsIgnoreCase("orig")) origColumn = i;
+            if (label.equalsIgnoreCase("dest")) destColumn = i;
+            if (label.equalsIgnoreCase(columnName)) valueColumn = i;
+        }
+        if (origColumn < 0 || destColumn < 0 || valueColumn < 0) throw new RuntimeException("File " + fileName +
+                " needs columns orig, dest and " + columnName);
+        numberOfColumns = Math.max(origColumn, Math.max(destColumn, valueColumn)) + 1;
+        return end + 1;
+    }
+
+
+    private void parseChunk (FileChannel channel, long start, long end, long fileSize) throws IOException {
+        // parse all lines that start between start and end. Lines may reach into the following chunk
+
+        long mapStart = start - 1;
+        long mapEnd = Math.min(fileSize, end + MAX_LINE_LENGTH);
+        ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, mapStart, mapEnd - mapStart);
+        int limit = buf.limit();
+        int chunkEnd = (int) (end - mapStart);
+        int pos = 1;
+        if (buf.get(0) != '\n') {
+            // first line started in previous chunk
+            while (pos < limit && buf.get(pos) != '\n') pos++;
+            pos++;
+        }
+        int[] fieldStart = new int[numberOfColumns];
+        int[] fieldEnd = new int[numberOfColumns];
+        long rows = 0;
+        while (pos < chunkEnd) {
+            int lineStart = pos;
+            int field = 0;
+            fieldStart[0] = pos;
+            while (pos < limit && buf.get(pos) != '\n') {
+                if (buf.get(pos) == ',') {
+                    if (field < numberOfColumns) fieldEnd[field] = pos;
+                    field++;
+                    if (field < numberOfColumns) fieldStart[field] = pos + 1;
+                }
+                pos++;
+            }
+            if (pos == limit && mapEnd < fileSize) {
+                reportMalformed(mapStart + lineStart, "line is longer than " + MAX_LINE_LENGTH + " bytes");
+                return;
+            }
+            int lineEnd = pos;
+            if (lineEnd > lineStart && buf.get(lineEnd - 1) == '\r') lineEnd--;
+            if (field < numberOfColumns) fieldEnd[field] = lineEnd;
+            pos++;
+            if (lineEnd == lineStart) continue;   // empty line
+            rows++;
+            if (field + 1 < numberOfColumns) {
+                reportMalformed(mapStart + lineStart, "only " + (field + 1) + " columns");
+                continue;
+            }
+            double orig = parseNumber(buf, fieldStart[origColumn], fieldEnd[origColumn]);
+            double dest = parseNumber(buf, fieldStart[destColumn], fieldEnd[destColumn]);
+            double value = parseNumber(buf, fieldStart[valueColumn], fieldEnd[valueColumn]);
+            if (Double.isNaN(orig) || Double.isNaN(dest) || Double.isNaN(value)) {
+                reportMalformed(mapStart + lineStart, "cannot parse number");
+                continue;
+            }
+            int o = (int) orig;
+            int d = (int) dest;
+            if (o < 0 || d < 0 || o >= zoneIndex.length || d >= zoneIndex.length || zoneIndex[o] < 0 || zoneIndex[d] < 0) {
+                unknownZoneRows.incrementAndGet();
+                addProblem("Unknown zone pair " + o + "/" + d + " at byte " + (mapStart + lineStart));
+                continue;
+            }
+            values.put(zoneIndex[o] * zones.length + zoneIndex[d], (float) value);
+        }
+        rowCount.addAndGet(rows);
+    }
+
+
+    private static double parseNumber (ByteBuffer buf, int from, int to) {
+        // parse decimal number from bytes, return NaN if bytes do not form a number
+
+        while (from < to && (buf.get(from) == ' ' || buf.get(from) == '"')) from++;
+        while (to > from && (buf.get(to - 1) == ' ' || buf.get(to - 1) == '"')) to--;
+        if (from == to) return Double.NaN;
+        int pos = from;
+        boolean negative = false;
+        if (buf.get(pos) == '-' || buf.get(pos) == '+') {
+            negative = buf.get(pos) == '-';
+            pos++;
+        }
+        long mantissa = 0;
+        int exponent = 0;
+        int digits = 0;
+        boolean decimalPoint = false;
+        for (; pos < to; pos++) {
+            byte b = buf.get(pos);
+            if (b >= '0' && b <= '9') {
+                if (mantissa < 100000000000000000L) {
+                    mantissa = mantissa * 10 + (b - '0');
+                    if (decimalPoint) exponent--;
+                } else if (!decimalPoint) {
+                    exponent++;
+                }
+                digits++;
+            } else if (b == '.' && !decimalPoint) {
+                decimalPoint = true;
+            } else {
+                break;
+            }
+        }
+        if (digits == 0) return Double.NaN;
+        if (pos < to) {
+            if (buf.get(pos) != 'e' && buf.get(pos) != 'E') return Double.NaN;
+            pos++;
+            boolean negativeExponent = false;
+            if (pos < to && (buf.get(pos) == '-' || buf.get(pos) == '+')) {
+                negativeExponent = buf.get(pos) == '-';
+                pos++;
+            }
+            if (pos == to) return Double.NaN;
+            int e = 0;
+            for (; pos < to; pos++) {
+                byte b = buf.get(pos);
+                if (b < '0' || b > '9') return Double.NaN;
+                if (e < 10000) e = e * 10 + (b - '0');
+            }
+            exponent += negativeExponent ? -e : e;
+        }
+        double value;
+        if (exponent == 0) value = mantissa;
+        else if (exponent > 0 && exponent < POWERS_OF_TEN.length) value = mantissa * POWERS_OF_TEN[exponent];
+        else if (exponent < 0 && -exponent < POWERS_OF_TEN.length) value = mantissa / POWERS_OF_TEN[-exponent];
+        else value = mantissa * Math.pow(10, exponent);
+        return negative ? -value : value;
+    }
+
+
+    private void reportMalformed (long bytePosition, String reason) {
+        malformedRows.incrementAndGet();
+        addProblem("Malformed row at byte " + bytePosition + ": " + reason);
+    }
+
+
+    private void addProblem (String problem) {
+        synchronized (problems) {
+            if (problems.size() < MAX_REPORTED) problems.add(problem);
+        }
+    }
+
+
+    private long fillMissingCells () {
+        // O-D pairs not found in file are reported and set to 0
+        long missing = 0;
+        for (int i = 0; i < values.capacity(); i++) {
+            if (Float.isNaN(values.get(i))) {
+                if (missing < MAX_REPORTED) addProblem("Missing O-D pair " + zones[i / zones.length] + "/" +
+                        zones[i % zones.length]);
+                missing++;
+                values.put(i, 0);
+            }
+        }
+        return missing;
+    }
+
+
+    private class ParseChunkAction extends DnCRecursiveAction {
+        private final List<long[]> chunks;
+        private final long fileSize;
+
+        private ParseChunkAction(List<long[]> chunks, long fileSize) {
+            super(0, chunks.size());
+            this.chunks = chunks;
+            this.fileSize = fileSize;
+        }
+
+        private ParseChunkAction(List<long[]> chunks, long fileSize, long start, long length, DnCRecursiveAction next) {
+            super(start, length, next);
+            this.chunks = chunks;
+            this.fileSize = fileSize;
+        }
+
+        @Override
+        protected void computeAction(long start, long length) {
+            try (RandomAccessFile raf = new RandomAccessFile(fileName, "r")) {
+                for (int chunk = (int) start; chunk < start + length; chunk++) {
+                    parseChunk(raf.getChannel(), chunks.get(chunk)[0], chunks.get(chunk)[1], fileSize);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Could not read " + fileName, e);
+            }
+        }
+
+        @Override
+        protected DnCRecursiveAction getNextAction(long start, long length, DnCRecursiveAction next) {
+            return new ParseChunkAction(chunks, fileSize, start, length, next);
+        }
+
+        @Override
+        protected boolean continueDividing(long length) {
+            return getSurplusQueuedTaskCount() < 3 && length > 1;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package com.pb.projects.ncstm;
+
+import com.pb.common.datafile.TableDataSet;
+import com.pb.common.util.ResourceUtil;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.ResourceBundle;
+
+/**
+ * Warm-start snapshot of the prepared input data of the North Carolina Statewide Model (NCSTM). The snapshot holds
+ * the tables after households by income have been joined and the skims in zone-system order, so that later runs can
+ * skip csv parsing and skim conversion. A snapshot is only used if its fingerprint matches the current input files.
+ * It holds whichever tables and skims the writing run had read, a later run reads anything else from input files.
+ * Input groups (e.g. the auto skims) carry their own fingerprint, so that a run only hashes the files of the groups it
+ * uses.
+ *
+ * File layout: magic, version, offset of skim data (long), header (fingerprint, zones, skim names, serialized
+ * tables, fingerprints by input group), padding, n * n float values per skim. Skims are memory-mapped read-only from
+ * the file, so that a snapshot in a read-only shared directory can be used.
+ *
+ * Properties:
+ *   data.snapshot.directory        directory of snapshots, no snapshots are used if it is not set
+ *   data.snapshot.hash.contents    identify input files by a hash of their content, default true. If false, files
+ *                                  are identified by size and modification time only, which misses files that were
+ *                                  replaced by copies with their original time stamps
+ */
+public class dataSnapshot {
+
+    static Logger logger = Logger.getLogger(dataSnapshot.class);
+    private static final int MAGIC = 0x4E43534E;    // "NCSN"
+    private static final int VERSION = 2;
+    private final LinkedHashMap<String, TableDataSet> tables;
+    private final LinkedHashMap<String, skimMatrix> skims;
+    private final LinkedHashMap<String, String> groupFingerprints;
+
+
+    private dataSnapshot (LinkedHashMap<String, TableDataSet> tables, LinkedHashMap<String, skimMatrix> skims,
+                          LinkedHashMap<String, String> groupFingerprints) {
+        // Constructor
+        this.tables = tables;
+        this.skims = skims;
+        this.groupFingerprints = groupFingerprints;
+    }
+
+
+    public static File getSnapshotFile (ResourceBundle rb, int year) {
+        // return snapshot file for year, or null if no snapshot directory is set
+        String directory = ResourceUtil.getProperty(rb, "data.snapshot.directory", null);
+        if (directory == null || directory.isEmpty()) return null;
+        return new File(directory, "ncstm_" + year + ".snapshot");
+    }
+
+
+    public static String getFingerprint (ResourceBundle rb, int year, String[] inputFiles, String[] settings) {
+        // fingerprint of input files and settings, with files hashed as set by data.snapshot.hash.contents
+        return getFingerprint(ResourceUtil.getBooleanProperty(rb, "data.snapshot.hash.contents", true), year,
+                inputFiles, settings);
+    }
+
+
+    public static String getFingerprint (boolean hashContents, int year, String[] inputFiles, String[] settings) {
+        // fingerprint of input files and settings. Files are identified by path and a hash of their content, or by
+        // path, size and modification time if hashContents is false
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(("version " + VERSION + " year " + year).getBytes("UTF-8"));
+            for (String setting: settings) digest.update(("|" + setting).getBytes("UTF-8"));
+            for (String fileName: inputFiles) {
+                File file = new File(fileName).getAbsoluteFile();
+                digest.update(("|" + file.getPath()).getBytes("UTF-8"));
+                if (!file.exists()) {
+                    digest.update("missing".getBytes("UTF-8"));
+                } else if (hashContents) {
+                    hashFile(digest, file);
+                } else {
+                    digest.update((file.length() + ":" + file.lastModified()).getBytes("UTF-8"));
+                }
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b: digest.digest()) hex.append(String.format("%02x", b));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw new RuntimeException("Could not calculate fingerprint of input data", e);
+        }
+    }
+
+
+    private static void hashFile (MessageDigest digest, File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[1 << 20];
+            int read;
+            while ((read = in.read(buffer)) > 0) digest.update(buffer, 0, read);
+        }
+    }
+
+
+    public TableDataSet getTable (String name) {
+        return tables.get(name);
+    }
+
+
+    public skimMatrix getSkim (String name) {
+        return skims.get(name);
+    }
+
+
+    public String getGroupFingerprint (String group) {
+        // return fingerprint of the input files of group, or null if the snapshot does not hold group
+        return groupFingerprints.get(group);
+    }
+
+
+    @SuppressWarnings("unchecked")
+    public static dataSnapshot read (File snapshotFile, String fingerprint) {
+        // read snapshot, return null if there is none or if it was written for different input data
+        if (!snapshotFile.exists()) return null;
+        long startTime = System.currentTimeMillis();
+        try (RandomAccessFile raf = new RandomAccessFile(snapshotFile, "r")) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(raf.getFD())));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                logger.info("  Snapshot " + snapshotFile + " has an unknown format and will be rebuilt");
+                return null;
+            }
+            long dataOffset = in.readLong();
+            if (!in.readUTF().equals(fingerprint)) {
+                logger.info("  Input data changed since snapshot " + snapshotFile + " was written, it will be rebuilt");
+                return null;
+            }
+            ObjectInputStream objects = new ObjectInputStream(in);
+            int[] zones = (int[]) objects.readObject();
+            String[] skimNames = (String[]) objects.readObject();
+            LinkedHashMap<String, TableDataSet> tables = (LinkedHashMap<String, TableDataSet>) objects.readObject();
+            LinkedHashMap<String, String> groupFingerprints = (LinkedHashMap<String, String>) objects.readObject();
+
+            long skimSize = 4L * zones.length * zones.length;
+            if (raf.length() != dataOffset + skimNames.length * skimSize)
+                throw new IOException("Snapshot has " + raf.length() + " bytes, expected " +
+                        (dataOffset + skimNames.length * skimSize));
+            LinkedHashMap<String, skimMatrix> skims = new LinkedHashMap<>();
+            for (int i = 0; i < skimNames.length; i++) {
+                FloatBuffer values = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, dataOffset + i * skimSize,
+                        skimSize).asFloatBuffer();
+                skims.put(skimNames[i], new skimMatrix(skimNames[i], zones, values));
+            }
+            logger.info("  Read snapshot " + snapshotFile + " in " +
+                    ncstmUtil.rounder((System.currentTimeMillis() - startTime) / 1000f, 1) + " seconds");
+            return new dataSnapshot(tables, skims, groupFingerprints);
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            logger.warn("  Could not read snapshot " + snapshotFile + ", it will be rebuilt: " + e.getMessage());
+            return null;
+        }
+    }
+
+
+    public static void write (File snapshotFile, String fingerprint, Map<String, String> groupFingerprints, int[] zones,
+                              Map<String, TableDataSet> tables, skimMatrix[] skims) {
+        // write snapshot with the fingerprints of the input groups it holds. A temporary file is renamed at the end, so
+        // that concurrent runs never see half a file
+        String[] skimNames = new String[skims.length];
+        for (int i = 0; i < skims.length; i++) skimNames[i] = skims[i].getName();
+
+        File parent = snapshotFile.getAbsoluteFile().getParentFile();
+        if (!parent.exists() && !parent.mkdirs()) throw new RuntimeException("Could not create directory " + parent);
+        File tmpFile = new File(parent, snapshotFile.getName() + "." + System.nanoTime() + ".tmp");
+        try {
+            ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+            DataOutputStream header = new DataOutputStream(headerBytes);
+            header.writeUTF(fingerprint);
+            ObjectOutputStream objects = new ObjectOutputStream(header);
+            objects.writeObject(zones);
+            objects.writeObject(skimNames);
+            objects.writeObject(new LinkedHashMap<>(tables));
+            objects.writeObject(new LinkedHashMap<>(groupFingerprints));
+            objects.close();
+            long dataOffset = (16 + headerBytes.size() + 7) / 8 * 8;
+
+            try (RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw")) {
+                FileChannel channel = raf.getChannel();
+                ByteBuffer start = ByteBuffer.allocate(16);
+                start.putInt(MAGIC).putInt(VERSION).putLong(dataOffset).flip();
+                while (start.hasRemaining()) channel.write(start);
+                ByteBuffer rest = ByteBuffer.wrap(headerBytes.toByteArray());
+                while (rest.hasRemaining()) channel.write(rest);
+                channel.position(dataOffset);
+                ByteBuffer row = ByteBuffer.allocate(4 * zones.length);
+                float[] values = null;
+                for (skimMatrix skim: skims) {
+                    for (int i = 0; i < zones.length; i++) {
+                        values = skim.getRow(i, values);
+                        row.clear();
+                        row.asFloatBuffer().put(values);
+                        while (row.hasRemaining()) channel.write(row);
+                    }
+                }
+            }
+            Files.move(tmpFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            logger.info("  Wrote snapshot of input data to " + snapshotFile);
+        } catch (IOException e) {
+            // a missing snapshot only costs time on the next run
+            logger.warn("  Could not write snapshot " + snapshotFile + ": " + e.getMessage());
+            if (!tmpFile.delete()) tmpFile.deleteOnExit();
+        }
+    }
+}
@@ -8,6 +8,8 @@ import org.apache.log4j.Logger;
 import com.pb.common.datafile.TableDataSet;
 import com.pb.common.matrix.Matrix;
 import com.pb.models.processFAF.fafUtils;
+import com.pb.projects.ncstm.binaryMatrixWriter;
+import com.pb.projects.ncstm.modelContext;
 import com.pb.projects.ncstm.mpoTrucks.mpoData;
 
 
@@ -20,15 +22,17 @@ public class disaggreagteExternalTrips {
     static Logger logger = Logger.getLogger(disaggreagteExternalTrips.class);
     private int year;
     private ResourceBundle appRb;
+    private mpoData data;
     private int col = 0;
     private int[] taz,centroids;
     private TableDataSet extTruckTrips, prodAndAttr;
     private Matrix ieSUT, eiSUT, eeSUT, ieMUT, eiMUT, eeMUT, externalSUT, externalMUT;
     
-    public disaggreagteExternalTrips (ResourceBundle rb, int year) {
+    public disaggreagteExternalTrips (modelContext context) {
         // Constructor
-        this.appRb = rb;
-        this.year = year;
+        this.appRb = context.getResourceBundle();
+        this.year = context.getYear();
+        this.data = context.getMpoData();
     }
 
     public void run () {
@@ -36,17 +40,17 @@ public class disaggreagteExternalTrips {
     	
     	//get the zonal data with external stations as an array
         logger.info(" Get zonal data.");
-        taz = mpoData.getZones();
+        taz = data.getZones();
         
     	//Read in external trips matrix
-    	extTruckTrips = mpoData.readExtTruckTrips(appRb);
+    	extTruckTrips = data.readExtTruckTrips(appRb);
     	
     	//Read in local truck trip productions and attractions
     	String fileName = appRb.getString("production.attraction.file");
-    	prodAndAttr = mpoData.readProdAndAttr(appRb,fileName);
+    	prodAndAttr = data.readProdAndAttr(appRb,fileName);
     	
    	   	//get centroids
-    	centroids = mpoData.getCentroids("Centroids");
+    	centroids = data.getCentroids("Centroids");
     	
     	//Calculate E-I trips
 		logger.info("Calculating EI Trips");
@@ -100,7 +104,7 @@ public class disaggreagteExternalTrips {
 				            	int colPosition = prodAndAttr.getColumnPosition(attrColName);
 				            	double trips = extTruckTrips.getValueAt(row, col)*prodAndAttr.getValueAt(prodRow, attrColName)/prodAndAttr.getColumnTotal(colPosition);	
 				            	//logger.info((int)extTruckTrips.getValueAt(row, 1)+", "+ destSMZ+", "+(float)trips);
-				            	mat.addToValueAt(mpoData.getExtStationCorrespondence((int)extTruckTrips.getValueAt(row, 1)), destSMZ, (float)trips);
+				            	mat.addToValueAt(data.getExtStationCorrespondence((int)extTruckTrips.getValueAt(row, 1)), destSMZ, (float)trips);
 		            		} 
 		            	}
 		            }
@@ -128,7 +132,7 @@ public class disaggreagteExternalTrips {
 		            		if(prodAndAttr.getValueAt(attrRow, "Taz") == origSMZ){
 				            	int colPosition = prodAndAttr.getColumnPosition(attrColName);
 				            	double trips = extTruckTrips.getValueAt(row, col)*prodAndAttr.getValueAt(attrRow, attrColName)/prodAndAttr.getColumnTotal(colPosition);	
-				            	mat.addToValueAt(origSMZ, mpoData.getExtStationCorrespondence((int) extTruckTrips.getValueAt(row, 2)), (float)trips);
+				            	mat.addToValueAt(origSMZ, data.getExtStationCorrespondence((int) extTruckTrips.getValueAt(row, 2)), (float)trips);
 		            		}
 		            	}
 		            }
@@ -147,8 +151,8 @@ public class disaggreagteExternalTrips {
         for (int row = 1; row < extTruckTrips.getRowCount(); row++) {
         	for(int cent = 0; cent<centroids.length;cent++){	
 	        	if(checkIfCentroid((int)extTruckTrips.getValueAt(row, 1)) || checkIfCentroid((int)extTruckTrips.getValueAt(row, 2))) continue;
-	        	mat.setValueAt(mpoData.getExtStationCorrespondence((int) extTruckTrips.getValueAt(row, 1)), 
-	        			mpoData.getExtStationCorrespondence((int) extTruckTrips.getValueAt(row, 2)), 
+	        	mat.setValueAt(data.getExtStationCorrespondence((int) extTruckTrips.getValueAt(row, 1)), 
+	        			data.getExtStationCorrespondence((int) extTruckTrips.getValueAt(row, 2)), 
 	        					extTruckTrips.getValueAt(row, col));
         	}
         }
@@ -178,6 +182,9 @@ public class disaggreagteExternalTrips {
 	private void writeExtTrkTrips() {
 		// write external truck trip matrix into a .csv file
         String fileName = appRb.getString("ext.truck.model.output") + "_" + year + ".csv";
+        if (binaryMatrixWriter.writeBinary(appRb)) binaryMatrixWriter.write(appRb, fileName, taz,
+                new String[]{"singleUnitTrucks", "multiUnitTrucks"}, new Matrix[]{externalSUT, externalMUT});
+        if (!binaryMatrixWriter.writeCsv(appRb)) return;
         logger.info("Writing truck trips to file " + fileName);
         PrintWriter pw = fafUtils.openFileForSequentialWriting(fileName);
         pw.println("OrigZone,DestZone,singleUnitTrucks,multiUnitTrucks");
@@ -1,9 +1,8 @@
 package com.pb.projects.ncstm.external;
 
+import com.pb.projects.ncstm.modelContext;
 import org.apache.log4j.Logger;
 
-import java.util.ResourceBundle;
-
 /**
  Model to simulate external truck flows for the 3 major mpo's in the NCSTM area
  * Author: Carlee Clymer, PB Albuquerque
@@ -13,20 +12,21 @@ import java.util.ResourceBundle;
 public class externalTrips {
 
     private Logger logger = Logger.getLogger(externalTrips.class);
-    private ResourceBundle appRb;
+    private modelContext context;
 
 
-    public externalTrips(ResourceBundle appRb) {
+    public externalTrips(modelContext context) {
         // constructor
-        this.appRb = appRb;
+        this.context = context;
     }
 
 
-    public void run(int year) {
+    public void run() {
         // run method
+        int year = context.getYear();
         logger.info("  Started external truck model for year " + year + ".");
 
-        disaggreagteExternalTrips det = new disaggreagteExternalTrips(appRb, year);
+        disaggreagteExternalTrips det = new disaggreagteExternalTrips(context);
         det.run();
         
         logger.info("  Completed external truck model.");
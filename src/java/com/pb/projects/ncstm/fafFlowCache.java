@@ -0,0 +1,274 @@
+package com.pb.projects.ncstm;
+
+import com.pb.common.datafile.TableDataSet;
+import com.pb.common.util.ResourceUtil;
+import com.pb.models.processFAF.fafUtils;
+import com.pb.models.processFAF.readFAF3;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.ResourceBundle;
+
+/**
+ * Binary columnar cache of the per-commodity FAF3 flow extracts of the North Carolina Statewide Model (NCSTM), used
+ * instead of parsing the temporary csv files (temp.*.flows.faf.zones_year_SCTGxx.csv) as TableDataSets. For every
+ * commodity, origins and destinations are stored as int columns, short tons as float column and the flow direction
+ * as byte code into a table of direction names. The cache is memory-mapped and only used if its fingerprint matches
+ * the FAF3 input files, the scaling tokens and values, mode and report format. The cache is written when FAF3 data are
+ * extracted (read.in.raw.faf.data), from the csv files that were just written. Later runs with the same FAF3 data and
+ * settings map the cache and do not need the csv files. If there is no matching cache, the csv files are read.
+ *
+ * File layout: magic, version, offset of column data (long), header (fingerprint, direction names, sctg code and
+ * number of flows per commodity), padding, and per commodity: origins, destinations, short tons, directions padded
+ * to a multiple of 4 bytes.
+ *
+ * Properties:
+ *   faf.flow.cache                  read flow extracts from the binary cache, default false
+ *   faf.flow.cache.hash.contents    identify FAF3 input files by a hash of their content, default false. If false,
+ *                                   files are identified by path, size and modification time
+ */
+public class fafFlowCache {
+
+    static Logger logger = Logger.getLogger(fafFlowCache.class);
+    private static final int MAGIC = 0x4E434643;    // "NCFC"
+    private static final int VERSION = 1;
+    private final HashMap<Integer, commodityFlows> flowsByCommodity;
+
+
+    private fafFlowCache (HashMap<Integer, commodityFlows> flowsByCommodity) {
+        // Constructor
+        this.flowsByCommodity = flowsByCommodity;
+    }
+
+
+    public static boolean useCache (ResourceBundle rb) {
+        return ResourceUtil.getBooleanProperty(rb, "faf.flow.cache", false);
+    }
+
+
+    public static void build (ResourceBundle rb, int year, String csvBaseName, String mode, String format) {
+        // write cache of the flow extracts csvBaseName_SCTGxx.csv that were just extracted from FAF3 data
+        write(getCacheFile(csvBaseName), getFingerprint(rb, year, mode, format), csvBaseName);
+    }
+
+
+    public static fafFlowCache get (ResourceBundle rb, int year, String csvBaseName, String mode, String format) {
+        // return cache of the flow extracts csvBaseName_SCTGxx.csv, or null if there is none for the current FAF3 data
+        // and settings. The csv files are read then as before
+        File cacheFile = getCacheFile(csvBaseName);
+        fafFlowCache cache = read(cacheFile, getFingerprint(rb, year, mode, format));
+        if (cache == null) logger.info("  No FAF3 flow cache " + cacheFile + " for current FAF3 data, reading csv " +
+                "extracts. The cache is written when FAF3 data are extracted");
+        return cache;
+    }
+
+
+    private static File getCacheFile (String csvBaseName) {
+        return new File(csvBaseName + ".flowcache");
+    }
+
+
+    private static String getFingerprint (ResourceBundle rb, int year, String mode, String format) {
+        // fingerprint of the FAF3 source files and the settings used to extract flows from them
+        String[] sourceFiles = {ResourceUtil.getProperty(rb, "faf3.data", ""),
+                ResourceUtil.getProperty(rb, "faf3.region.list", ""), ResourceUtil.getProperty(rb, "faf3.sctg.commodity.list", "")};
+        String[] tokens = ResourceUtil.getArray(rb, "scaling.truck.trips.tokens");
+        double[] values = ResourceUtil.getDoubleArray(rb, "scaling.truck.trips.values");
+        String[] settings = {"mode " + mode, "format " + format, "tokens " + Arrays.toString(tokens),
+                "values " + Arrays.toString(values), "commodities " + Arrays.toString(readFAF3.sctgCommodities)};
+        boolean hashContents = ResourceUtil.getBooleanProperty(rb, "faf.flow.cache.hash.contents", false);
+        return dataSnapshot.getFingerprint(hashContents, year, sourceFiles, settings);
+    }
+
+
+    public commodityFlows getFlows (int sctgCommodity) {
+        // return flows of commodity, or null if there are none
+        return flowsByCommodity.get(sctgCommodity);
+    }
+
+
+    private static String getCsvFileName (String csvBaseName, int cm) {
+        return csvBaseName + (cm < 10 ? "_SCTG0" : "_SCTG") + cm + ".csv";
+    }
+
+
+    private static fafFlowCache read (File cacheFile, String fingerprint) {
+        // map cache, return null if there is none or if it was written for different input data
+        if (!cacheFile.exists()) return null;
+        long startTime = System.currentTimeMillis();
+        try (RandomAccessFile raf = new RandomAccessFile(cacheFile, "r")) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(raf.getFD())));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                logger.info("  FAF3 flow cache " + cacheFile + " has an unknown format and will be rebuilt");
+                return null;
+            }
+            long dataOffset = in.readLong();
+            if (!in.readUTF().equals(fingerprint)) {
+                logger.info("  FAF3 data changed since flow cache " + cacheFile + " was written, it will be rebuilt");
+                return null;
+            }
+            String[] directions = new String[in.readInt()];
+            for (int d = 0; d < directions.length; d++) directions[d] = in.readUTF().intern();
+            int commodities = in.readInt();
+            int[] codes = new int[commodities];
+            int[] counts = new int[commodities];
+            long size = dataOffset;
+            for (int c = 0; c < commodities; c++) {
+                codes[c] = in.readInt();
+                counts[c] = in.readInt();
+                size += getColumnBytes(counts[c]);
+            }
+            if (raf.length() != size) throw new IOException("Cache has " + raf.length() + " bytes, expected " + size);
+            ByteBuffer data = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, dataOffset, size - dataOffset);
+            HashMap<Integer, commodityFlows> flowsByCommodity = new HashMap<>();
+            int position = 0;
+            for (int c = 0; c < commodities; c++) {
+                int n = counts[c];
+                flowsByCommodity.put(codes[c], new commodityFlows(directions, slice(data, position, 4 * n).asIntBuffer(),
+                        slice(data, position + 4 * n, 4 * n).asIntBuffer(),
+                        slice(data, position + 8 * n, 4 * n).asFloatBuffer(), slice(data, position + 12 * n, n), n));
+                position += getColumnBytes(n);
+            }
+            logger.info("  Mapped FAF3 flow cache " + cacheFile + " in " +
+                    ncstmUtil.rounder((System.currentTimeMillis() - startTime) / 1000f, 1) + " seconds");
+            return new fafFlowCache(flowsByCommodity);
+        } catch (IOException e) {
+            logger.warn("  Could not read FAF3 flow cache " + cacheFile + ", it will be rebuilt: " + e.getMessage());
+            return null;
+        }
+    }
+
+
+    private static ByteBuffer slice (ByteBuffer data, int position, int length) {
+        ByteBuffer view = data.duplicate();
+        view.position(position);
+        view.limit(position + length);
+        return view.slice();
+    }
+
+
+    private static long getColumnBytes (int flows) {
+        // bytes of the columns of one commodity, directions padded to a multiple of 4
+        return 12L * flows + (flows + 3) / 4 * 4;
+    }
+
+
+    private static void write (File cacheFile, String fingerprint, String csvBaseName) {
+        // parse csv extracts of all commodities and write them into the cache. A temporary file is renamed at the end
+        logger.info("  Building FAF3 flow cache " + cacheFile);
+        ArrayList<String> directions = new ArrayList<>();
+        HashMap<String, Byte> directionCodes = new HashMap<>();
+        int[] codes = readFAF3.sctgCommodities;
+        TableDataSet[] tables = new TableDataSet[codes.length];
+        byte[][] directionColumns = new byte[codes.length][];
+        for (int c = 0; c < codes.length; c++) {
+            tables[c] = fafUtils.importTable(getCsvFileName(csvBaseName, codes[c]));
+            directionColumns[c] = new byte[tables[c].getRowCount()];
+            for (int row = 1; row <= tables[c].getRowCount(); row++) {
+                String dir = tables[c].getStringValueAt(row, "flowDirection");
+                Byte code = directionCodes.get(dir);
+                if (code == null) {
+                    if (directions.size() > Byte.MAX_VALUE) throw new RuntimeException("Too many flow directions in FAF3 extracts");
+                    code = (byte) directions.size();
+                    directionCodes.put(dir, code);
+                    directions.add(dir);
+                }
+                directionColumns[c][row - 1] = code;
+            }
+        }
+
+        File parent = cacheFile.getAbsoluteFile().getParentFile();
+        File tmpFile = new File(parent, cacheFile.getName() + "." + System.nanoTime() + ".tmp");
+        try {
+            ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+            DataOutputStream header = new DataOutputStream(headerBytes);
+            header.writeUTF(fingerprint);
+            header.writeInt(directions.size());
+            for (String dir: directions) header.writeUTF(dir);
+            header.writeInt(codes.length);
+            for (int c = 0; c < codes.length; c++) {
+                header.writeInt(codes[c]);
+                header.writeInt(tables[c].getRowCount());
+            }
+            header.close();
+            long dataOffset = (16 + headerBytes.size() + 7) / 8 * 8;
+
+            try (RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw")) {
+                FileChannel channel = raf.getChannel();
+                ByteBuffer start = ByteBuffer.allocate(16);
+                start.putInt(MAGIC).putInt(VERSION).putLong(dataOffset).flip();
+                while (start.hasRemaining()) channel.write(start);
+                ByteBuffer rest = ByteBuffer.wrap(headerBytes.toByteArray());
+                while (rest.hasRemaining()) channel.write(rest);
+                channel.position(dataOffset);
+                for (int c = 0; c < codes.length; c++) {
+                    int n = tables[c].getRowCount();
+                    ByteBuffer columns = ByteBuffer.allocate((int) getColumnBytes(n));
+                    for (int row = 1; row <= n; row++) columns.putInt((int) tables[c].getValueAt(row, "originFAF"));
+                    for (int row = 1; row <= n; row++) columns.putInt((int) tables[c].getValueAt(row, "destinationFAF"));
+                    for (int row = 1; row <= n; row++) columns.putFloat(tables[c].getValueAt(row, "shortTons"));
+                    columns.put(directionColumns[c]);
+                    columns.clear();
+                    while (columns.hasRemaining()) channel.write(columns);
+                    tables[c] = null;
+                }
+            }
+            Files.move(tmpFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("  Could not write FAF3 flow cache " + cacheFile + ": " + e.getMessage());
+            if (!tmpFile.delete()) tmpFile.deleteOnExit();
+        }
+    }
+
+
+    public static class commodityFlows {
+        // flows of a single commodity, read from the mapped cache
+        private final String[] directionNames;
+        private final IntBuffer origins;
+        private final IntBuffer destinations;
+        private final FloatBuffer shortTons;
+        private final ByteBuffer directions;
+        private final int size;
+
+        private commodityFlows(String[] directionNames, IntBuffer origins, IntBuffer destinations,
+                               FloatBuffer shortTons, ByteBuffer directions, int size) {
+            this.directionNames = directionNames;
+            this.origins = origins;
+            this.destinations = destinations;
+            this.shortTons = shortTons;
+            this.directions = directions;
+            this.size = size;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public int getOrigin(int flow) {
+            return origins.get(flow);
+        }
+
+        public int getDestination(int flow) {
+            return destinations.get(flow);
+        }
+
+        public float getShortTons(int flow) {
+            return shortTons.get(flow);
+        }
+
+        public String getDirection(int flow) {
+            // direction names are interned, so that comparisons with literals succeed on the first reference check
+            return directionNames[directions.get(flow)];
+        }
+    }
+}
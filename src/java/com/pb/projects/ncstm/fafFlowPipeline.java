@@ -0,0 +1,261 @@
+package com.pb.projects.ncstm;
+
+import com.pb.common.datafile.TableDataSet;
+import com.pb.common.util.ResourceUtil;
+import com.pb.models.processFAF.fafUtils;
+import com.pb.models.processFAF.modesFAF3;
+import com.pb.models.processFAF.readFAF3;
+import com.pb.models.processFAF.reportFormat;
+import org.apache.log4j.Logger;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.ResourceBundle;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory extraction of FAF3 flows by commodity for the North Carolina Statewide Model (NCSTM). One thread walks
+ * through the FAF3 flows of a mode in the same way as readFAF3.writeFlowsByModeAndCommodity and passes every record
+ * through a bounded queue per commodity to one consumer thread per commodity, so that disaggregation starts while
+ * extraction is still running and no temporary csv files are written and parsed again. Records of a commodity arrive
+ * in the order in which they would appear in its csv file.
+ *
+ * Properties:
+ *   faf.in.memory.extraction    stream truck flows in memory instead of writing temporary files, default false
+ *   faf.queue.capacity          batches of 1024 flows queued per commodity, default 16
+ *   faf.write.temp.files        also write the temporary csv files for debugging, default false
+ */
+public class fafFlowPipeline {
+
+    static Logger logger = Logger.getLogger(fafFlowPipeline.class);
+    private static final int BATCH_SIZE = 1024;
+    private static final flow[] END = new flow[0];
+    private final readFAF3 faf3;
+    private final modesFAF3 mode;
+    private final reportFormat format;
+    private final HashMap<String, Float> scaler;
+    private final String debugFileName;
+    private final int capacity;
+    private final ArrayBlockingQueue<flow[]>[] queues;
+    private volatile Throwable failure;
+
+
+    @SuppressWarnings("unchecked")
+    public fafFlowPipeline (readFAF3 faf3, modesFAF3 mode, reportFormat format, HashMap<String, Float> scaler,
+                            int capacity, String debugFileName) {
+        // Constructor, debugFileName is the base name of temporary files as in writeFlowsByModeAndCommodity, or null
+        this.faf3 = faf3;
+        this.mode = mode;
+        this.format = format;
+        this.scaler = scaler;
+        this.capacity = capacity;
+        this.debugFileName = debugFileName;
+        int highestIndex = 0;
+        for (int cm: readFAF3.sctgCommodities) highestIndex = Math.max(highestIndex, faf3.getIndexOfCommodity(cm));
+        queues = new ArrayBlockingQueue[highestIndex + 1];
+    }
+
+
+    public static boolean useInMemoryExtraction (ResourceBundle rb) {
+        return ResourceUtil.getBooleanProperty(rb, "faf.in.memory.extraction", false);
+    }
+
+
+    public static fafFlowPipeline create (ResourceBundle rb, readFAF3 faf3, modesFAF3 mode, reportFormat format,
+                                          HashMap<String, Float> scaler, String fileName) {
+        // create pipeline with settings read from properties
+        boolean writeFiles = ResourceUtil.getBooleanProperty(rb, "faf.write.temp.files", false);
+        return new fafFlowPipeline(faf3, mode, format, scaler,
+                Math.max(1, ResourceUtil.getIntegerProperty(rb, "faf.queue.capacity", 16)), writeFiles ? fileName : null);
+    }
+
+
+    public void run (final flowConsumer consumer) {
+        // extract flows and pass them to consumer, returns when all flows of all commodities have been consumed
+        long startTime = System.currentTimeMillis();
+        failure = null;
+        List<Thread> threads = new ArrayList<>();
+        for (final int cm: readFAF3.sctgCommodities) {
+            final ArrayBlockingQueue<flow[]> queue = new ArrayBlockingQueue<>(capacity);
+            queues[faf3.getIndexOfCommodity(cm)] = queue;
+            threads.add(new Thread("faf-sctg" + cm) {
+                public void run() {
+                    try {
+                        for (flow[] batch = take(queue); batch != END; batch = take(queue))
+                            for (flow f: batch) consumer.accept(cm, f);
+                    } catch (Throwable e) {
+                        fail(e);
+                    }
+                }
+            });
+        }
+        threads.add(new Thread("faf-extraction") {
+            public void run() {
+                try {
+                    extract();
+                } catch (Throwable e) {
+                    fail(e);
+                }
+            }
+        });
+        for (Thread thread: threads) thread.start();
+        for (Thread thread: threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail(e);
+            }
+        }
+        if (failure != null) throw new RuntimeException("In-memory extraction of FAF3 flows failed", failure);
+        logger.info("  Extracted and disaggregated " + mode + " flows in memory in " +
+                ncstmUtil.rounder((System.currentTimeMillis() - startTime) / 1000f, 1) + " seconds");
+    }
+
+
+    private void extract () {
+        // walk through FAF3 flows as readFAF3.writeFlowsByModeAndCommodity does, writing to in-memory line parsers
+        PrintWriter[] writers = new PrintWriter[queues.length];
+        for (int cm: readFAF3.sctgCommodities) {
+            int index = faf3.getIndexOfCommodity(cm);
+            PrintWriter debugWriter = null;
+            if (debugFileName != null) {
+                debugWriter = fafUtils.openFileForSequentialWriting(debugFileName + (cm < 10 ? "_SCTG0" : "_SCTG") + cm + ".csv");
+                debugWriter.println("originFAF,destinationFAF,flowDirection,SCTG_commodity,shortTons");
+            }
+            writers[index] = new PrintWriter(new lineParser(queues[index], debugWriter));
+        }
+        int modeNumber = fafUtils.getEnumOrderNumber(mode);
+        TableDataSet flows = faf3.getFaf3commodityFlows();
+        String[] valueColumnName = faf3.getValueColumnName();
+        for (int row = 1; row <= flows.getRowCount(); row++) {
+            int tradeType = (int) flows.getValueAt(row, "trade_type");
+            double value;
+            if (valueColumnName.length == 1) {
+                value = flows.getValueAt(row, valueColumnName[0]);
+            } else {
+                // interpolate between two years
+                float value1 = flows.getValueAt(row, valueColumnName[0]);
+                float value2 = flows.getValueAt(row, valueColumnName[1]);
+                value = value1 + (value2 - value1) * Float.parseFloat(valueColumnName[2]);
+            }
+            value = value * (faf3.getFactor() * faf3.odScaler(row, tradeType, scaler));
+            if (value == 0) continue;
+            PrintWriter writer = writers[faf3.getIndexOfCommodity((int) flows.getValueAt(row, "sctg2"))];
+            if (tradeType == 1) faf3.writeDomesticFlow(modeNumber, value, row, writer);
+            else if (tradeType == 2) faf3.writeImportFlow(modeNumber, value, row, writer, format);
+            else if (tradeType == 3) faf3.writeExportFlow(modeNumber, value, row, writer, format);
+            else if (tradeType == 4) faf3.writeThroughFlow(modeNumber, value, row, writer, format);
+            else logger.info("Invalid trade_type in FAF3 dataset in row " + row + ": " + tradeType);
+        }
+        for (int cm: readFAF3.sctgCommodities) writers[faf3.getIndexOfCommodity(cm)].close();
+    }
+
+
+    private void put (ArrayBlockingQueue<flow[]> queue, flow[] batch) {
+        // wait for space in queue, give up if a consumer failed
+        try {
+            while (!queue.offer(batch, 1, TimeUnit.SECONDS)) {
+                if (failure != null) throw new RuntimeException("Consumer of FAF3 flows failed");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+
+    private flow[] take (ArrayBlockingQueue<flow[]> queue) throws InterruptedException {
+        // wait for next batch, give up if extraction or another consumer failed
+        flow[] batch;
+        while ((batch = queue.poll(1, TimeUnit.SECONDS)) == null) {
+            if (failure != null) throw new RuntimeException("Extraction of FAF3 flows failed");
+        }
+        return batch;
+    }
+
+
+    private synchronized void fail (Throwable e) {
+        if (failure == null) {
+            logger.error("In-memory extraction of FAF3 flows failed: " + e);
+            failure = e;
+        }
+    }
+
+
+    public interface flowConsumer {
+        void accept(int sctgCommodity, flow f);
+    }
+
+
+    public static class flow {
+        public final int orig;
+        public final int dest;
+        public final String direction;
+        public final float shortTons;
+
+        private flow(int orig, int dest, String direction, float shortTons) {
+            this.orig = orig;
+            this.dest = dest;
+            this.direction = direction;
+            this.shortTons = shortTons;
+        }
+    }
+
+
+    private class lineParser extends Writer {
+        // parses lines originFAF,destinationFAF,flowDirection,SCTG_commodity,shortTons into flows, values are parsed
+        // as floats like a csv reader would read them
+        private final ArrayBlockingQueue<flow[]> queue;
+        private final PrintWriter debugWriter;
+        private final StringBuilder line = new StringBuilder();
+        private flow[] batch = new flow[BATCH_SIZE];
+        private int size;
+
+        private lineParser(ArrayBlockingQueue<flow[]> queue, PrintWriter debugWriter) {
+            this.queue = queue;
+            this.debugWriter = debugWriter;
+        }
+
+        @Override
+        public void write(char[] buffer, int offset, int length) {
+            for (int i = offset; i < offset + length; i++) {
+                if (buffer[i] == '\n') {
+                    parseLine();
+                } else if (buffer[i] != '\r') {
+                    line.append(buffer[i]);
+                }
+            }
+        }
+
+        private void parseLine() {
+            if (debugWriter != null) debugWriter.println(line);
+            String[] fields = line.toString().split(",");
+            line.setLength(0);
+            batch[size++] = new flow((int) Float.parseFloat(fields[0]), (int) Float.parseFloat(fields[1]), fields[2],
+                    Float.parseFloat(fields[4]));
+            if (size == BATCH_SIZE) {
+                put(queue, batch);
+                batch = new flow[BATCH_SIZE];
+                size = 0;
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+            if (line.length() > 0) parseLine();
+            if (size > 0) put(queue, Arrays.copyOf(batch, size));
+            put(queue, END);
+            if (debugWriter != null) debugWriter.close();
+        }
+    }
+}
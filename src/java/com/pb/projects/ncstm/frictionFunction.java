@@ -0,0 +1,74 @@
+package com.pb.projects.ncstm;
+
+import com.pb.common.util.ResourceUtil;
+import org.apache.log4j.Logger;
+
+import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Exponential friction function exp(gamma * distance) for the North Carolina Statewide Model (NCSTM). If a resolution
+ * is given, the function is tabulated once per gamma from 0 to maxDistance in steps of resolution miles and values
+ * are interpolated linearly, so that gravity models read an array instead of calling Math.exp for every cell. The
+ * relative interpolation error is about (gamma * resolution)^2 / 8 plus float rounding, e.g. 1e-6 for gamma = -0.25
+ * and a resolution of 0.01 miles. Distances outside the table, and all distances if resolution is 0, are calculated
+ * exactly.
+ *
+ * Tables are shared between all users of the same gamma, resolution and maxDistance in the JVM.
+ */
+public class frictionFunction {
+
+    static Logger logger = Logger.getLogger(frictionFunction.class);
+    private static final ConcurrentHashMap<String, frictionFunction> functions = new ConcurrentHashMap<>();
+    private final double gamma;
+    private final float resolution;
+    private final float maxDistance;
+    private final float[] table;
+
+
+    private frictionFunction (double gamma, float resolution, float maxDistance) {
+        // Constructor
+        this.gamma = gamma;
+        this.resolution = resolution;
+        this.maxDistance = maxDistance;
+        if (resolution > 0) {
+            table = new float[(int) Math.ceil(maxDistance / resolution) + 2];
+            for (int i = 0; i < table.length; i++) table[i] = (float) Math.exp(gamma * i * (double) resolution);
+        } else {
+            table = null;
+        }
+    }
+
+
+    public static frictionFunction get (double gamma, float resolution, float maxDistance) {
+        // return shared friction function for gamma
+        return functions.computeIfAbsent(gamma + "/" + resolution + "/" + maxDistance,
+                key -> new frictionFunction(gamma, resolution, maxDistance));
+    }
+
+
+    public static frictionFunction get (ResourceBundle rb, double gamma, float maxDistance) {
+        // return shared friction function with resolution set by friction.lookup.resolution (default 0: exact)
+        return get(gamma, getResolution(rb), maxDistance);
+    }
+
+
+    public static float getResolution (ResourceBundle rb) {
+        return (float) ResourceUtil.getDoubleProperty(rb, "friction.lookup.resolution", 0);
+    }
+
+
+    public double getGamma () {
+        return gamma;
+    }
+
+
+    public float getFriction (float distance) {
+        // return exp(gamma * distance)
+        if (table == null || !(distance >= 0) || distance >= maxDistance) return (float) Math.exp(gamma * distance);
+        double position = distance / (double) resolution;
+        int i = (int) position;
+        double weight = position - i;
+        return (float) (table[i] + weight * (table[i + 1] - table[i]));
+    }
+}
@@ -0,0 +1,124 @@
+package com.pb.projects.ncstm;
+
+import com.pb.common.datafile.TableDataSet;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Asynchronous loader of input files for the North Carolina Statewide Model (NCSTM). Every input is read on its own
+ * thread and returned as a Future. A file requested more than once is read only once. When all inputs are in,
+ * logTimings() reports how long each file took and how much wall-clock time the concurrent loading saved.
+ */
+public class inputLoader {
+
+    static Logger logger = Logger.getLogger(inputLoader.class);
+    private final ExecutorService executor;
+    private final ConcurrentHashMap<String, Future<?>> loads = new ConcurrentHashMap<>();
+    private final List<loadTiming> timings = new ArrayList<>();
+    private final long startTime;
+
+
+    public inputLoader () {
+        // Constructor
+        executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "inputLoader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        startTime = System.currentTimeMillis();
+    }
+
+
+    public Future<TableDataSet> readTable (String fileName) {
+        // read csv file into a TableDataSet that is owned by the caller
+        return submit(getKey(fileName), fileName, () -> ncstmUtil.importTable(fileName));
+    }
+
+
+    public Future<TableDataSet> readSharedTable (String fileName) {
+        // read csv file into a TableDataSet that is shared between model runs and must not be changed
+        return submit("shared " + getKey(fileName), fileName, () -> ncstmUtil.importSharedTable(fileName));
+    }
+
+
+    public static String getKey (String fileName) {
+        // files are identified by their absolute path, so that different spellings of one path are read only once
+        return new File(fileName).getAbsolutePath();
+    }
+
+
+    @SuppressWarnings("unchecked")
+    public <T> Future<T> submit (String key, String description, Callable<T> task) {
+        // start task on its own thread, unless a task with the same key has been submitted before
+        return (Future<T>) loads.computeIfAbsent(key, k -> executor.submit(() -> {
+            long start = System.currentTimeMillis();
+            T result = task.call();
+            synchronized (timings) {
+                timings.add(new loadTiming(description, start - startTime, System.currentTimeMillis() - start));
+            }
+            return result;
+        }));
+    }
+
+
+    public static <T> T get (Future<T> load) {
+        // wait for load to finish and pass on any exception thrown while loading
+        try {
+            return load.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while loading input data", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new RuntimeException("Could not load input data", e.getCause());
+        }
+    }
+
+
+    public void logTimings () {
+        // report start and duration of every load, sorted by start time
+        long wallTime = System.currentTimeMillis() - startTime;
+        long sumTime = 0;
+        List<loadTiming> sorted;
+        synchronized (timings) {
+            sorted = new ArrayList<>(timings);
+        }
+        sorted.sort(Comparator.comparingLong(t -> t.start));
+        logger.info("  Input loading times (seconds):");
+        logger.info(String.format("  %8s %8s  %s", "start", "duration", "input"));
+        for (loadTiming t: sorted) {
+            logger.info(String.format("  %8.1f %8.1f  %s", t.start / 1000f, t.duration / 1000f, t.description));
+            sumTime += t.duration;
+        }
+        logger.info(String.format("  Read %d files in %.1f seconds, %.1f seconds if read one after another",
+                sorted.size(), wallTime / 1000f, sumTime / 1000f));
+    }
+
+
+    public void shutdown () {
+        executor.shutdown();
+    }
+
+
+    private static class loadTiming {
+        private final String description;
+        private final long start;
+        private final long duration;
+
+        private loadTiming (String description, long start, long duration) {
+            this.description = description;
+            this.start = start;
+            this.duration = duration;
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package com.pb.projects.ncstm;
+
+import com.pb.common.util.ResourceUtil;
+import com.pb.sawdust.util.concurrent.DnCRecursiveAction;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ResourceBundle;
+
+/**
+ * Furness (IPF) balancer for the North Carolina Statewide Model (NCSTM) that works on primitive arrays, either dense
+ * float[][] or sparseMatrix. Every iteration scales rows to their targets first and columns to their targets second,
+ * both passes are split across the shared fork-join pool of ForkJoinPoolFactory. If balance is called from a task
+ * that already runs in a fork-join pool (e.g. when several classes are balanced at the same time), the passes run in
+ * that pool and the calling worker helps with them instead of waiting. Balancing stops as soon as all row totals are within
+ * maxRelativeError of their targets (column totals are exact after every iteration) or after maxIterations.
+ *
+ * The residuals of every iteration are logged, and are appended to the csv file set by balancer.residual.file:
+ *   matrix,iteration,rowResidual,columnResidual
+ * where rowResidual is the largest relative deviation of a row total after the iteration, and columnResidual the
+ * largest relative deviation of a column total before the column pass of the iteration.
+ *
+ * An instance holds settings only and may balance several matrices at the same time.
+ */
+public class matrixBalancer {
+
+    static Logger logger = Logger.getLogger(matrixBalancer.class);
+    public enum adjustment {none, bothUsingAverage}
+    private static final Object residualFileLock = new Object();
+    private final double maxRelativeError;
+    private final int maxIterations;
+    private final adjustment adjust;
+    private final String residualFile;
+
+
+    public matrixBalancer (double maxRelativeError, int maxIterations, adjustment adjust, String residualFile) {
+        // Constructor
+        this.maxRelativeError = maxRelativeError;
+        this.maxIterations = maxIterations;
+        this.adjust = adjust;
+        this.residualFile = residualFile;
+    }
+
+
+    public static matrixBalancer create (ResourceBundle rb, double defaultMaxRelativeError, adjustment adjust) {
+        // create balancer with maximum number of iterations, error target and residual file set in properties
+        return new matrixBalancer(
+                ResourceUtil.getDoubleProperty(rb, "balancer.max.relative.error", defaultMaxRelativeError),
+                ResourceUtil.getIntegerProperty(rb, "balancer.max.iterations", 10), adjust,
+                ResourceUtil.getProperty(rb, "balancer.residual.file", null));
+    }
+
+
+    public matrixBalancer withoutResidualFile () {
+        // return balancer with the same settings that does not append residuals to a file
+        return new matrixBalancer(maxRelativeError, maxIterations, adjust, null);
+    }
+
+
+    public static boolean useNativeBalancer (ResourceBundle rb) {
+        // true if matrixBalancer shall be used in place of MatrixBalancerRM of common-base
+        return ResourceUtil.getBooleanProperty(rb, "balancer.native", false);
+    }
+
+
+    public int balance (String name, float[][] values, float[] rowTargets, float[] columnTargets) {
+        // balance dense matrix values in place, return number of iterations run
+        return balance(new balancing(name, values, null, rowTargets, columnTargets));
+    }
+
+
+    public int balance (String name, sparseMatrix matrix, float[] rowTargets, float[] columnTargets) {
+        // balance non-zero cells of sparse matrix in place, return number of iterations run
+        return balance(new balancing(name, null, matrix, rowTargets, columnTargets));
+    }
+
+
+    private int balance (balancing b) {
+        long startTime = System.currentTimeMillis();
+        adjustTargets(b);
+        double[][] residuals = new double[maxIterations][];
+        int iteration = 0;
+        double rowResidual = Double.POSITIVE_INFINITY;
+        while (iteration < maxIterations && rowResidual > maxRelativeError) {
+            ncstmUtil.runAction(new PassAction(b, pass.scaleRows, b.rows));
+            if (b.dense != null) ncstmUtil.runAction(new PassAction(b, pass.sumColumns, b.columns));
+            else b.sumSparseColumns();
+            double columnResidual = b.setColumnFactors();
+            ncstmUtil.runAction(new PassAction(b, pass.scaleColumns, b.rows));
+            rowResidual = b.getRowResidual();
+            residuals[iteration++] = new double[]{rowResidual, columnResidual};
+        }
+        report(b.name, residuals, iteration, rowResidual, System.currentTimeMillis() - startTime);
+        return iteration;
+    }
+
+
+    private void adjustTargets (balancing b) {
+        // scale row and column targets to their average total, if requested
+        if (adjust == adjustment.none) return;
+        double rowTotal = 0;
+        double columnTotal = 0;
+        for (float target: b.rowTargets) rowTotal += target;
+        for (float target: b.columnTargets) columnTotal += target;
+        double average = (rowTotal + columnTotal) / 2;
+        b.rowTargets = b.rowTargets.clone();
+        b.columnTargets = b.columnTargets.clone();
+        if (rowTotal != 0) for (int i = 0; i < b.rows; i++) b.rowTargets[i] *= average / rowTotal;
+        if (columnTotal != 0) for (int j = 0; j < b.columns; j++) b.columnTargets[j] *= average / columnTotal;
+    }
+
+
+    private void report (String name, double[][] residuals, int iterations, double rowResidual, long time) {
+        // log residuals of every iteration and append them to residual file
+        StringBuilder history = new StringBuilder();
+        for (int i = 0; i < iterations; i++) history.append(i == 0 ? "" : ", ").append(String.format("%.2e", residuals[i][0]));
+        String summary = "  Balanced " + name + " in " + iterations + " iterations and " +
+                ncstmUtil.rounder(time / 1000f, 1) + " seconds, row residuals: " + history;
+        if (rowResidual > maxRelativeError) logger.warn(summary + " (target of " + maxRelativeError + " not met)");
+        else logger.info(summary);
+        if (residualFile == null || residualFile.isEmpty()) return;
+        synchronized (residualFileLock) {
+            boolean newFile = !new File(residualFile).exists();
+            try (PrintWriter pw = new PrintWriter(new FileWriter(residualFile, true))) {
+                if (newFile) pw.println("matrix,iteration,rowResidual,columnResidual");
+                for (int i = 0; i < iterations; i++)
+                    pw.format("%s,%d,%.6e,%.6e%n", name, i + 1, residuals[i][0], residuals[i][1]);
+            } catch (IOException e) {
+                logger.warn("  Could not write balancing residuals to " + residualFile + ": " + e.getMessage());
+            }
+        }
+    }
+
+
+    private enum pass {scaleRows, sumColumns, scaleColumns}
+
+
+    private static class balancing {
+        // state of one balancing run
+        private final String name;
+        private final float[][] dense;
+        private final sparseMatrix sparse;
+        private final int rows;
+        private final int columns;
+        private float[] rowTargets;
+        private float[] columnTargets;
+        private final double[] rowSums;
+        private final double[] columnSums;
+        private final float[] columnFactors;
+
+        private balancing (String name, float[][] dense, sparseMatrix sparse, float[] rowTargets, float[] columnTargets) {
+            this.name = name;
+            this.dense = dense;
+            this.sparse = sparse;
+            this.rows = rowTargets.length;
+            this.columns = columnTargets.length;
+            this.rowTargets = rowTargets;
+            this.columnTargets = columnTargets;
+            rowSums = new double[rows];
+            columnSums = new double[columns];
+            columnFactors = new float[columns];
+        }
+
+        private double getRowSum (int row) {
+            double sum = 0;
+            if (dense != null) for (float value: dense[row]) sum += value;
+            else sum = sparse.getRowSum(row);
+            return sum;
+        }
+
+        private void scaleRows (int first, int end) {
+            for (int row = first; row < end; row++) {
+                double sum = getRowSum(row);
+                if (sum <= 0) continue;
+                float factor = (float) (rowTargets[row] / sum);
+                if (dense != null) {
+                    float[] values = dense[row];
+                    for (int col = 0; col < values.length; col++) values[col] *= factor;
+                } else {
+                    for (int k = sparse.getFirst(row); k < sparse.getEnd(row); k++)
+                        sparse.setValue(k, sparse.getValue(k) * factor);
+                }
+            }
+        }
+
+        private void sumColumns (int first, int end) {
+            // dense matrices only, every task sums a block of columns
+            for (int col = first; col < end; col++) columnSums[col] = 0;
+            for (float[] values: dense) {
+                for (int col = first; col < end; col++) columnSums[col] += values[col];
+            }
+        }
+
+        private void sumSparseColumns () {
+            double[] sums = sparse.getColumnSums();
+            System.arraycopy(sums, 0, columnSums, 0, columns);
+        }
+
+        private double setColumnFactors () {
+            // set column factors and return largest relative deviation of a column total from its target
+            double residual = 0;
+            for (int col = 0; col < columns; col++) {
+                if (columnSums[col] > 0) {
+                    columnFactors[col] = (float) (columnTargets[col] / columnSums[col]);
+                    if (columnTargets[col] > 0) residual = Math.max(residual, Math.abs(columnSums[col] / columnTargets[col] - 1));
+                } else {
+                    columnFactors[col] = 1;
+                }
+            }
+            return residual;
+        }
+
+        private void scaleColumns (int first, int end) {
+            // scale rows first to end - 1 by column factors and keep new row totals
+            for (int row = first; row < end; row++) {
+                double sum = 0;
+                if (dense != null) {
+                    float[] values = dense[row];
+                    for (int col = 0; col < values.length; col++) {
+                        values[col] *= columnFactors[col];
+                        sum += values[col];
+                    }
+                } else {
+                    for (int k = sparse.getFirst(row); k < sparse.getEnd(row); k++) {
+                        float value = sparse.getValue(k) * columnFactors[sparse.getColumn(k)];
+                        sparse.setValue(k, value);
+                        sum += value;
+                    }
+                }
+                rowSums[row] = sum;
+            }
+        }
+
+        private double getRowResidual () {
+            // return largest relative deviation of a row total from its target
+            double residual = 0;
+            for (int row = 0; row < rows; row++) {
+                if (rowSums[row] > 0 && rowTargets[row] > 0)
+                    residual = Math.max(residual, Math.abs(rowSums[row] / rowTargets[row] - 1));
+            }
+            return residual;
+        }
+    }
+
+
+    private static class PassAction extends DnCRecursiveAction {
+        private final balancing b;
+        private final pass type;
+
+        private PassAction(balancing b, pass type, int length) {
+            super(0, length);
+            this.b = b;
+            this.type = type;
+        }
+
+        private PassAction(balancing b, pass type, long start, long length, DnCRecursiveAction next) {
+            super(start, length, next);
+            this.b = b;
+            this.type = type;
+        }
+
+        @Override
+        protected void computeAction(long start, long length) {
+            int first = (int) start;
+            int end = (int) (start + length);
+            if (type == pass.scaleRows) b.scaleRows(first, end);
+            else if (type == pass.sumColumns) b.sumColumns(first, end);
+            else b.scaleColumns(first, end);
+        }
+
+        @Override
+        protected DnCRecursiveAction getNextAction(long start, long length, DnCRecursiveAction next) {
+            return new PassAction(b, type, start, length, next);
+        }
+
+        @Override
+        protected boolean continueDividing(long length) {
+            return getSurplusQueuedTaskCount() < 3 && length > 1;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.pb.projects.ncstm;
+
+import com.pb.projects.ncstm.mpoTrucks.mpoData;
+
+import java.util.EnumSet;
+import java.util.ResourceBundle;
+
+/**
+ * Context of a single model run for the North Carolina Statewide Model (NCSTM). A context bundles the properties, the
+ * model year and the data set of one run. Model components read their inputs from the context rather than from static
+ * fields, so that several years or scenarios can be run side by side in one JVM. Read-only inputs that do not depend
+ * on year or scenario, such as trip rates and distribution centers, are shared between contexts.
+ */
+public class modelContext {
+
+    private final ResourceBundle appRb;
+    private final int year;
+    private final ncstmData data;
+    private final mpoData mpoData;
+
+
+    private modelContext (ResourceBundle appRb, int year, ncstmData data, mpoData mpoData) {
+        // Constructor
+        this.appRb = appRb;
+        this.year = year;
+        this.data = data;
+        this.mpoData = mpoData;
+    }
+
+
+    public static modelContext loadStatewide (ResourceBundle rb, int year, EnumSet<ncstmData.inputGroup> groups) {
+        // read zonal data, trip rates and the input groups of the statewide model. Other groups are read on first use
+        ncstmData data = new ncstmData();
+        data.readInputs(rb, year, groups);
+        return new modelContext(rb, year, data, null);
+    }
+
+
+    public static modelContext loadMpo (ResourceBundle rb, int year) {
+        // read zonal data and trip rates of the MPO truck model
+        mpoData data = new mpoData();
+        data.readZonalData(rb, year);
+        data.readTripRates(rb);
+        return new modelContext(rb, year, null, data);
+    }
+
+
+    public ResourceBundle getResourceBundle () {
+        return appRb;
+    }
+
+
+    public int getYear () {
+        return year;
+    }
+
+
+    public ncstmData getData () {
+        if (data == null) throw new RuntimeException("Model context for year " + year + " holds no statewide data");
+        return data;
+    }
+
+
+    public mpoData getMpoData () {
+        if (mpoData == null) throw new RuntimeException("Model context for year " + year + " holds no MPO data");
+        return mpoData;
+    }
+}
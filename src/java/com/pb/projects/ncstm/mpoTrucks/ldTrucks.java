@@ -7,7 +7,14 @@ import com.pb.common.matrix.MatrixBalancerRM;
 import com.pb.common.matrix.RowVector;
 import com.pb.common.util.ResourceUtil;
 import com.pb.models.processFAF.*;
+import com.pb.projects.ncstm.binaryMatrixWriter;
+import com.pb.projects.ncstm.fafFlowCache;
+import com.pb.projects.ncstm.fafFlowPipeline;
+import com.pb.projects.ncstm.frictionFunction;
+import com.pb.projects.ncstm.matrixBalancer;
+import com.pb.projects.ncstm.modelContext;
 import com.pb.projects.ncstm.ncstmUtil;
+import com.pb.projects.ncstm.sparseFlowStore;
 import com.pb.sawdust.util.concurrent.DnCRecursiveAction;
 import org.apache.log4j.Logger;
 
@@ -33,15 +40,17 @@ public class ldTrucks {
 //    private String[] industries;
     private double [][] sutTrucks;
     private double [][] mutTrucks;
-    private HashMap<String, float[][]> cntFlows;
+    private HashMap<String, sparseFlowStore> cntFlows;
     private int[] countyFips;
     private int[] countyFipsIndex;
+    private fafFlowPipeline truckFlows;
+    private fafFlowCache flowCache;
 
 
-    public ldTrucks (ResourceBundle rp, int year) {
+    public ldTrucks (modelContext context) {
         // Constructor
-        this.appRb = rp;
-        this.year = year;
+        this.appRb = context.getResourceBundle();
+        this.year = context.getYear();
     }
 
 
@@ -74,7 +83,15 @@ public class ldTrucks {
         logger.info("Extracting FAF3 data for modes truck, rail, water and air");
         HashMap<String, Float> scaler = getScaler();
         String truckFileName = ResourceUtil.getProperty(appRb, "temp.truck.flows.faf.zones") + "_" + year;
-        faf3.writeFlowsByModeAndCommodity(truckFileName, modesFAF3.Truck, reportFormat.internat_domesticPart, scaler);
+        if (fafFlowPipeline.useInMemoryExtraction(appRb)) {
+            // truck flows are extracted while they are disaggregated
+            truckFlows = fafFlowPipeline.create(appRb, faf3, modesFAF3.Truck, reportFormat.internat_domesticPart,
+                    scaler, truckFileName);
+        } else {
+            faf3.writeFlowsByModeAndCommodity(truckFileName, modesFAF3.Truck, reportFormat.internat_domesticPart, scaler);
+            if (fafFlowCache.useCache(appRb)) fafFlowCache.build(appRb, year, truckFileName, modesFAF3.Truck.toString(),
+                    reportFormat.internat_domesticPart.toString());
+        }
         String railFileName = ResourceUtil.getProperty(appRb, "temp.rail.flows.faf.zones") + "_" + year;
         faf3.writeFlowsByModeAndCommodity(railFileName, modesFAF3.Rail, reportFormat.internatOrigToBorderToDest, scaler);
         String waterFileName = ResourceUtil.getProperty(appRb, "temp.water.flows.faf.zones") + "_" + year;
@@ -122,18 +139,33 @@ public class ldTrucks {
         int matrixSize = countyFips.length;
         cntFlows = new HashMap<>();
 
-        float globalScale = (float) ResourceUtil.getDoubleProperty(appRb, "master.scaling.factor.truck");
+        final float globalScale = (float) ResourceUtil.getDoubleProperty(appRb, "master.scaling.factor.truck");
 
         // regular method
         for (String com: commodities) {
-            float[][] dummy = new float[matrixSize][matrixSize];
+            sparseFlowStore dummy = new sparseFlowStore(matrixSize);
             cntFlows.put(com, dummy);
         }
 
-        java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool();
+        if (truckFlows != null) {
+            // one consumer per commodity reads flows from the in-memory extraction
+            truckFlows.run(new fafFlowPipeline.flowConsumer() {
+                public void accept(int cm, fafFlowPipeline.flow f) {
+                    if (f.shortTons == 0) return;
+                    String sctg = readFAF3.getSCTGname(cm);
+                    disaggregateFlow(cntFlows.get(sctg), sctg, f.orig, f.dest, f.direction, f.shortTons, globalScale);
+                }
+            });
+            truckFlows = null;
+            return;
+        }
+        flowCache = null;
+        if (fafFlowCache.useCache(appRb)) flowCache = fafFlowCache.get(appRb, year,
+                ResourceUtil.getProperty(appRb, "temp.truck.flows.faf.zones") + "_" + year, modesFAF3.Truck.toString(),
+                reportFormat.internat_domesticPart.toString());
+
         DnCRecursiveAction action = new DissaggregateFafAction(globalScale);
-        pool.execute(action);
-        action.getResult();
+        ncstmUtil.runAction(action);
     }
 
 
@@ -161,30 +193,23 @@ public class ldTrucks {
                 logger.info("  - Working on " + fileName);
                 float sm = 0;
                 String sctg = readFAF3.getSCTGname(cm);
-                float[][] values = cntFlows.get(sctg);
+                sparseFlowStore values = cntFlows.get(sctg);
+                if (flowCache != null) {
+                    fafFlowCache.commodityFlows flows = flowCache.getFlows(cm);
+                    for (int i = 0; flows != null && i < flows.size(); i++) {
+                        if (flows.getShortTons(i) == 0) continue;
+                        sm += disaggregateFlow(values, sctg, flows.getOrigin(i), flows.getDestination(i),
+                                flows.getDirection(i), flows.getShortTons(i), globalScale);
+                    }
+                    continue;
+                }
                 TableDataSet tblFlows = fafUtils.importTable(fileName);
                 for (int row = 1; row <= tblFlows.getRowCount(); row++) {
                     float shortTons = tblFlows.getValueAt(row, "shortTons");
                     if (shortTons == 0) continue;
-                    String dir = tblFlows.getStringValueAt(row, "flowDirection");
-                    int orig = (int) tblFlows.getValueAt(row, "originFAF");
-                    int dest = (int) tblFlows.getValueAt(row, "destinationFAF");
-                    TableDataSet singleFlow;
-                    if (dir.equals("import") || dir.equals("export")) {
-                        TableDataSet poe;
-                        if (dir.equals("import")) poe = readFAF3.getPortsOfEntry(orig);
-                        else poe = readFAF3.getPortsOfEntry(dest);
-                        singleFlow = df.disaggregateSingleFAF3flowThroughPOE(dir, poe, orig, dest, sctg, shortTons, 1);
-                    } else singleFlow = df.disaggregateSingleFAF3flow(orig, dest, sctg, shortTons, 1);
-                    for (int i = 1; i <= singleFlow.getRowCount(); i++) {
-                        int oFips = (int) singleFlow.getValueAt(i, "oFips");
-                        int oZone = getCountyId(oFips);
-                        int dFips = (int) singleFlow.getValueAt(i, "dFips");
-                        int dZone = getCountyId(dFips);
-                        float thisFlow = singleFlow.getValueAt(i, "Tons") * globalScale;
-                        values[oZone][dZone] += thisFlow;
-                        sm = sm + thisFlow;
-                    }
+                    sm += disaggregateFlow(values, sctg, (int) tblFlows.getValueAt(row, "originFAF"),
+                            (int) tblFlows.getValueAt(row, "destinationFAF"),
+                            tblFlows.getStringValueAt(row, "flowDirection"), shortTons, globalScale);
                 }
 //                logger.info("     Processed " + sm + " tons");
             }
@@ -202,6 +227,30 @@ public class ldTrucks {
     }
 
 
+    private float disaggregateFlow(sparseFlowStore values, String sctg, int orig, int dest, String dir, float shortTons,
+                                   float globalScale) {
+        // disaggregate a single FAF flow to counties, add it to values and return the tons added
+        float sm = 0;
+        TableDataSet singleFlow;
+        if (dir.equals("import") || dir.equals("export")) {
+            TableDataSet poe;
+            if (dir.equals("import")) poe = readFAF3.getPortsOfEntry(orig);
+            else poe = readFAF3.getPortsOfEntry(dest);
+            singleFlow = df.disaggregateSingleFAF3flowThroughPOE(dir, poe, orig, dest, sctg, shortTons, 1);
+        } else singleFlow = df.disaggregateSingleFAF3flow(orig, dest, sctg, shortTons, 1);
+        for (int i = 1; i <= singleFlow.getRowCount(); i++) {
+            int oFips = (int) singleFlow.getValueAt(i, "oFips");
+            int oZone = getCountyId(oFips);
+            int dFips = (int) singleFlow.getValueAt(i, "dFips");
+            int dZone = getCountyId(dFips);
+            float thisFlow = singleFlow.getValueAt(i, "Tons") * globalScale;
+            values.add(oZone, dZone, thisFlow);
+            sm = sm + thisFlow;
+        }
+        return sm;
+    }
+
+
     private int getCountyId(int fips) {
         // Return region code of regName
         return countyFipsIndex[fips];
@@ -219,19 +268,23 @@ public class ldTrucks {
         float adjustmentSUT = (float) ResourceUtil.getDoubleProperty(appRb, "percent.adjustment.sut", 0f);
         sutTrucks = new double[countyFips.length][countyFips.length];
         mutTrucks = new double[countyFips.length][countyFips.length];
+        int[] destinations = new int[countyFips.length];
+        float[] flows = new float[countyFips.length];
         for (String com: readFAF3.sctgStringCommodities) {
             double avPayload = fafUtils.findAveragePayload(com, "SCTG");
             double sutPL = sutMultiplier * avPayload;
             double mutPL = mutMultiplier * avPayload;
-            float[][] tonFlows = cntFlows.get(com);
+            sparseFlowStore tonFlows = cntFlows.get(com);
             for (int i: countyFips) {
-                for (int j: countyFips) {
+                int orig = getCountyId(i);
+                int nonZeros = tonFlows.getRow(orig, destinations, flows);
+                for (int k = 0; k < nonZeros; k++) {
+                    if (flows[k] == 0) continue;
+                    int dest = destinations[k];
+                    int j = countyFips[dest];
                     float dist = df.getCountyDistance(i, j);
                     if (dist < 0 || dist < minDist) continue;  // skip flows to Guam, Puerto Rico, Hawaii, Alaskan Islands etc.
-                    int orig = getCountyId(i);
-                    int dest = getCountyId(j);
-                    if (tonFlows[orig][dest] == 0) continue;
-                    double[] trucksByType = df.getTrucksByType(dist, sutPL, mutPL, tonFlows[orig][dest], adjustmentSUT);
+                    double[] trucksByType = df.getTrucksByType(dist, sutPL, mutPL, flows[k], adjustmentSUT);
                     // Annual cntFlows divided by 365.25 days plus AAWDT-over-AADT factor
                     trucksByType[0] = trucksByType[0] / 365.25f * (1 + (aawdtFactor / 100));
                     trucksByType[1] = trucksByType[1] / 365.25f * (1 + (aawdtFactor / 100));
@@ -313,11 +366,28 @@ public class ldTrucks {
                 emptyTruckDest.setValueAt(zones[zn], 0f);
             }
         }
+        frictionFunction frictionFn = frictionFunction.get(appRb, -0.001, 5000);
+        if (matrixBalancer.useNativeBalancer(appRb)) {
+            float[][] friction = new float[zones.length][zones.length];
+            float[] origins = new float[zones.length];
+            float[] destinations = new float[zones.length];
+            for (int o = 0; o < zones.length; o++) {
+                for (int d = 0; d < zones.length; d++)
+                    friction[o][d] = frictionFn.getFriction(df.getCountyDistance(zones[o], zones[d]));
+                origins[o] = emptyTruckOrig.getValueAt(zones[o]);
+                destinations[o] = emptyTruckDest.getValueAt(zones[o]);
+            }
+            matrixBalancer.create(appRb, 0.001, matrixBalancer.adjustment.bothUsingAverage).balance("empty trucks",
+                    friction, origins, destinations);
+            Matrix empties = new Matrix("empty trucks", "empty trucks", friction);
+            empties.setExternalNumbersZeroBased(zones);
+            return empties;
+        }
         Matrix seed = new Matrix(zones.length, zones.length);
         seed.setExternalNumbersZeroBased(zones);
         for (int o: zones) {
             for (int d: zones) {
-                float friction = (float) Math.exp(-0.001 * df.getCountyDistance(o, d));
+                float friction = frictionFn.getFriction(df.getCountyDistance(o, d));
                 seed.setValueAt(o, d, friction);
             }
         }
@@ -331,6 +401,17 @@ public class ldTrucks {
         // write out disaggregated truck trips
 
         String fileName = appRb.getString("county.truck.flows") + "_" + year + ".csv";
+        if (binaryMatrixWriter.writeBinary(appRb)) {
+            float[][][] trips = new float[2][countyFips.length][countyFips.length];
+            for (int i = 0; i < countyFips.length; i++) {
+                for (int j = 0; j < countyFips.length; j++) {
+                    trips[0][i][j] = (float) sutTrucks[getCountyId(countyFips[i])][getCountyId(countyFips[j])];
+                    trips[1][i][j] = (float) mutTrucks[getCountyId(countyFips[i])][getCountyId(countyFips[j])];
+                }
+            }
+            binaryMatrixWriter.write(appRb, fileName, countyFips, new String[]{"sut", "mut"}, trips);
+        }
+        if (!binaryMatrixWriter.writeCsv(appRb)) return;
         logger.info("  Writing results to file " + fileName);
         PrintWriter pw = fafUtils.openFileForSequentialWriting(fileName);
         pw.println("OrigFips,DestFips,sut,mut");
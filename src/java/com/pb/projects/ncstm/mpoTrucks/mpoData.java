@@ -5,34 +5,39 @@ import com.pb.common.matrix.Matrix;
 import com.pb.common.matrix.MatrixReader;
 import com.pb.common.matrix.MatrixType;
 import com.pb.common.util.ResourceUtil;
+import com.pb.projects.ncstm.csvSkimReader;
 import com.pb.projects.ncstm.ncstmUtil;
-import com.pb.projects.ncstm.mpoTrucks.producePAs;
+import com.pb.projects.ncstm.skimMatrix;
+import com.pb.projects.ncstm.zoneAttributes;
 
 import java.io.File;
 import java.util.ResourceBundle;
 
 /**
- * Data set for model to simulate truck flows for the North Carolina Statewide Model (NCSTM)
+ * Data set for model to simulate truck flows for the North Carolina Statewide Model (NCSTM). Every model run owns
+ * its own instance (see modelContext).
  * Author: Rolf Moeckel, PB Albuquerque
  * Data: 29 July 2011
  */
 public class mpoData {
 
     static org.apache.log4j.Logger logger = org.apache.log4j.Logger.getLogger(mpoData.class);
-    private static TableDataSet zonalSystem,prodAndAttr,extTrkTrips,extStations,tripRates,centroids,seData,hotelRooms,hospitals,parkVisitors;
-    private static Matrix truckDistance;
-    private static Matrix autoTime;
-    private static Matrix autoDistance;
-    private static int numberOfZones;
+    private TableDataSet zonalSystem,prodAndAttr,extTrkTrips,extStations,tripRates,centroids,seData,hotelRooms,hospitals,parkVisitors;
+    private skimMatrix truckDistance;
+    private skimMatrix autoTime;
+    private skimMatrix autoDistance;
+    private int numberOfZones;
+    private zoneAttributes seAttributes;
 
 
-    public static void readZonalData (ResourceBundle rb, int year) {
+    public void readZonalData (ResourceBundle rb, int year) {
         // read zonal data
         zonalSystem = ncstmUtil.importTable(rb.getString("zonal.system"));
         zonalSystem.buildIndex(zonalSystem.getColumnPosition("TAZ"));
 
         seData = ncstmUtil.importTable(rb.getString("socio.economic.data.file"));
         seData.buildIndex(seData.getColumnPosition("TAZ"));
+        seAttributes = new zoneAttributes(seData, "TAZ", "socio-economic data");
         String fileName = rb.getString("zonal.system");
         zonalSystem = ncstmUtil.importTable(fileName);
         
@@ -51,18 +56,18 @@ public class mpoData {
     }
 
 
-    public static int[] getZones () {
+    public int[] getZones () {
         // return int array with zone IDs
         return zonalSystem.getColumnAsInt("TAZ");
     }
     
-    public static int[] getCentroids(String column) {
+    public int[] getCentroids(String column) {
         // return int array with centroids
         return centroids.getColumnAsInt(column);
     }
 
 
-    public static boolean applyR3logit (int taz) {
+    public boolean applyR3logit (int taz) {
         // Find out if mode split is modeled for this zone (applies mostly to zones east of the Mississippi
 
         for (int row = 1; row <= zonalSystem.getRowCount(); row++) {
@@ -74,7 +79,7 @@ public class mpoData {
     }
 
 
-    public static int getNumberOfZones() {
+    public int getNumberOfZones() {
         return numberOfZones;
     }
 
@@ -84,23 +89,35 @@ public class mpoData {
     }
 
 
-    public static TableDataSet getZoneSystem() {
+    public TableDataSet getZoneSystem() {
         // return TableDataSet of zone system
         return zonalSystem;
     }
 
-	public static int getExtStationCorrespondence(int i) {
+	public int getExtStationCorrespondence(int i) {
 		// returns the taz associated with the node
 		return (int) extStations.getIndexedValueAt(i, "id");
 	}
 	
-    public static float getSEdataItem (String dataItem, int zone) {
+    public float getSEdataItem (String dataItem, int zone) {
         // return single zone value with socio-economic data of column dataItem
         return seData.getIndexedValueAt(zone, dataItem);
     }
 
 
-    public static float getHotelRooms (int taz) {
+    public int getSEdataColumn (String dataItem) {
+        // return handle of socio-economic data column, to be resolved once before looping over zones
+        return seAttributes.getColumnHandle(dataItem);
+    }
+
+
+    public float getSEdataItem (int column, int zone) {
+        // return single zone value with socio-economic data of column handle
+        return seAttributes.getValue(column, zone);
+    }
+
+
+    public float getHotelRooms (int taz) {
         // return calibrated hotel room weight
         try {
             float rooms = hotelRooms.getIndexedValueAt(taz, "Hotel_Rms") + hotelRooms.getIndexedValueAt(taz, "Vac_BedRms");
@@ -112,7 +129,7 @@ public class mpoData {
     }
 
 
-    public static float getHospitalBeds (int taz) {
+    public float getHospitalBeds (int taz) {
         // return calibrated hospital beds weight
         try {
             float beds = hospitals.getIndexedValueAt(taz, "Tot_Beds");
@@ -125,7 +142,7 @@ public class mpoData {
     }
 
 
-    public static float getParkVisitors (int taz) {
+    public float getParkVisitors (int taz) {
         // return calibrated hospital beds weight
         try {
             float visitors = parkVisitors.getIndexedValueAt(taz, "dailyVisitor");
@@ -137,12 +154,12 @@ public class mpoData {
     }
 
 
-    public static int getFipsOfZone (int taz) {
+    public int getFipsOfZone (int taz) {
         return (int) zonalSystem.getIndexedValueAt(taz, "Fips");
     }
 
 
-    public static int getMSAOfZone (int taz) {
+    public int getMSAOfZone (int taz) {
         try {
             return (int) zonalSystem.getIndexedValueAt(taz, "msa");
         } catch (Exception e) {
@@ -152,7 +169,7 @@ public class mpoData {
     }
 
 
-    public static void readSkims(ResourceBundle rb, int year) {
+    public void readSkims(ResourceBundle rb, int year) {
         // read skim matrices
         if (rb.getString("format.of.skims").equals("transcad")) {
             logger.info("  Reading TransCAD skim matrices");
@@ -173,63 +190,49 @@ public class mpoData {
     }
 
 
-    private static void readTransCADMatrix(ResourceBundle rb){
+    private void readTransCADMatrix(ResourceBundle rb){
     	// read in transCad matrices
         // read auto skims
         String fileNameAutos = ResourceUtil.getProperty(rb, "transcad.auto.skim");
     	MatrixReader transcadReaderAutos = MatrixReader.createReader(MatrixType.TRANSCAD, new File(fileNameAutos));
-        autoTime = transcadReaderAutos.readMatrix(ResourceUtil.getProperty(rb, "time.matrix.name"));
-        autoDistance = transcadReaderAutos.readMatrix(ResourceUtil.getProperty(rb, "distance.matrix.name"));
+        autoTime = skimMatrix.fromMatrix("autoTime",
+                transcadReaderAutos.readMatrix(ResourceUtil.getProperty(rb, "time.matrix.name")), getZones());
+        autoDistance = skimMatrix.fromMatrix("autoDistance",
+                transcadReaderAutos.readMatrix(ResourceUtil.getProperty(rb, "distance.matrix.name")), getZones());
         // read truck skims
         String fileNameTrucks = ResourceUtil.getProperty(rb, "transcad.truck.skim");
         MatrixReader transcadReaderTrucks = MatrixReader.createReader(MatrixType.TRANSCAD, new File(fileNameTrucks));
-        truckDistance = transcadReaderTrucks.readMatrix(ResourceUtil.getProperty(rb, "distance.matrix.name"));
+        truckDistance = skimMatrix.fromMatrix("truckDistance",
+                transcadReaderTrucks.readMatrix(ResourceUtil.getProperty(rb, "distance.matrix.name")), getZones());
     }
 
 
-    private static void readZipMatrices(ResourceBundle rb, int year) {
+    private void readZipMatrices(ResourceBundle rb, int year) {
         // read zmx zip matrices
         // read auto skims
         MatrixReader readerAutoTime = MatrixReader.createReader(rb.getString("zmx.auto.time.skim") + year + ".zmx");
-        autoTime = readerAutoTime.readMatrix();
+        autoTime = skimMatrix.fromMatrix("autoTime", readerAutoTime.readMatrix(), getZones());
         MatrixReader readerAutoDistance = MatrixReader.createReader(rb.getString("zmx.auto.distance.skim") + year + ".zmx");
-        autoDistance = readerAutoDistance.readMatrix();
+        autoDistance = skimMatrix.fromMatrix("autoDistance", readerAutoDistance.readMatrix(), getZones());
         // read truck skims
         MatrixReader readerTruckDistance = MatrixReader.createReader(rb.getString("zmx.truck.distance.skim") + year + ".zmx");
-        truckDistance = readerTruckDistance.readMatrix();
+        truckDistance = skimMatrix.fromMatrix("truckDistance", readerTruckDistance.readMatrix(), getZones());
     }
 
 
-    private static void readCsvMatrices (ResourceBundle rb, int year) {
+    private void readCsvMatrices (ResourceBundle rb, int year) {
         // read csv zip matrices
 
         String fileNameAutoDist = rb.getString("csv.auto.distance.skim") + year + ".csv";
-        autoDistance = readSingleCsvMatrix(fileNameAutoDist, "dist");
+        autoDistance = csvSkimReader.read(fileNameAutoDist, "dist", "autoDistance", getZones());
         String fileNameAutoTime = rb.getString("csv.auto.time.skim") + year + ".csv";
-        autoTime = readSingleCsvMatrix(fileNameAutoTime, "time");
+        autoTime = csvSkimReader.read(fileNameAutoTime, "time", "autoTime", getZones());
         String fileNameTrkDist = rb.getString("csv.truck.distance.skim") + year + ".csv";
-        truckDistance = readSingleCsvMatrix(fileNameTrkDist, "dist");
-    }
-
-
-    private static Matrix readSingleCsvMatrix (String fileName, String columnName) {
-        // read single csv matrix from fileName
-
-        int[] zones = getZones();
-        TableDataSet tblSet = ncstmUtil.importTable(fileName);
-        Matrix mat = new Matrix(zones.length, zones.length);
-        mat.setExternalNumbersZeroBased(zones);
-        for (int row = 1; row < tblSet.getRowCount(); row++) {
-            int orig = (int) tblSet.getValueAt(row, "orig");
-            int dest = (int) tblSet.getValueAt(row, "dest");
-            float dist = tblSet.getValueAt(row, columnName);
-            mat.setValueAt(orig, dest, dist);
-        }
-        return mat;
+        truckDistance = csvSkimReader.read(fileNameTrkDist, "dist", "truckDistance", getZones());
     }
 
 
-    public static float getTruckDistance (int i, int j) {
+    public float getTruckDistance (int i, int j) {
         try {
             return truckDistance.getValueAt(i, j);
         } catch (Exception e) {
@@ -239,7 +242,7 @@ public class mpoData {
     }
 
 
-    public static float getAutoTravelTime (int i, int j) {
+    public float getAutoTravelTime (int i, int j) {
         try {
             return autoTime.getValueAt(i, j);
         } catch (Exception e) {
@@ -249,46 +252,46 @@ public class mpoData {
     }
 
 
-    public static Matrix getAutoTimeSkim () {
-        // return time skim
-        return autoTime;
+    public Matrix getAutoTimeSkim () {
+        // return new copy of time skim, owned by the caller
+        return autoTime.toMatrix();
     }
 
 
-    public static Matrix getAutoDistanceSkim () {
-        // return distance skim
-        return autoDistance;
+    public Matrix getAutoDistanceSkim () {
+        // return new copy of distance skim, owned by the caller
+        return autoDistance.toMatrix();
     }
 
 
-    public static void readTripRates (ResourceBundle rb) {
+    public void readTripRates (ResourceBundle rb) {
         // read zonal data
         String fileName = rb.getString("qrfm.trip.rates");
-        tripRates = ncstmUtil.importTable(fileName);
+        tripRates = ncstmUtil.importSharedTable(fileName);
     }
     
 
-    public static float[] getTripRates(String colName){
+    public float[] getTripRates(String colName){
     	// return array of trip rates
     	return tripRates.getColumnAsFloat(colName);
     }
 
     
-    public static String[] getTripIndustries(String colName){
+    public String[] getTripIndustries(String colName){
     	// return array of industry types
     	return tripRates.getColumnAsString(colName);
     }
 
-    public static TableDataSet readProdAndAttr(ResourceBundle rb, String fileName){
+    public TableDataSet readProdAndAttr(ResourceBundle rb, String fileName){
     	//reads productions and attractions
-    	producePAs pas = new producePAs(rb);
+    	producePAs pas = new producePAs(rb, this);
     	pas.run();
     	prodAndAttr = ncstmUtil.importTable(fileName);
     	prodAndAttr.buildIndex(1);
     	return prodAndAttr;
     }
   
-    public static TableDataSet readExtTruckTrips (ResourceBundle rb) {
+    public TableDataSet readExtTruckTrips (ResourceBundle rb) {
         // read zonal data
         String fileName = rb.getString("ext.truck.model.input");
         extTrkTrips = ncstmUtil.importTable(fileName);
@@ -296,12 +299,12 @@ public class mpoData {
         return extTrkTrips;
     }
     
-    public static float[] getExtTrkTrips(String colName){
+    public float[] getExtTrkTrips(String colName){
     	// return array of external station truck trips
     	return extTrkTrips.getColumnAsFloat(colName);
     }
 
-    public static int[] getExtStations(String colName){
+    public int[] getExtStations(String colName){
     	// return array of external stations
     	return extTrkTrips.getColumnAsInt(colName);
     }
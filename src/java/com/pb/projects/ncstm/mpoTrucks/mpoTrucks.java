@@ -1,5 +1,6 @@
 package com.pb.projects.ncstm.mpoTrucks;
 
+import com.pb.projects.ncstm.modelContext;
 import com.pb.projects.ncstm.ncstmUtil;
 import com.pb.projects.ncstm.external.externalTrips;
 
@@ -25,15 +26,14 @@ public class mpoTrucks {
         int year = Integer.valueOf(args[1]);
         String model = String.valueOf(args[2]);
         //Read in the zonal data, trip rates, and the truck skims.
-        mpoData.readZonalData(appRb, year);
-        mpoData.readTripRates(appRb);
+        modelContext context = modelContext.loadMpo(appRb, year);
 
         if(model.equals("ldt")){
-            ldTrucks ldtT = new ldTrucks(appRb, year);
+            ldTrucks ldtT = new ldTrucks(context);
             ldtT.run();
         } if(model.equals("ext")){
-	        externalTrips et = new externalTrips(appRb);
-	        et.run(year);
+	        externalTrips et = new externalTrips(context);
+	        et.run();
         }
 
         logger.info("NC MPO Truck Model finished.");
@@ -8,51 +8,39 @@ import org.apache.log4j.Logger;
 
 import com.pb.common.datafile.CSVFileWriter;
 import com.pb.common.datafile.TableDataSet;
-import com.pb.common.matrix.ColumnVector;
-import com.pb.common.matrix.Matrix;
-import com.pb.common.matrix.RowVector;
 
 public class producePAs {
 
     private Logger logger = Logger.getLogger(producePAs.class);
     private ResourceBundle appRb;
+    private mpoData data;
 
     private int[] taz;
     private float[] prodMU,prodSU;
-    public static Matrix MultiUnit,SingleUnit;
-
-    private ColumnVector productionMU,productionSU;
-    private RowVector attractionMU,attractionSU;
     
     private File paFile;
 
-    public producePAs(ResourceBundle appRb) {
+    public producePAs(ResourceBundle appRb, mpoData data) {
         // constructor
         this.appRb = appRb;
+        this.data = data;
     }
     
     public void run () {
     	logger.info("Calculate Ps and As");
     	//get the zonal data with external stations as an array
-        taz = mpoData.getZones();
+        taz = data.getZones();
 	
 	    //calculate the trip productions
 	    logger.info(" Calculating trip productions.");
 	    prodMU = calculateTripProductions("MultiUnit");
 	    prodSU = calculateTripProductions("SingleUnit");
 	
-	    // put production and attraction factors in column vectors, production and attraction values are identical
-	    logger.info(" Putting production and attraction factors into vectors.");
-	    productionMU = new ColumnVector(prodMU);
-	    productionMU.setExternalNumbersZeroBased(taz);
-	    attractionMU = new RowVector(prodMU);
-	    attractionMU.setExternalNumbersZeroBased(taz);
-	    productionSU = new ColumnVector(prodSU);
-	    productionSU.setExternalNumbersZeroBased(taz);
-	    attractionSU = new RowVector(prodSU);
-	    attractionSU.setExternalNumbersZeroBased(taz);
-	
+	    // production and attraction values are identical, only the production vectors are written
 	    writeTripPsAndAz();
+	    // release productions, they are read back from the production-attraction file
+	    prodMU = null;
+	    prodSU = null;
     }
        
     /**
@@ -62,14 +50,16 @@ public class producePAs {
      */
     private float[] calculateTripProductions(String colName){
         float[] prod = new float[taz.length];
-        String[] industryNames = mpoData.getTripIndustries("INDUSTRY");
-        float[] rates = mpoData.getTripRates(colName);
+        String[] industryNames = data.getTripIndustries("INDUSTRY");
+        int[] industryColumns = new int[industryNames.length];
+        for (int i = 0; i < industryNames.length; i++) industryColumns[i] = data.getSEdataColumn(industryNames[i]);
+        float[] rates = data.getTripRates(colName);
 //        logger.info("TAZ Length: "+taz.length);
         for (int zn = 0; zn < taz.length-1; zn++) {
             int zone = taz[zn];
             for (int i = 0; i < industryNames.length; i++){
 //            	logger.info(industryNames[i]+", "+zone);
-                prod[zn] += rates[i] * mpoData.getSEdataItem(industryNames[i], zone);
+                prod[zn] += rates[i] * data.getSEdataItem(industryColumns[i], zone);
             }
         }
         return prod;
@@ -1,18 +1,23 @@
 package com.pb.projects.ncstm.national;
 
-import java.util.Collection;
+import com.pb.common.datafile.TableDataSet;
+import com.pb.projects.ncstm.ncstmUtil;
+
+import java.io.File;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Class to store data of distribution centers for truck flows for the North Carolina Statewide Model (NCSTM)
+ * Class to store data of distribution centers for truck flows for the North Carolina Statewide Model (NCSTM).
+ * Distribution centers are read once per file and shared by all model runs in the JVM.
  * Author: Rolf Moeckel, PB Albuquerque
  * Data: 26 January 2012
  */
 
 public class distributionCenters {
 
-    private static final Map<Integer, distributionCenters> dcMap = new HashMap<>();
+    private static final Map<String, distributionCenters[]> dcByFile = new ConcurrentHashMap<>();
     private int id;
     private int taz;
     private float size;
@@ -25,7 +30,6 @@ public class distributionCenters {
         this.taz = taz;
         this.size = size;
         this.fafZone = fafZone;
-        dcMap.put(id, this);
     }
 
     public int getId () {
@@ -44,7 +48,27 @@ public class distributionCenters {
         return fafZone;
     }
 
-    public static distributionCenters[] getDistributionCenterArray() {
+    public static distributionCenters[] getDistributionCenterArray(String fileName) {
+        // return distribution centers of fileName, which is read when requested the first time
+        return dcByFile.computeIfAbsent(new File(fileName).getAbsolutePath(), path -> readDistributionCenters(fileName));
+    }
+
+
+    private static distributionCenters[] readDistributionCenters (String fileName) {
+        // Read file with distribution centers and intermodal facilities
+
+        TableDataSet facilities = ncstmUtil.importTable(fileName);
+        Map<Integer, distributionCenters> dcMap = new HashMap<>();
+        for (int row = 1; row <= facilities.getRowCount(); row++) {
+            String type = facilities.getStringValueAt(row, "Type");
+            if (type.equals("DC") || type.equals("Other: mini-DC") || type.equals("Warehouse")) {
+                int id = (int) facilities.getValueAt(row, "ID");
+                int taz = (int) facilities.getValueAt(row, "ncstmTAZ");
+                float size = facilities.getValueAt(row, "SqFt_calc");
+                int fafZone = (int) facilities.getValueAt(row, "fafZone");
+                dcMap.put(id, new distributionCenters(id, taz, size, fafZone));
+            }
+        }
         return dcMap.values().toArray(new distributionCenters[dcMap.size()]);
     }
 
@@ -4,11 +4,14 @@ import com.pb.common.datafile.TableDataSet;
 import com.pb.common.matrix.Matrix;
 import com.pb.common.util.ResourceUtil;
 import com.pb.models.neldt.*;
+import com.pb.projects.ncstm.binaryMatrixWriter;
+import com.pb.projects.ncstm.modelContext;
 import com.pb.projects.ncstm.ncstmData;
 import com.pb.projects.ncstm.ncstmUtil;
 import org.apache.log4j.Logger;
 
 import java.io.PrintWriter;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.ResourceBundle;
 
@@ -21,14 +24,18 @@ public class longDistanceAuto {
 
     static Logger logger = Logger.getLogger(longDistanceAuto.class);
     ResourceBundle appRb;
+    private ncstmData data;
+    private int year;
 
-    public longDistanceAuto (ResourceBundle rp) {
+    public longDistanceAuto (modelContext context) {
         // Constructor
-        this.appRb = rp;
+        this.appRb = context.getResourceBundle();
+        this.data = context.getData();
+        this.year = context.getYear();
     }
 
 
-    public void run (int year) {
+    public void run () {
         // Run method for long-distance auto model
         logger.info("Started long-distance auto model for year " + year);
         neldt n = new neldt(appRb);
@@ -42,11 +49,13 @@ public class longDistanceAuto {
         n.writeTripMatrix(year, neldtModes.train);
         // disaggregtation of long-distance travel to zonal level
         neldtDisagg nd = new neldtDisagg(appRb);
-        nd.buildStateZoneReference(ncstmData.getZoneSystem(),  neldt.stateRowList);
+        nd.buildStateZoneReference(data.getZoneSystem(),  neldt.stateRowList);
         n.writeTripMatrix(year, neldtModes.air, findStatesToApplyR3Logit(nd));
-        nd.setZonalDistances(ncstmData.getAutoDistanceSkim());
-        nd.setZonalTravelTime(ncstmData.getAutoTimeSkim());
-        nd.buildStateZoneReference(ncstmData.getZoneSystem(),  neldt.stateRowList);
+        nd.setZonalDistances(data.getAutoDistanceSkim());
+        nd.setZonalTravelTime(data.getAutoTimeSkim());
+        // NELDT keeps float copies of the skims, the skims of the data set are not used anymore
+        data.releaseAutoSkims();
+        nd.buildStateZoneReference(data.getZoneSystem(),  neldt.stateRowList);
         nd.initializeFrictionFactors();
         disaggPersonLongDistanceTravel(year, nd, n.usTravel);
         logger.info("Completed long-distance auto model.");
@@ -75,7 +84,7 @@ public class longDistanceAuto {
 
         logger.info("  Disaggregating regional auto trips for NCSTM from states to zones for year " + year + ".");
         int autoMode = neldtUtil.getEnumOrderNumber(neldtModes.auto);
-        int zones[] = ncstmData.getZones();
+        int zones[] = data.getZones();
         nd.initializeDistStatistics();
         TableDataSet prodAttrWeights = calculateAttractionProductionWeights();
         Matrix[] allTrips = new Matrix[neldtPurposes.values().length];
@@ -135,13 +144,22 @@ public class longDistanceAuto {
         }
         // write out trip table
         String fileName = ResourceUtil.getProperty(appRb, "zonal.regional.auto.flows") + year + ".csv";
-        logger.info("  Writing trip table to " + fileName);
-        PrintWriter pw = neldtUtil.openFileForSequentialWriting(fileName);
-        pw.println("OrigZone,DestZone,ldt_auto,ldt_auto_business,ldt_auto_personal,ldt_auto_commute");
+        PrintWriter pw = null;
+        if (binaryMatrixWriter.writeCsv(appRb)) {
+            logger.info("  Writing trip table to " + fileName);
+            pw = neldtUtil.openFileForSequentialWriting(fileName);
+            pw.println("OrigZone,DestZone,ldt_auto,ldt_auto_business,ldt_auto_personal,ldt_auto_commute");
+        }
+        binaryMatrixWriter binWriter = null;
+        if (binaryMatrixWriter.writeBinary(appRb)) binWriter = binaryMatrixWriter.open(appRb, fileName, zones,
+                new String[]{"ldt_auto", "ldt_auto_business", "ldt_auto_personal", "ldt_auto_commute"});
+        float[][] binRow = new float[4][zones.length];
         float[][] prodAttr = new float[2][ncstmUtil.getHighestVal(zones) + 1];
 
         for (int i: zones) {
-            for (int j: zones) {
+            for (float[] binCore: binRow) Arrays.fill(binCore, 0);
+            for (int jz = 0; jz < zones.length; jz++) {
+                int j = zones[jz];
                 float tripsB = allTrips[0].getValueAt(i, j);
                 float tripsP = allTrips[1].getValueAt(i, j);
                 float tripsC = allTrips[2].getValueAt(i, j);
@@ -149,8 +167,14 @@ public class longDistanceAuto {
 
                 // include O-D pairs with trips and all intrazonal O-D pairs to ensure that TransCAD matrix will have all zones included
                 if (trips >= 0.00001 || i == j) {
-                    pw.format ("%d,%d,%.5f,%.5f,%.5f,%.5f", i, j, trips, tripsB, tripsP, tripsC);
-                    pw.println();
+                    if (pw != null) {
+                        pw.format ("%d,%d,%.5f,%.5f,%.5f,%.5f", i, j, trips, tripsB, tripsP, tripsC);
+                        pw.println();
+                    }
+                    binRow[0][jz] = trips;
+                    binRow[1][jz] = tripsB;
+                    binRow[2][jz] = tripsP;
+                    binRow[3][jz] = tripsC;
                     prodAttr[0][i] += trips;
                     prodAttr[1][j] += trips;
                     tcMatrix[0].setValueAt(i, j, tcMatrix[0].getValueAt(i, j) + tripsB);
@@ -161,8 +185,10 @@ public class longDistanceAuto {
                     tcMatrix[2].setValueAt(j, i, tcMatrix[2].getValueAt(j, i) + tripsC);
                 }
             }
+            if (binWriter != null) binWriter.writeRow(binRow);
         }
-        pw.close();
+        if (pw != null) pw.close();
+        if (binWriter != null) binWriter.close();
 
         String[] purpNames = {neldtPurposes.business.toString(), neldtPurposes.personal.toString(), neldtPurposes.commute.toString()};
         String fileNameTC = ResourceUtil.getProperty(appRb, "zonal.regional.auto.flows") + year + ".mtx";
@@ -193,7 +219,7 @@ public class longDistanceAuto {
                 applyR3Logit.put(state, false);
             } else {
                 int[] zones = nd.getZonesInState(state);
-                applyR3Logit.put(state, ncstmData.applyR3logit(zones[0]));
+                applyR3Logit.put(state, data.applyR3logit(zones[0]));
             }
         }
         return applyR3Logit;
@@ -226,30 +252,23 @@ public class longDistanceAuto {
         double[] wghtsABus = ResourceUtil.getDoubleArray(appRb, "weights.attr.business");
         double[] wghtsPCom = ResourceUtil.getDoubleArray(appRb, "weights.prod.commute");
         double[] wghtsACom = ResourceUtil.getDoubleArray(appRb, "weights.attr.commute");
-        int[] zones = ncstmData.getZones();
+        int[] zones = data.getZones();
         float[] prodsPer = new float[zones.length];
         float[] attrsPer = new float[zones.length];
         float[] prodsBus = new float[zones.length];
         float[] attrsBus = new float[zones.length];
         float[] prodsCom = new float[zones.length];
         float[] attrsCom = new float[zones.length];
+        String[] seColumnNames = {"POP", "TOTEMP", "IND", "HI_IND", "RET", "HI_RET", "OFF", "SERV", "GOV", "EDU", "HOSP"};
+        int[] seColumns = new int[seColumnNames.length];
+        for (int col = 0; col < seColumnNames.length; col++) seColumns[col] = data.getSEdataColumn(seColumnNames[col]);
         for (int i = 0; i < zones.length; i++) {
             float[] seDataItems = new float[wghtsPPer.length];
-            seDataItems[0]  = ncstmData.getSEdataItem("POP", zones[i]);
-            seDataItems[1]  = ncstmData.getSEdataItem("TOTEMP", zones[i]);
-            seDataItems[2]  = ncstmData.getSEdataItem("IND", zones[i]);
-            seDataItems[3]  = ncstmData.getSEdataItem("HI_IND", zones[i]);
-            seDataItems[4]  = ncstmData.getSEdataItem("RET", zones[i]);
-            seDataItems[5]  = ncstmData.getSEdataItem("HI_RET", zones[i]);
-            seDataItems[6]  = ncstmData.getSEdataItem("OFF", zones[i]);
-            seDataItems[7]  = ncstmData.getSEdataItem("SERV", zones[i]);
-            seDataItems[8]  = ncstmData.getSEdataItem("GOV", zones[i]);
-            seDataItems[9]  = ncstmData.getSEdataItem("EDU", zones[i]);
-            seDataItems[10] = ncstmData.getSEdataItem("HOSP", zones[i]);
-            seDataItems[11] = ncstmData.getHotelRooms(zones[i]);      // hotelRooms
-            seDataItems[12] = ncstmData.getHospitalBeds(zones[i]);    // hospitalBeds
-            seDataItems[13] = ncstmData.getParkVisitors(zones[i]);    // park visitors
-            seDataItems[14] = ncstmData.getBeachRelevance(zones[i]);  // beaches
+            for (int col = 0; col < seColumns.length; col++) seDataItems[col] = data.getSEdataItem(seColumns[col], zones[i]);
+            seDataItems[11] = data.getHotelRooms(zones[i]);      // hotelRooms
+            seDataItems[12] = data.getHospitalBeds(zones[i]);    // hospitalBeds
+            seDataItems[13] = data.getParkVisitors(zones[i]);    // park visitors
+            seDataItems[14] = data.getBeachRelevance(zones[i]);  // beaches
             for (int item = 0; item < seDataItems.length; item++) {
                 prodsPer[i] += seDataItems[item] * wghtsPPer[item];
                 attrsPer[i] += seDataItems[item] * wghtsAPer[item];
@@ -302,7 +321,7 @@ public class longDistanceAuto {
 //        int[] fipsCodeIndex = new int[ncstmUtil.getHighestVal(fipsCodes) + 1];
 //        for (int i = 0; i < fipsCodes.length; i++) fipsCodeIndex[fipsCodes[i]] = i;
 
-        int zones[] = ncstmData.getZones();
+        int zones[] = data.getZones();
 
         Matrix[] fipsTripTable = new Matrix[3];
         for (int p = 0; p < neldtPurposes.values().length; p++) {
@@ -313,9 +332,9 @@ public class longDistanceAuto {
         for (int p = 0; p < neldtPurposes.values().length; p++) {
             Matrix trips = fipsTripTable[p];
             for (int i: zones) {
-                int iFips = ncstmData.getFipsOfZone(i);
+                int iFips = data.getFipsOfZone(i);
                 for (int j: zones) {
-                    int jFips = ncstmData.getFipsOfZone(j);
+                    int jFips = data.getFipsOfZone(j);
                     if (iFips < 0 || jFips < 0) continue;   // some states were not disaggregated to counties
                     trips.setValueAt(iFips, jFips, trips.getValueAt(iFips, jFips) + allTrips[p].getValueAt(i, j));
                 }
@@ -5,11 +5,19 @@ import com.pb.common.matrix.ColumnVector;
 import com.pb.common.matrix.Matrix;
 import com.pb.common.matrix.MatrixBalancerRM;
 import com.pb.common.matrix.RowVector;
-import com.pb.common.util.IndexSort;
 import com.pb.common.util.ResourceUtil;
 import com.pb.models.processFAF.*;
+import com.pb.projects.ncstm.binaryMatrixWriter;
+import com.pb.projects.ncstm.fafFlowCache;
+import com.pb.projects.ncstm.fafFlowPipeline;
+import com.pb.projects.ncstm.frictionFunction;
+import com.pb.projects.ncstm.matrixBalancer;
+import com.pb.projects.ncstm.modelContext;
 import com.pb.projects.ncstm.ncstmData;
 import com.pb.projects.ncstm.ncstmUtil;
+import com.pb.projects.ncstm.sparseFlowStore;
+import com.pb.projects.ncstm.zonePairAccumulator;
+import com.pb.projects.ncstm.zoneNeighbours;
 import com.pb.sawdust.util.concurrent.DnCRecursiveAction;
 import com.pb.sawdust.calculator.Function1;
 import com.pb.sawdust.util.array.ArrayUtil;
@@ -32,12 +40,14 @@ public class longDistanceTruck {
     static Logger logger = Logger.getLogger(longDistanceTruck.class);
     private int year;
     private ResourceBundle appRb;
+    private ncstmData data;
     private TableDataSet specialRegions;
     private int[] specialRegionsToTaz;
-    private int[] zoneIndex;
     private int[] countyFips;
+    private int[] countyIdByCode;           // matrix position of county FIPS or special region modelCode, -1 if unknown
+    private int[] specialRegionByFafCode;   // modelCode of special region by faf3code, -1 if none
     private int[] fipsToZone;
-    private HashMap<String, float[][]> cntFlows;
+    private HashMap<String, sparseFlowStore> cntFlows;
     private HashMap<Integer, int[]> zonesByCounty;
     private boolean[] disaggCounty;
     private disaggregateFlows df;
@@ -55,11 +65,14 @@ public class longDistanceTruck {
     private HashMap <Integer, distributionCenters[]> distCentersByZone;
     private float[] shareThroughDCByCommodity;
     private convertTonsToTrucks cttt;
+    private fafFlowPipeline truckFlows;
+    private fafFlowCache flowCache;
 
-    public longDistanceTruck (ResourceBundle rp, int year) {
+    public longDistanceTruck (modelContext context) {
         // Constructor
-        this.appRb = rp;
-        this.year = year;
+        this.appRb = context.getResourceBundle();
+        this.year = context.getYear();
+        this.data = context.getData();
         enableMSA = false;
     }
 
@@ -106,12 +119,6 @@ public class longDistanceTruck {
             generateDistrCentersAndIntermodFacilities(appRb.getString("dist.cent.intermod.facilities"));
             readCommoditiesSentThroughDistributionCenters(appRb.getString("commodities.sent.through.dc"));
         }
-        int[] zones = ncstmData.getZones();
-        zoneIndex = new int[ncstmUtil.getHighestVal(zones)+1];
-        for (int i = 0; i < zones.length; i++) {
-            zoneIndex[zones[i]] = i;
-        }
-
     }
 
 
@@ -119,42 +126,81 @@ public class longDistanceTruck {
         // Read file with distribution centers and intermodal facilities
 
         logger.info("  Reading distribution centers");
-        TableDataSet facilities = ncstmUtil.importTable(fileToken);
-        for (int row = 1; row <= facilities.getRowCount(); row++) {
-            String type = facilities.getStringValueAt(row, "Type");
-            if (type.equals("DC") || type.equals("Other: mini-DC") || type.equals("Warehouse")) {
-                int id = (int) facilities.getValueAt(row, "ID");
-                int taz = (int) facilities.getValueAt(row, "ncstmTAZ");
-                float size = facilities.getValueAt(row, "SqFt_calc");
-                int fafZone = (int) facilities.getValueAt(row, "fafZone");
-                new distributionCenters(id, taz, size, fafZone);      // add distribution center to distributionCenter class
+        distCentersByZone = new HashMap<>();
+        distributionCenters[] allDistributionCenters = distributionCenters.getDistributionCenterArray(fileToken);
+        // list positions in allDistributionCenters by zone ordinal of distribution center
+        int[] zones = data.getZones();
+        int[][] dcPositionsByZone = new int[zones.length][];
+        // distribution centers in zones missing in the zone system have a truck distance of -1 to every zone, so they
+        // are within 50 miles of every zone
+        int[] dcInUnknownZones = new int[0];
+        int[] dcZones = new int[allDistributionCenters.length];
+        for (int dc = 0; dc < allDistributionCenters.length; dc++) {
+            int dcZone = data.getZoneOrdinal(allDistributionCenters[dc].getTaz());
+            dcZones[dc] = dcZone;
+            if (dcZone < 0) {
+                logger.warn("  Distribution center " + allDistributionCenters[dc].getId() + " is located in unknown zone " +
+                        allDistributionCenters[dc].getTaz() + " and is assigned to every zone in NC");
+                dcInUnknownZones = Arrays.copyOf(dcInUnknownZones, dcInUnknownZones.length + 1);
+                dcInUnknownZones[dcInUnknownZones.length - 1] = dc;
+                continue;
             }
+            int[] existing = dcPositionsByZone[dcZone] == null ? new int[0] : dcPositionsByZone[dcZone];
+            int[] expanded = Arrays.copyOf(existing, existing.length + 1);
+            expanded[existing.length] = dc;
+            dcPositionsByZone[dcZone] = expanded;
         }
-        distCentersByZone = new HashMap<>();
-        for (int zone: ncstmData.getZones()) {
+        zoneNeighbours neighbours = data.getTruckNeighbours(50);
+        for (int zn = 0; zn < zones.length; zn++) {
+            int zone = zones[zn];
             // skip all non-NC zones
-            if (ncstmData.getFipsOfZone(zone) < 37000 || ncstmData.getFipsOfZone(zone) > 38000) continue;
-            for (distributionCenters dc: distributionCenters.getDistributionCenterArray()) {
-                if (ncstmData.getTruckDistance(zone, dc.getTaz()) <= 50) addDistributionCenterToHashMap(zone, dc);
-            }
-            int foundSites = 0;
-            if (distCentersByZone.containsKey(zone)) foundSites = distCentersByZone.get(zone).length;
-            if (foundSites < 5) {
-                // Could not find distribution centers within 50 miles, add five centers that are further away
-                distributionCenters[] allDistributionCenters = distributionCenters.getDistributionCenterArray();
-                int[] dist = new int[allDistributionCenters.length];
-                for (int dc = 0; dc < allDistributionCenters.length; dc++) {
-                    dist[dc] = (int) (ncstmData.getTruckDistance(zone, allDistributionCenters[dc].getTaz()) * 100);
-                }
-                int[] indexDist = IndexSort.indexSort(dist);
-                for (int dc = 0; dc < 5 - foundSites; dc++) {
-                    addDistributionCenterToHashMap(zone, allDistributionCenters[indexDist[dc]]);
+            if (data.getFipsOfZone(zone) < 37000 || data.getFipsOfZone(zone) > 38000) continue;
+            // only zones within 50 miles can hold distribution centers. found keeps the order of allDistributionCenters,
+            // nearest is sorted by distance in 1/100 miles and position
+            int[] found = dcInUnknownZones.clone();
+            long[] nearest = new long[found.length];
+            for (int i = 0; i < found.length; i++) nearest[i] = getDistanceKey(-1, found[i]);
+            for (int k = neighbours.getFirst(zn); k < neighbours.getEnd(zn); k++) {
+                if (neighbours.getDistance(k) > 50) break;
+                int[] dcHere = dcPositionsByZone[neighbours.getDestination(k)];
+                if (dcHere == null) continue;
+                found = Arrays.copyOf(found, found.length + dcHere.length);
+                nearest = Arrays.copyOf(nearest, nearest.length + dcHere.length);
+                for (int i = 0; i < dcHere.length; i++) {
+                    found[found.length - dcHere.length + i] = dcHere[i];
+                    nearest[nearest.length - dcHere.length + i] = getDistanceKey(neighbours.getDistance(k), dcHere[i]);
                 }
             }
+            Arrays.sort(found);
+            for (int dc: found) addDistributionCenterToHashMap(zone, allDistributionCenters[dc]);
+            if (found.length >= 5) continue;
+            // Could not find five distribution centers within 50 miles. Centers are added in the order of distance,
+            // starting again with the nearest ones, and continuing with centers further away if needed
+            int needed = 5 - found.length;
+            Arrays.sort(nearest);
+            for (int i = 0; i < Math.min(needed, nearest.length); i++)
+                addDistributionCenterToHashMap(zone, allDistributionCenters[(int) nearest[i]]);
+            if (needed <= nearest.length) continue;
+            long[] further = new long[allDistributionCenters.length];
+            int count = 0;
+            for (int dc = 0; dc < allDistributionCenters.length; dc++) {
+                if (dcZones[dc] < 0) continue;
+                float distance = data.getTruckDistanceByIndex(zn, dcZones[dc]);
+                if (distance > 50) further[count++] = getDistanceKey(distance, dc);
+            }
+            Arrays.sort(further, 0, count);
+            for (int i = 0; i < Math.min(needed - nearest.length, count); i++)
+                addDistributionCenterToHashMap(zone, allDistributionCenters[(int) further[i]]);
         }
     }
 
 
+    private static long getDistanceKey (float distance, int dc) {
+        // sort key of distribution center dc by distance in 1/100 miles first and by position second
+        return ((long) (int) (distance * 100) << 32) | dc;
+    }
+
+
     private void readCommoditiesSentThroughDistributionCenters (String fileName) {
         // read commodities that are sent through distribution centers
 
@@ -195,8 +241,29 @@ public class longDistanceTruck {
         int[] specRegZones = ResourceUtil.getIntegerArray(appRb, "special.regions.zones");
         specialRegions = fafUtils.createSpecialRegions(specRegNames, specRegModes, specRegCodes, specRegZones, specRegFAFCodes);
         specialRegionsToTaz = new int[ncstmUtil.getHighestVal(specRegCodes) + 1];
-        for (int i = 0; i < specRegCodes.length; i++) specialRegionsToTaz[specRegCodes[i]] = specRegZones[i];
+        for (int i = 0; i < specRegCodes.length; i++) {
+            specialRegionsToTaz[specRegCodes[i]] = specRegZones[i];
+            if (data.getZoneOrdinal(specRegZones[i]) < 0)
+                logger.warn("  Zone " + specRegZones[i] + " of special region " + specRegNames[i] + " is not part of the zone system, its flows are skipped");
+        }
         countyFips = fafUtils.createCountyFipsArray(specialRegions.getColumnAsInt("modelCode"));
+        createRegionIndexes();
+    }
+
+
+    private void createRegionIndexes() {
+        // create dense lookups for getCountyId and translateSpecialRegions. Where codes appear more than once, the
+        // same entry wins as in a linear scan: the first county, then the first special region for getCountyId,
+        // and the last special region for translateSpecialRegions
+        int[] modelCodes = specialRegions.getColumnAsInt("modelCode");
+        int[] fafCodes = specialRegions.getColumnAsInt("faf3code");
+        countyIdByCode = new int[Math.max(ncstmUtil.getHighestVal(countyFips), ncstmUtil.getHighestVal(modelCodes)) + 1];
+        Arrays.fill(countyIdByCode, -1);
+        for (int row = modelCodes.length - 1; row >= 0; row--) countyIdByCode[modelCodes[row]] = countyFips.length + row;
+        for (int i = countyFips.length - 1; i >= 0; i--) countyIdByCode[countyFips[i]] = i;
+        specialRegionByFafCode = new int[Math.max(0, ncstmUtil.getHighestVal(fafCodes)) + 1];
+        Arrays.fill(specialRegionByFafCode, -1);
+        for (int row = 0; row < fafCodes.length; row++) specialRegionByFafCode[fafCodes[row]] = modelCodes[row];
     }
 
 
@@ -206,7 +273,15 @@ public class longDistanceTruck {
         logger.info("Extracting FAF3 data for modes truck, rail, water and air");
         HashMap<String, Float> scaler = getScaler();
         String truckFileName = ResourceUtil.getProperty(appRb, "temp.truck.flows.faf.zones") + "_" + year;
-        faf3.writeFlowsByModeAndCommodity(truckFileName, modesFAF3.Truck, reportFormat.internatOrigToBorderToDest, scaler);
+        if (fafFlowPipeline.useInMemoryExtraction(appRb)) {
+            // truck flows are extracted while they are disaggregated
+            truckFlows = fafFlowPipeline.create(appRb, faf3, modesFAF3.Truck, reportFormat.internatOrigToBorderToDest,
+                    scaler, truckFileName);
+        } else {
+            faf3.writeFlowsByModeAndCommodity(truckFileName, modesFAF3.Truck, reportFormat.internatOrigToBorderToDest, scaler);
+            if (fafFlowCache.useCache(appRb)) fafFlowCache.build(appRb, year, truckFileName, modesFAF3.Truck.toString(),
+                    reportFormat.internatOrigToBorderToDest.toString());
+        }
         String railFileName = ResourceUtil.getProperty(appRb, "temp.rail.flows.faf.zones") + "_" + year;
         faf3.writeFlowsByModeAndCommodity(railFileName, modesFAF3.Rail, reportFormat.internatOrigToBorderToDest, scaler);
         String waterFileName = ResourceUtil.getProperty(appRb, "temp.water.flows.faf.zones") + "_" + year;
@@ -244,18 +319,32 @@ public class longDistanceTruck {
         commodities = readFAF3.sctgStringCommodities;
         int matrixSize = countyFips.length + specialRegions.getRowCount() + 2;  // +2 to add cells for international zones Canada and Mexico
         for (String com: commodities) {
-            float[][] dummy = new float[matrixSize][matrixSize];
+            sparseFlowStore dummy = new sparseFlowStore(matrixSize);
             //cntFlows matrices: Position 0 to [countyFips.length-1]: counties
             //                   Position [countyFips.length-1] to [countyFips.length+specialRegions.getRowCount-1]: special regions (port of entry)
             //                   Position [countyFips.length+specialRegions.getRowCount-1] to [matrixSize-1]: Canada and Mexico
             cntFlows.put(com, dummy);
         }
-        float globalScale = (float) ResourceUtil.getDoubleProperty(appRb, "overall.scaling.factor.truck");
-
-        java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool();
+        final float globalScale = (float) ResourceUtil.getDoubleProperty(appRb, "overall.scaling.factor.truck");
+
+        if (truckFlows != null) {
+            // one consumer per commodity reads flows from the in-memory extraction
+            truckFlows.run(new fafFlowPipeline.flowConsumer() {
+                public void accept(int cm, fafFlowPipeline.flow f) {
+                    if (f.shortTons == 0) return;
+                    String sctg = readFAF3.getSCTGname(cm);
+                    disaggregateFlow(cntFlows.get(sctg), sctg, f.orig, f.dest, f.direction, f.shortTons, globalScale);
+                }
+            });
+            truckFlows = null;
+            return;
+        }
+        flowCache = null;
+        if (fafFlowCache.useCache(appRb)) flowCache = fafFlowCache.get(appRb, year,
+                ResourceUtil.getProperty(appRb, "temp.truck.flows.faf.zones") + "_" + year, modesFAF3.Truck.toString(),
+                reportFormat.internatOrigToBorderToDest.toString());
         DnCRecursiveAction action = new DissaggregateFafAction(globalScale);
-        pool.execute(action);
-        action.getResult();
+        ncstmUtil.runAction(action);
     }
 
 
@@ -281,33 +370,23 @@ public class longDistanceTruck {
                 if (cm < 10) fileName = fileName + "_SCTG0" + cm + ".csv";
                 else fileName = fileName + "_SCTG" + cm + ".csv";
                 String sctg = readFAF3.getSCTGname(cm);
-                float[][] values = cntFlows.get(sctg);
+                sparseFlowStore values = cntFlows.get(sctg);
+                if (flowCache != null) {
+                    fafFlowCache.commodityFlows flows = flowCache.getFlows(cm);
+                    for (int i = 0; flows != null && i < flows.size(); i++) {
+                        if (flows.getShortTons(i) == 0) continue;
+                        disaggregateFlow(values, sctg, flows.getOrigin(i), flows.getDestination(i),
+                                flows.getDirection(i), flows.getShortTons(i), globalScale);
+                    }
+                    continue;
+                }
                 TableDataSet tblFlows = fafUtils.importTable(fileName);
                 for (int row = 1; row <= tblFlows.getRowCount(); row++) {
                     float shortTons = tblFlows.getValueAt(row, "shortTons");
                     if (shortTons == 0) continue;
-                    String dir = tblFlows.getStringValueAt(row, "flowDirection");
-                    int orig = (int) tblFlows.getValueAt(row, "originFAF");
-                    int dest = (int) tblFlows.getValueAt(row, "destinationFAF");
-                    if (dir.equals("import")) {
-                        if (orig > 800) dest = translateSpecialRegions(dest);
-                        else orig = translateSpecialRegions(orig);
-                    }
-                    if (dir.equals("export")) {
-                        if (dest > 800) orig = translateSpecialRegions(orig);
-                        else dest = translateSpecialRegions(dest);
-                    }
-                    TableDataSet singleFlow = df.disaggregateSingleFAF3flow(orig, dest, sctg, shortTons, 1);
-                    for (int i = 1; i <= singleFlow.getRowCount(); i++) {
-                        int oFips;
-                        if (orig < 800 || orig > 900) oFips = getCountyId((int) singleFlow.getValueAt(i, "oFips"));  // domestic county or special region
-                        else oFips = countyFips.length + specialRegions.getRowCount() -1 + orig - 800;  // Canada = 801, Mexico = 802
-                        int dFips;
-                        if (dest < 800 || dest > 900) dFips = getCountyId((int) singleFlow.getValueAt(i, "dFips"));  // domestic county or special region
-                        else dFips = countyFips.length + specialRegions.getRowCount() -1 + dest - 800;  // Canada = 801, Mexico = 802
-                        float thisFlow = singleFlow.getValueAt(i, "Tons") * globalScale;
-                        values[oFips][dFips] += thisFlow;
-                    }
+                    disaggregateFlow(values, sctg, (int) tblFlows.getValueAt(row, "originFAF"),
+                            (int) tblFlows.getValueAt(row, "destinationFAF"),
+                            tblFlows.getStringValueAt(row, "flowDirection"), shortTons, globalScale);
                 }
             }
         }
@@ -324,24 +403,42 @@ public class longDistanceTruck {
     }
 
 
+    private void disaggregateFlow (sparseFlowStore values, String sctg, int orig, int dest, String dir, float shortTons,
+                                   float globalScale) {
+        // disaggregate a single FAF flow to counties and add it to values
+        if (dir.equals("import")) {
+            if (orig > 800) dest = translateSpecialRegions(dest);
+            else orig = translateSpecialRegions(orig);
+        }
+        if (dir.equals("export")) {
+            if (dest > 800) orig = translateSpecialRegions(orig);
+            else dest = translateSpecialRegions(dest);
+        }
+        TableDataSet singleFlow = df.disaggregateSingleFAF3flow(orig, dest, sctg, shortTons, 1);
+        for (int i = 1; i <= singleFlow.getRowCount(); i++) {
+            int oFips;
+            if (orig < 800 || orig > 900) oFips = getCountyId((int) singleFlow.getValueAt(i, "oFips"));  // domestic county or special region
+            else oFips = countyFips.length + specialRegions.getRowCount() -1 + orig - 800;  // Canada = 801, Mexico = 802
+            int dFips;
+            if (dest < 800 || dest > 900) dFips = getCountyId((int) singleFlow.getValueAt(i, "dFips"));  // domestic county or special region
+            else dFips = countyFips.length + specialRegions.getRowCount() -1 + dest - 800;  // Canada = 801, Mexico = 802
+            float thisFlow = singleFlow.getValueAt(i, "Tons") * globalScale;
+            values.add(oFips, dFips, thisFlow);
+        }
+    }
+
+
     private int translateSpecialRegions (int fafZone) {
         // if border/rail yard/port/airport shall be preserved as special region, translate fafZone into modelCode
 
-        int region = fafZone;
-        for (int row = 1; row <= specialRegions.getRowCount(); row++)
-            if (specialRegions.getValueAt(row, "faf3code") == fafZone)
-                region = (int) specialRegions.getValueAt(row, "modelCode");
-        return region;
+        if (fafZone < 0 || fafZone >= specialRegionByFafCode.length || specialRegionByFafCode[fafZone] < 0) return fafZone;
+        return specialRegionByFafCode[fafZone];
     }
 
 
     private int getCountyId(int fips) {
         // Return region code of regName
-        for (int i = 0; i < countyFips.length; i++) {
-            if (countyFips[i] == fips) return i;
-        }
-        for (int row = 1; row <= specialRegions.getRowCount(); row ++)
-            if (specialRegions.getValueAt(row, "modelCode") == fips) return row + countyFips.length - 1;
+        if (fips >= 0 && fips < countyIdByCode.length && countyIdByCode[fips] >= 0) return countyIdByCode[fips];
         logger.error("Could not find county FIPS code " + fips);
         return -1;
     }
@@ -353,7 +450,7 @@ public class longDistanceTruck {
         logger.info("Writing out county-to-county truck trip table");
         float[][][] trucks = new float[2][countyFips.length][countyFips.length];
         for (String com: readFAF3.sctgStringCommodities) {
-            float[][] countyFlows = cntFlows.get(com);
+            sparseFlowStore countyFlows = cntFlows.get(com);
             for (int origCnt = 0; origCnt < countyFips.length; origCnt++) {
                 int origFips = countyFips[origCnt];
                 if (ignoreThisFips(origFips)) continue;  // ignore Guam, Puerto Rico and other distant islands
@@ -361,7 +458,7 @@ public class longDistanceTruck {
                     int destFips = countyFips[destCnt];
                     if (ignoreThisFips(destFips)) continue;  // ignore Guam, Puerto Rico and other distant islands
                     float distance = df.getCountyDistance(origFips, destFips);
-                    double[] trucksByType = cttt.convertThisFlowFromTonsToTrucks(com, distance, (double) countyFlows[origCnt][destCnt]);
+                    double[] trucksByType = cttt.convertThisFlowFromTonsToTrucks(com, distance, (double) countyFlows.getValue(origCnt, destCnt));
                     trucks[0][origCnt][destCnt] += trucksByType[0] / 365.25 * aawdtFactor;
                     trucks[1][origCnt][destCnt] += trucksByType[1];
                 }
@@ -390,7 +487,7 @@ public class longDistanceTruck {
         logger.info("Disaggregating truck flows from county-to-county to zone-to-zone flows for " + year);
         defineCountiesToDisaggregate();
 
-        int s = ncstmData.getZones().length;
+        int s = data.getZones().length;
         sutTrucks = new double[s][s];
         mutTrucks = new double[s][s];
         msaFlowsTons = new double[numberOfMSA + 1][numberOfMSA + 1];
@@ -427,19 +524,47 @@ public class longDistanceTruck {
 
         final HashMap<String, double[]> weights = prepareZonalWeights();
 
-        Function1<String,Void> commodityDisaggregationFunctionFAF = new Function1<String,Void>() {
-            public Void apply(String com) {
-                processCommodityDisaggregationWithDC(com, weights);
-//                processCommodityDisaggregation(com, weights);
+        // every commodity adds trucks to its own buffer, buffers are merged in commodity order. Workers claim
+        // commodities in order and at most two buffers per worker are held until they are merged
+        final String[] commodities = readFAF3.sctgStringCommodities;
+        ForkJoinPool pool = ForkJoinPoolFactory.getForkJoinPool();
+        int workers = Math.min(pool.getParallelism(), commodities.length);
+        final zonePairAccumulator accumulator = new zonePairAccumulator(new double[][][]{sutTrucks, mutTrucks},
+                commodities.length, 2 * workers);
+        final double[][][] msaTonsByCom = new double[commodities.length][][];
+        Function1<Integer,Void> commodityDisaggregationFunctionFAF = new Function1<Integer,Void>() {
+            public Void apply(Integer worker) {
+                try {
+                    for (int icom = accumulator.nextTask(); icom >= 0; icom = accumulator.nextTask()) {
+                        zonePairAccumulator.partialBuffer trucks = accumulator.getBuffer();
+                        msaTonsByCom[icom] = processCommodityDisaggregationWithDC(commodities[icom], weights, trucks);
+//                        processCommodityDisaggregation(commodities[icom], weights, trucks);
+                        accumulator.complete(icom, trucks);
+                    }
+                } catch (RuntimeException | Error e) {
+                    accumulator.fail();
+                    throw e;
+                }
                 return null;
             }
         };
 
-        Iterator<String> commodityIterator = ArrayUtil.getIterator(readFAF3.sctgStringCommodities);
-        IteratorAction<String> itTask = new IteratorAction<>(commodityIterator, commodityDisaggregationFunctionFAF);
-        ForkJoinPool pool = ForkJoinPoolFactory.getForkJoinPool();
+        Integer[] workerIndices = new Integer[workers];
+        for (int worker = 0; worker < workers; worker++) workerIndices[worker] = worker;
+        Iterator<Integer> workerIterator = ArrayUtil.getIterator(workerIndices);
+        IteratorAction<Integer> itTask = new IteratorAction<>(workerIterator, commodityDisaggregationFunctionFAF);
         pool.execute(itTask);
         itTask.waitForCompletion();
+        accumulator.finish();
+        if (enableMSA) {
+            for (double[][] msaTonsThisCom: msaTonsByCom) {
+                for (int i = 1; i <= numberOfMSA; i++) {
+                    for (int j = 1; j <= numberOfMSA; j++) {
+                        msaFlowsTons[i][j] += msaTonsThisCom[i][j];
+                    }
+                }
+            }
+        }
     }
 
 
@@ -456,6 +581,9 @@ public class longDistanceTruck {
             disaggCounty[fips] = countiesToDisaggregate.getValueAt(row, "DISAGGNCST") != -1;
             fipsToZone[(int) countiesToDisaggregate.getValueAt(row, "COUNTY")] =
                     (int) countiesToDisaggregate.getValueAt(row, "NCSTMZONE");
+            // flows of zones missing in the zone system are skipped, report such zones once
+            if (!disaggCounty[fips] && data.getZoneOrdinal(fipsToZone[fips]) < 0)
+                logger.warn("  Zone " + fipsToZone[fips] + " of county " + fips + " is not part of the zone system, its flows are skipped");
         }
         for (int row = 1; row <= specialRegions.getRowCount(); row++) {
             disaggCounty[(int) specialRegions.getValueAt(row, "modelCode")] = false;
@@ -464,9 +592,9 @@ public class longDistanceTruck {
         // walk through every zone
         zonesByCounty = new HashMap<>();
         // identify zoneArray by county FIPS
-        int[] zones = ncstmData.getZones();
+        int[] zones = data.getZones();
         for (int zone: zones) {
-            int fips = ncstmData.getFipsOfZone(zone);
+            int fips = data.getFipsOfZone(zone);
             if (fips == -1) continue;   // outside of area to be disaggregated
             if (disaggCounty[fips]) {
                 if (zonesByCounty.containsKey(fips)) {
@@ -490,21 +618,37 @@ public class longDistanceTruck {
         HashMap<String, double[]> weights = new HashMap<>();
 
         String[] commodities = readFAF3.sctgStringCommodities;
+        // resolve socio-economic data columns and make/use coefficients once instead of for every zone
+        int[] industryColumns = new int[industries.length];
+        for (int ind = 0; ind < industries.length; ind++) industryColumns[ind] = data.getSEdataColumn(industries[ind]);
+        int totEmpColumn = data.getSEdataColumn("TOTEMP");
+        float[][] makeCoefficients = new float[commodities.length][industries.length];
+        float[][] useCoefficients = new float[commodities.length][industries.length];
+        for (int com = 0; com < commodities.length; com++) {
+            for (int ind = 0; ind < industries.length; ind++) {
+                String code = industries[ind] + "_" + commodities[com];
+                makeCoefficients[com][ind] = makeHshLocal.get(code);
+                useCoefficients[com][ind] = useHshLocal.get(code);
+            }
+        }
         for (int fips : countyFips) {
             if (!disaggCounty[fips]) continue;
             int[] zonesInThisCounty = zonesByCounty.get(fips);
 //            if (zonesInThisCounty == null) logger.warn ("Check error: " + fips);
-            for (String com : commodities) {
+            float[][] employment = new float[zonesInThisCounty.length][industries.length];
+            for (int iz = 0; iz < zonesInThisCounty.length; iz++) {
+                for (int ind = 0; ind < industries.length; ind++)
+                    employment[iz][ind] = data.getSEdataItem(industryColumns[ind], zonesInThisCounty[iz]);
+            }
+            for (int com = 0; com < commodities.length; com++) {
                 double sumA = 0;
                 double sumB = 0;
                 double[] makeWeight = new double[zonesInThisCounty.length];
                 double[] useWeight = new double[zonesInThisCounty.length];
                 for (int iz = 0; iz < zonesInThisCounty.length; iz++) {
-                    int zn = zonesInThisCounty[iz];
-                    for (String ind : industries) {
-                        String code = ind + "_" + com;
-                        makeWeight[iz] += ncstmData.getSEdataItem(ind, zn) * makeHshLocal.get(code);
-                        useWeight[iz] += ncstmData.getSEdataItem(ind, zn) * useHshLocal.get(code);
+                    for (int ind = 0; ind < industries.length; ind++) {
+                        makeWeight[iz] += employment[iz][ind] * makeCoefficients[com][ind];
+                        useWeight[iz] += employment[iz][ind] * useCoefficients[com][ind];
                         sumA += makeWeight[iz];
                         sumB += useWeight[iz];
                     }
@@ -512,12 +656,12 @@ public class longDistanceTruck {
                 // in rare cases where necessary employment for this commodity is not available in this county, use total zonal employment as weights
                 // this also applies to counties outside of AZ that are subdivided in smaller zones, for which only total employment is available
                 if (sumA == 0) for (int i = 0; i < zonesInThisCounty.length; i++)
-                    makeWeight[i] = ncstmData.getSEdataItem("TOTEMP", zonesInThisCounty[i]);
+                    makeWeight[i] = data.getSEdataItem(totEmpColumn, zonesInThisCounty[i]);
                 if (sumB == 0) for (int i = 0; i < zonesInThisCounty.length; i++)
-                    useWeight[i] = ncstmData.getSEdataItem("TOTEMP", zonesInThisCounty[i]);
-                String mcode = fips + "_" + com + "_make";
+                    useWeight[i] = data.getSEdataItem(totEmpColumn, zonesInThisCounty[i]);
+                String mcode = fips + "_" + commodities[com] + "_make";
                 weights.put(mcode, makeWeight);
-                String ucode = fips + "_" + com + "_use";
+                String ucode = fips + "_" + commodities[com] + "_use";
                 weights.put(ucode, useWeight);
             }
         }
@@ -525,18 +669,19 @@ public class longDistanceTruck {
     }
 
 
-    private void processCommodityDisaggregationWithDC(String com, Map<String,double[]> weights) {
-        // Disaggregate a single commodity from county-to-county flows to zone-to-zone flows
+    private double[][] processCommodityDisaggregationWithDC(String com, Map<String,double[]> weights,
+                                                            zonePairAccumulator.partialBuffer trucks) {
+        // Disaggregate a single commodity from county-to-county flows to zone-to-zone flows, add trucks to buffer and
+        // return tons between MSAs
         logger.info("Starting to process " + com);
 
         int comNum = Integer.parseInt(com.substring(4));
-        float[][] countyFlows = cntFlows.get(com);
+        sparseFlowStore countyFlows = cntFlows.get(com);
+        int[] destinations = new int[countyFlows.getSize()];
+        float[] flows = new float[countyFlows.getSize()];
         int[] zonesOrigCounty;
         int[] zonesDestCounty;
         double[][] msaTonsThisCom = new double[numberOfMSA + 1][numberOfMSA + 1];
-        int[] zones = ncstmData.getZones();
-        int zoneIndex[] = new int[ncstmUtil.getHighestVal(zones) + 1];
-        for (int i = 0; i < zones.length; i++) zoneIndex[zones[i]] = i;
 
         // create zone array with fips codes, special region codes and Canada & Mexico codes
         int[] zoneArray = new int[countyFips.length + 2];  // + 2 for Canada and Mexico
@@ -559,10 +704,13 @@ public class longDistanceTruck {
                 origWeights = new double[]{1.};
                 zonesOrigCounty = new int[]{zoneArray[origCnt]};
             }
-            for (int destCnt = 0; destCnt < zoneArray.length; destCnt++) {
+            int nonZeros = countyFlows.getRow(origCnt, destinations, flows);
+            for (int k = 0; k < nonZeros; k++) {
+                int destCnt = destinations[k];
+                if (destCnt >= zoneArray.length) break;
                 int destFips = zoneArray[destCnt];
                 if (ignoreThisFips(destFips)) continue;  // ignore Guam, Puerto Rico and other distant islands
-                float flow = countyFlows[origCnt][destCnt];
+                float flow = flows[k];
                 if (flow == 0) continue;
                 if (fafUtils.countyFlowConnectsWithHawaii(origFips, destFips)) continue;  // Hawaii is not connected to highway system
                 double[] destWeights;
@@ -586,6 +734,7 @@ public class longDistanceTruck {
                     int oZn = zonesOrigCounty[iz];   // convert to TAZ ID
                     if (oZn == -1) logger.warn("Error 1: " +iz+" "+origFips+" "+disaggCounty[origFips]);
                     if (specialRegionsToTaz[oZn] > 0) oZn = specialRegionsToTaz[oZn];
+                    int oz = data.getZoneOrdinal(oZn);
 
                     for (int jz = 0; jz < destWeights.length; jz++) {
                         double thisFlow = disFlow[iz][jz];
@@ -595,10 +744,13 @@ public class longDistanceTruck {
                         if (specialRegionsToTaz[dZn] > 0) dZn = specialRegionsToTaz[dZn];
                         if (oZn == -1) logger.warn("Error 3: " +iz+" "+origFips+" "+disaggCounty[origFips]);
                         if (dZn == -1) logger.warn("Error 4: " +jz+" "+destFips+" "+disaggCounty[destFips]);
-                        if (enableMSA && ncstmData.getMSAOfZone(oZn) != -1 && ncstmData.getMSAOfZone(dZn) != -1)
-                            msaTonsThisCom[ncstmData.getMSAOfZone(oZn)][ncstmData.getMSAOfZone(dZn)] += thisFlow;
+                        if (enableMSA && data.getMSAOfZone(oZn) != -1 && data.getMSAOfZone(dZn) != -1)
+                            msaTonsThisCom[data.getMSAOfZone(oZn)][data.getMSAOfZone(dZn)] += thisFlow;
 
-                        float distance = ncstmData.getTruckDistance(oZn, dZn);
+                        // zones missing in the zone system have no truck distance and are skipped
+                        int dz = data.getZoneOrdinal(dZn);
+                        if (oz < 0 || dz < 0) continue;
+                        float distance = data.getTruckDistanceByIndex(oz, dz);
                         if (distance < minDist) continue;
                         double dcFlow = 0;
                         if (useDistributionCenters) {
@@ -611,27 +763,18 @@ public class longDistanceTruck {
                             for (distributionCenters thisDc: dc) {
                                 double flowThisDC = dcFlow * thisDc.getSize() / totSize;
                                 // trip from origin to distribution center
-                                float distanceToDC = ncstmData.getTruckDistance(oZn, thisDc.getTaz());
+                                int dct = data.getZoneOrdinal(thisDc.getTaz());
+                                if (dct < 0) continue;   // trucks cannot be assigned to a center in an unknown zone
+                                float distanceToDC = data.getTruckDistanceByIndex(oz, dct);
                                 double[] trucksByTypeToDC = cttt.convertThisFlowFromTonsToTrucks(com, distanceToDC, flowThisDC);
-                                int oz1 = zoneIndex[oZn];
-                                int dct = zoneIndex[thisDc.getTaz()];
-                                synchronized (sutTrucks[oz1]) {
-                                    sutTrucks[oz1][dct] += trucksByTypeToDC[0] / 365.25 * aawdtFactor;
-                                }
-                                synchronized (mutTrucks[oz1]) {
-                                    mutTrucks[oz1][dct] += trucksByTypeToDC[1] / 365.25 * aawdtFactor;
-                                }
+                                trucks.add(0, oz, dct, trucksByTypeToDC[0] / 365.25 * aawdtFactor);
+                                trucks.add(1, oz, dct, trucksByTypeToDC[1] / 365.25 * aawdtFactor);
 
                                 // trip from distribution center to destination
-                                float distanceFromDC = ncstmData.getTruckDistance(thisDc.getTaz(), dZn);
+                                float distanceFromDC = data.getTruckDistanceByIndex(dct, dz);
                                 double[] trucksByTypeFromDC = cttt.convertThisFlowFromTonsToTrucks(com, distanceFromDC, flowThisDC);
-                                int dz2 = zoneIndex[dZn];
-                                synchronized (sutTrucks[dct]) {
-                                    sutTrucks[dct][dz2] += trucksByTypeFromDC[0] / 365.25 * aawdtFactor;
-                                }
-                                synchronized (mutTrucks[dct]) {
-                                    mutTrucks[dct][dz2] += trucksByTypeFromDC[1] / 365.25 * aawdtFactor;
-                                }
+                                trucks.add(0, dct, dz, trucksByTypeFromDC[0] / 365.25 * aawdtFactor);
+                                trucks.add(1, dct, dz, trucksByTypeFromDC[1] / 365.25 * aawdtFactor);
 
 
                             }
@@ -640,38 +783,27 @@ public class longDistanceTruck {
                         thisFlow = thisFlow - dcFlow;
                         if (thisFlow > 0) {
                             double[] trucksByType = cttt.convertThisFlowFromTonsToTrucks(com, distance, thisFlow);
-                            int oz = zoneIndex[oZn];
-                            int dz = zoneIndex[dZn];
-                            synchronized (sutTrucks[oz]) {
-                                sutTrucks[oz][dz] += trucksByType[0] / 365.25 * aawdtFactor;
-                            }
-                            synchronized (mutTrucks[oz]) {
-                                mutTrucks[oz][dz] += trucksByType[1] / 365.25 * aawdtFactor;
-                            }
+                            trucks.add(0, oz, dz, trucksByType[0] / 365.25 * aawdtFactor);
+                            trucks.add(1, oz, dz, trucksByType[1] / 365.25 * aawdtFactor);
                         }
                     }
                 }
             }
         }
-        if (enableMSA) {
-            synchronized (msaFlowsTons[0]) {
-                for (int i = 1; i <= numberOfMSA; i++) {
-                    for (int j = 1; j <= numberOfMSA; j++) {
-                        msaFlowsTons[i][j] += msaTonsThisCom[i][j];
-                    }
-                }
-            }
-        }
+        return msaTonsThisCom;
     }
 
 
-    private void processCommodityDisaggregation(String com, Map<String,double[]> weights) {
-        // Disaggregate a single commodity from county-to-county flows to zone-to-zone flows
+    private void processCommodityDisaggregation(String com, Map<String,double[]> weights,
+                                                zonePairAccumulator.partialBuffer trucks) {
+        // Disaggregate a single commodity from county-to-county flows to zone-to-zone flows and add trucks to buffer
 
 
         logger.info("  Processing " + com);
 
-        float[][] countyFlows = cntFlows.get(com);
+        sparseFlowStore countyFlows = cntFlows.get(com);
+        int[] destinations = new int[countyFlows.getSize()];
+        float[] flows = new float[countyFlows.getSize()];
         int[] zonesOrigCounty;
         int[] zonesDestCounty;
 
@@ -687,10 +819,13 @@ public class longDistanceTruck {
                 zonesOrigCounty = new int[]{fipsToZone[origFips]};
             }
 
-            for (int destCnt = 0; destCnt < countyFips.length; destCnt++) {
+            int nonZeros = countyFlows.getRow(origCnt, destinations, flows);
+            for (int k = 0; k < nonZeros; k++) {
+                int destCnt = destinations[k];
+                if (destCnt >= countyFips.length) break;
                 int destFips = countyFips[destCnt];
                 if (ignoreThisFips(destFips)) continue;  // ignore Guam, Puerto Rico and other distant islands
-                float flow = countyFlows[origCnt][destCnt];
+                float flow = flows[k];
                 if (flow == 0) continue;
                 if (fafUtils.countyFlowConnectsWithHawaii(origFips, destFips)) continue;  // Hawaii is not connected to highway system
                 double[] destWeights;
@@ -706,29 +841,23 @@ public class longDistanceTruck {
 
                 double[][] disFlow = df.disaggCountyToZones(flow, origWeights, destWeights);
                 for (int iz = 0; iz < origWeights.length; iz++) {
-                    int iTaz = zonesOrigCounty[iz];
+                    int oz = data.getZoneOrdinal(zonesOrigCounty[iz]);
                     for (int jz = 0; jz < destWeights.length; jz++) {
-                        int jTaz = zonesDestCounty[jz];
+                        int dz = data.getZoneOrdinal(zonesDestCounty[jz]);
                         double thisFlow = disFlow[iz][jz];
-                        float distance = ncstmData.getTruckDistance(iTaz, jTaz);
+                        if (oz < 0 || dz < 0) continue;   // zones missing in the zone system have no truck distance
+                        float distance = data.getTruckDistanceByIndex(oz, dz);
                         if (thisFlow == 0 || distance < minDist) continue;
                         double trucksByType[] = cttt.convertThisFlowFromTonsToTrucks(com, distance, thisFlow);
-                        int oz = zoneIndex[iTaz];
-                        int dz = zoneIndex[jTaz];
-
-                        synchronized (sutTrucks[oz]) {
-                            sutTrucks[oz][dz] += (trucksByType[0] / 365.25 * aawdtFactor);
-                        }
-                        synchronized (mutTrucks[oz]) {
-                            mutTrucks[oz][dz] += (trucksByType[1] / 365.25 * aawdtFactor);
-                        }
 
+                        trucks.add(0, oz, dz, trucksByType[0] / 365.25 * aawdtFactor);
+                        trucks.add(1, oz, dz, trucksByType[1] / 365.25 * aawdtFactor);
                     }
                 }
             }
         }
-        logger.info("Finished processing " + com + " with " + ncstmUtil.getSum(sutTrucks) + " SUT and " +
-        ncstmUtil.getSum(mutTrucks) + " MUT trucks.");
+        logger.info("Finished processing " + com + " with " + trucks.getSum(0) + " SUT and " +
+        trucks.getSum(1) + " MUT trucks.");
     }
 
 
@@ -742,7 +871,7 @@ public class longDistanceTruck {
 
         double emptyRate = (100f - ResourceUtil.getDoubleProperty(appRb, "empty.truck.rate")) / 100f;
 
-        int[] zones = ncstmData.getZones();
+        int[] zones = data.getZones();
         double[] balSut = new double[zones.length];
         double[] balMut = new double[zones.length];
         for (int orig = 0; orig < zones.length; orig++) {
@@ -793,7 +922,7 @@ public class longDistanceTruck {
     private Matrix balanceEmpties(double[] trucks) {
         // generate empty truck trips
 
-        int[] zones = ncstmData.getZones();
+        int[] zones = data.getZones();
         RowVector emptyTruckDest = new RowVector(zones.length);
         emptyTruckDest.setExternalNumbersZeroBased(zones);
         ColumnVector emptyTruckOrig = new ColumnVector(zones.length);
@@ -808,14 +937,27 @@ public class longDistanceTruck {
                 emptyTruckDest.setValueAt(zones[zn], 0f);
             }
         }
-        Matrix seed = new Matrix(zones.length, zones.length);
-        seed.setExternalNumbersZeroBased(zones);
-        for (int o: zones) {
-            for (int d: zones) {
-                float friction = (float) Math.exp(-0.001 * ncstmData.getTruckDistance(o, d));
-                seed.setValueAt(o, d, friction);
+        frictionFunction frictionFn = frictionFunction.get(appRb, -0.001, 5000);
+        float[][] friction = new float[zones.length][];
+        for (int o = 0; o < zones.length; o++) {
+            friction[o] = data.getTruckDistanceRow(o, null);
+            for (int d = 0; d < zones.length; d++) friction[o][d] = frictionFn.getFriction(friction[o][d]);
+        }
+        if (matrixBalancer.useNativeBalancer(appRb)) {
+            float[] origins = new float[zones.length];
+            float[] destinations = new float[zones.length];
+            for (int zn = 0; zn < zones.length; zn++) {
+                origins[zn] = emptyTruckOrig.getValueAt(zones[zn]);
+                destinations[zn] = emptyTruckDest.getValueAt(zones[zn]);
             }
+            matrixBalancer.create(appRb, 0.001, matrixBalancer.adjustment.bothUsingAverage).balance("empty trucks",
+                    friction, origins, destinations);
+            Matrix empties = new Matrix("empty trucks", "empty trucks", friction);
+            empties.setExternalNumbersZeroBased(zones);
+            return empties;
         }
+        Matrix seed = new Matrix("seed", "seed", friction);
+        seed.setExternalNumbersZeroBased(zones);
         MatrixBalancerRM mb = new MatrixBalancerRM(seed, emptyTruckOrig, emptyTruckDest, 0.001, 10, MatrixBalancerRM.ADJUST.BOTH_USING_AVERAGE);
         return mb.balance();
     }
@@ -825,28 +967,41 @@ public class longDistanceTruck {
         // Write out truck trip table
 
         String fileName = appRb.getString("zonal.truck.flows") + "_" + year + ".csv";
-        logger.info("Writing truck trips to file " + fileName);
-        PrintWriter pw = fafUtils.openFileForSequentialWriting(fileName);
-        pw.println("orig,dest,singleUnitTrucks,multiUnitTrucks");
-        int[] zones = ncstmData.getZones();
+        int[] zones = data.getZones();
+        PrintWriter pw = null;
+        if (binaryMatrixWriter.writeCsv(appRb)) {
+            logger.info("Writing truck trips to file " + fileName);
+            pw = fafUtils.openFileForSequentialWriting(fileName);
+            pw.println("orig,dest,singleUnitTrucks,multiUnitTrucks");
+        }
+        binaryMatrixWriter binWriter = null;
+        if (binaryMatrixWriter.writeBinary(appRb)) binWriter = binaryMatrixWriter.open(appRb, fileName, zones,
+                new String[]{"singleUnitTrucks", "multiUnitTrucks"});
+        float[][] binRow = new float[2][zones.length];
         double[][] ps = new double[2][zones.length];
         double[][] as = new double[2][zones.length];
         for (int zone = 0; zone < zones.length; zone++) sutTrucks[zone][zone] += 0.1;  // inserted to ensure that matrix contains all zones
         for (int orig = 0; orig < zones.length; orig++) {
             for (int dest = 0; dest < zones.length; dest++) {
+                binRow[0][dest] = (float) sutTrucks[orig][dest];
+                binRow[1][dest] = (float) mutTrucks[orig][dest];
                 // only write lines that have data, and write all intrazonal cells to ensure TransCAD matrix will have all zones included
                 if (sutTrucks[orig][dest] + mutTrucks[orig][dest] > 0 || orig == dest) {
-                    pw.format ("%d,%d,%.6f,%.6f", zones[orig], zones[dest], sutTrucks[orig][dest],
-                            mutTrucks[orig][dest]);
-                    pw.println();
+                    if (pw != null) {
+                        pw.format ("%d,%d,%.6f,%.6f", zones[orig], zones[dest], sutTrucks[orig][dest],
+                                mutTrucks[orig][dest]);
+                        pw.println();
+                    }
                     ps[0][orig] += sutTrucks[orig][dest];
                     ps[1][orig] += mutTrucks[orig][dest];
                     as[0][dest] += sutTrucks[orig][dest];
                     as[1][dest] += mutTrucks[orig][dest];
                 }
             }
+            if (binWriter != null) binWriter.writeRow(binRow);
         }
-        pw.close();
+        if (pw != null) pw.close();
+        if (binWriter != null) binWriter.close();
         if (ResourceUtil.getBooleanProperty(appRb, "write.truck.prod.attr.by.zone")) {
             String sumFileName = appRb.getString("truck.prod.attr.summary") + "_" + year + ".csv";
             PrintWriter pws = fafUtils.openFileForSequentialWriting(sumFileName);
@@ -1,9 +1,8 @@
 package com.pb.projects.ncstm.national;
 
+import com.pb.projects.ncstm.modelContext;
 import org.apache.log4j.Logger;
 
-import java.util.ResourceBundle;
-
 /**
  * Model to simulate national truck flows for the North Carolina Statewide Model (NCSTM)
  * Author: Rolf Moeckel, PB Albuquerque
@@ -12,25 +11,26 @@ import java.util.ResourceBundle;
 public class nationalModel {
 
     static Logger logger = Logger.getLogger(nationalModel.class);
-    ResourceBundle appRb;
+    private modelContext context;
 
-    public nationalModel (ResourceBundle rp) {
+    public nationalModel (modelContext context) {
         // Constructor
-        this.appRb = rp;
+        this.context = context;
     }
 
 
-    public void run (int year, int modelType) {
+    public void run (int modelType) {
         // Run method for national model
+        int year = context.getYear();
 
         if (modelType == 2) {
             logger.info("Started national truck model for year " + year);
-            longDistanceTruck ldt = new longDistanceTruck(appRb, year);
+            longDistanceTruck ldt = new longDistanceTruck(context);
             ldt.run();
         } else if (modelType == 3) {
             logger.info("Started national auto model for year " + year);
-            longDistanceAuto lda = new longDistanceAuto(appRb);
-            lda.run(year);
+            longDistanceAuto lda = new longDistanceAuto(context);
+            lda.run();
         }
     }
 
@@ -6,11 +6,22 @@ package com.pb.projects.ncstm;
  */
 
 import com.pb.common.matrix.*;
+import com.pb.common.util.ResourceUtil;
 import com.pb.projects.ncstm.national.nationalModel;
+import com.pb.projects.ncstm.statewide.shortDistanceTruck;
 import com.pb.projects.ncstm.statewide.statewideModel;
 import org.apache.log4j.Logger;
 
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
 import java.util.ResourceBundle;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import java.io.File;
 import java.nio.file.Files;
@@ -29,8 +40,9 @@ public class ncstm {
         long startTime = System.currentTimeMillis();
         logger.info ("NCSTM started.");
         
-        ResourceBundle appRb = ncstmUtil.getResourceBundle(args[0]);
-        int year = Integer.valueOf(args[1]);
+        // several scenarios (properties files) and years may be given as comma-separated lists, every combination is run
+        String[] propertiesFiles = args[0].split(",");
+        String[] years = args[1].split(",");
         int modelType = Integer.valueOf(args[2]);
         // report modelType info to user
         if(modelType < 0 || modelType > 3){
@@ -60,18 +72,47 @@ public class ncstm {
                 break;
         }
 
-        //Read in the zonal data, trip rates, and the truck skims.
-        ncstmData.readZonalData(appRb, year);
-        ncstmData.readSkims(appRb, year);
-        ncstmData.readTripRates(appRb);
-
-        if (modelType == 1) {
-            statewideModel sm = new statewideModel(appRb);
-            sm.run(year);
+        ResourceBundle firstRb = ncstmUtil.getResourceBundle(propertiesFiles[0]);
+        int concurrentRuns = ResourceUtil.getIntegerProperty(firstRb, "concurrent.model.runs", 1);
+        if (concurrentRuns > 1 && modelType != 1) {
+            // the FAF and NELDT libraries used by model types 2 and 3 keep static state
+            logger.info("Model type " + modelType + " cannot run concurrently, runs are executed one after another");
+            concurrentRuns = 1;
         }
-        else if (modelType >= 2) {
-            nationalModel nm = new nationalModel(appRb);
-            nm.run(year, modelType);
+        List<Callable<Object>> runs = new ArrayList<>();
+        HashMap<String, String> writtenBy = new HashMap<>();
+        for (String propertiesFile: propertiesFiles) {
+            final ResourceBundle rb = ncstmUtil.getResourceBundle(propertiesFile.trim());
+            for (String yearToken: years) {
+                final int year = Integer.valueOf(yearToken.trim());
+                String run = propertiesFile.trim() + " (" + year + ")";
+                // output file names of the short-distance truck model do not contain the year
+                List<String> outputFiles = modelType == 1 ? shortDistanceTruck.getOutputFiles(rb) : new ArrayList<>();
+                for (String file: outputFiles) {
+                    String otherRun = writtenBy.put(file, run);
+                    if (otherRun == null) continue;
+                    if (concurrentRuns > 1) {
+                        // concurrent runs would write the same file at the same time
+                        logger.error("Runs " + otherRun + " and " + run + " both write " + file +
+                                ", they cannot run concurrently. Set concurrent.model.runs = 1 or use separate output files.");
+                        runningFile.delete();
+                        System.exit(1);
+                    }
+                    logger.warn("Run " + run + " overwrites " + file + " of run " + otherRun);
+                }
+                runs.add(() -> {
+                    runModel(rb, year, modelType);
+                    return null;
+                });
+            }
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(concurrentRuns, runs.size())));
+        try {
+            for (Future<Object> run: executor.invokeAll(runs)) run.get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException("Model run failed", e);
+        } finally {
+            executor.shutdown();
         }
 
         //delete txt file at end
@@ -86,4 +127,22 @@ public class ncstm {
         logger.info("Runtime: " + runTime + " minutes.");
     }
 
+
+    private static void runModel (ResourceBundle appRb, int year, int modelType) {
+        // Read in the zonal data, trip rates, and the inputs used by modelType, and run model for one scenario and year
+        EnumSet<ncstmData.inputGroup> inputs = (modelType == 3) ?
+                EnumSet.of(ncstmData.inputGroup.autoSkims, ncstmData.inputGroup.attractions) :
+                EnumSet.of(ncstmData.inputGroup.truckSkim);
+        modelContext context = modelContext.loadStatewide(appRb, year, inputs);
+
+        if (modelType == 1) {
+            statewideModel sm = new statewideModel(context);
+            sm.run();
+        }
+        else if (modelType >= 2) {
+            nationalModel nm = new nationalModel(context);
+            nm.run(modelType);
+        }
+    }
+
 }
@@ -5,37 +5,235 @@ import com.pb.common.matrix.Matrix;
 import com.pb.common.matrix.MatrixReader;
 import com.pb.common.matrix.MatrixType;
 import com.pb.common.util.ResourceUtil;
-import com.pb.projects.ncstm.ncstmUtil;
-import com.pb.projects.ncstm.mpoTrucks.producePAs;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
 import java.util.ResourceBundle;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
 
 /**
- * Data set for model to simulate truck flows for the North Carolina Statewide Model (NCSTM)
+ * Data set for model to simulate truck flows for the North Carolina Statewide Model (NCSTM). Every model run owns
+ * its own instance (see modelContext), so that several years or scenarios can be held in one JVM at the same time.
  * Author: Rolf Moeckel, PB Albuquerque
  * Data: 29 July 2011
  */
 public class ncstmData {
 
     static org.apache.log4j.Logger logger = org.apache.log4j.Logger.getLogger(ncstmData.class);
-    private static TableDataSet zonalSystem,prodAndAttr,tripRates,lnTripRates,seData,hotelRooms,hospitals,parkVisitors;
-    private static String personLongDistanceTravelMonth;
-    private static Matrix truckDistance;
-    private static Matrix autoTime;
-    private static Matrix autoDistance;
-    private static int numberOfZones;
+    public enum inputGroup {truckSkim, autoSkims, attractions}
+    private TableDataSet zonalSystem,tripRates,lnTripRates,seData;
+    private volatile TableDataSet hotelRooms,hospitals,parkVisitors;
+    private String personLongDistanceTravelMonth;
+    private volatile skimMatrix truckDistance;
+    private volatile skimMatrix autoTime;
+    private volatile skimMatrix autoDistance;
+    private ResourceBundle appRb;
+    private int year;
+    private final EnumSet<inputGroup> loadedGroups = EnumSet.noneOf(inputGroup.class);
+    private final EnumMap<inputGroup, String> groupFingerprints = new EnumMap<>(inputGroup.class);
+    private dataSnapshot snapshot;
+    private zoneNeighbours truckNeighbours;
+    private float neighbourRadius;
+    private int numberOfZones;
+    private zoneAttributes zoneSystemAttributes;
+    private zoneAttributes seAttributes;
+    private int[] fipsOfZone;
+    private int[] areaTypeOfZone;
+    private int[] msaOfZone;
+
+
+    public synchronized void readInputs (ResourceBundle rb, int year, EnumSet<inputGroup> groups) {
+        // read zonal data, trip rates and the input groups needed by the model type, either from the snapshot of an
+        // earlier run or from the input files. Groups not listed are read on first access
+
+        appRb = rb;
+        this.year = year;
+        neighbourRadius = (float) ResourceUtil.getDoubleProperty(rb, "truck.neighbour.index.radius", 50);
+        File snapshotFile = dataSnapshot.getSnapshotFile(rb, year);
+        String fingerprint = null;
+        snapshot = null;
+        groupFingerprints.clear();
+        if (snapshotFile != null) {
+            fingerprint = dataSnapshot.getFingerprint(rb, year, getInputFileNames(rb, year), new String[]{
+                    String.valueOf(ResourceUtil.getBooleanProperty(rb, "use.ln.trip.rates.for.sut.mut", false))});
+            snapshot = dataSnapshot.read(snapshotFile, fingerprint);
+        }
+        EnumSet<inputGroup> missing = EnumSet.copyOf(groups);
+        if (snapshot != null) {
+            setSnapshotData(snapshot);
+            for (inputGroup group: groups) takeFromSnapshot(group);
+            missing.removeAll(loadedGroups);
+            if (missing.isEmpty()) return;
+            logger.info("  Snapshot " + snapshotFile + " lacks " + missing + " or holds outdated data, these are read " +
+                    "from input files");
+        }
+        readInputFiles(missing, snapshot == null);
+        if (snapshotFile != null) writeSnapshot(snapshotFile, fingerprint);
+    }
 
 
-    public static void readZonalData (ResourceBundle rb, int year) {
-        // read zonal data
-        zonalSystem = ncstmUtil.importTable(rb.getString("zonal.system"));
-        zonalSystem.buildIndex(zonalSystem.getColumnPosition("TAZ"));
+    private synchronized void require (inputGroup group) {
+        // read input group on first access, if it was not requested when the model run started
+        if (loadedGroups.contains(group)) return;
+        if (takeFromSnapshot(group)) return;
+        logger.info("  Reading " + group + " on first access");
+        readInputFiles(EnumSet.of(group), false);
+    }
+
+
+    private static String[] getInputFileNames (ResourceBundle rb, int year) {
+        // return names of files that are read by every model run
+        ArrayList<String> fileNames = new ArrayList<>(Arrays.asList(rb.getString("zonal.system"),
+                rb.getString("socio.economic.data.file"), rb.getString("socio.economic.hh.by.inc"),
+                rb.getString("trip.rates")));
+        if (ResourceUtil.getBooleanProperty(rb, "use.ln.trip.rates.for.sut.mut", false))
+            fileNames.add(rb.getString("ln.trip.rates"));
+        return fileNames.toArray(new String[fileNames.size()]);
+    }
+
+
+    private String getGroupFingerprint (inputGroup group) {
+        // fingerprint of the files of an input group. Files are only hashed for groups that are used by this run
+        String fingerprint = groupFingerprints.get(group);
+        if (fingerprint != null) return fingerprint;
+        String format = appRb.getString("format.of.skims");
+        String[] fileNames;
+        if (group == inputGroup.attractions) fileNames = new String[]{appRb.getString("hotel.rooms.vacation.rentals"),
+                appRb.getString("hospitals"), appRb.getString("park.visitors")};
+        else if (group == inputGroup.autoSkims) fileNames = new String[]{getSkimFileName(appRb, year, format, "autoTime"),
+                getSkimFileName(appRb, year, format, "autoDistance")};
+        else fileNames = new String[]{getSkimFileName(appRb, year, format, "truckDistance")};
+        fingerprint = dataSnapshot.getFingerprint(appRb, year, fileNames, new String[]{group.name(), format});
+        groupFingerprints.put(group, fingerprint);
+        return fingerprint;
+    }
+
+
+    private boolean takeFromSnapshot (inputGroup group) {
+        // take input group from snapshot if the snapshot holds it for the current input files
+        if (snapshot == null || snapshot.getGroupFingerprint(group.name()) == null) return false;
+        if (!snapshot.getGroupFingerprint(group.name()).equals(getGroupFingerprint(group))) return false;
+        skimMatrix.storagePrecision precision = getSkimPrecision(appRb);
+        if (group == inputGroup.attractions) setAttractions(snapshot.getTable("hotelRooms"),
+                snapshot.getTable("hospitals"), snapshot.getTable("parkVisitors"));
+        else if (group == inputGroup.autoSkims) setAutoSkims(snapshot.getSkim("autoTime").toPrecision(precision),
+                snapshot.getSkim("autoDistance").toPrecision(precision));
+        else setTruckSkim(snapshot.getSkim("truckDistance").toPrecision(precision));
+        return true;
+    }
 
-        seData = ncstmUtil.importTable(rb.getString("socio.economic.data.file"));
 
+    private void setSnapshotData (dataSnapshot snapshot) {
+        // take zonal data and trip rates, input groups are taken by takeFromSnapshot
+        setZonalData(snapshot.getTable("zonalSystem"), snapshot.getTable("seData"));
+        tripRates = snapshot.getTable("tripRates");
+        lnTripRates = snapshot.getTable("lnTripRates");
+    }
+
+
+    private void writeSnapshot (File snapshotFile, String fingerprint) {
+        // write snapshot of all data read so far. Groups of the previous snapshot that this run has not used are kept
+        // with their original fingerprint, so that they are checked by the next run that uses them
+        LinkedHashMap<String, TableDataSet> tables = new LinkedHashMap<>();
+        tables.put("zonalSystem", zonalSystem);
+        tables.put("seData", seData);
+        tables.put("tripRates", tripRates);
+        if (lnTripRates != null) tables.put("lnTripRates", lnTripRates);
+        LinkedHashMap<String, String> fingerprints = new LinkedHashMap<>();
+        ArrayList<skimMatrix> skims = new ArrayList<>();
+        for (inputGroup group: inputGroup.values()) {
+            dataSnapshot source;
+            if (loadedGroups.contains(group)) {
+                source = null;
+                fingerprints.put(group.name(), getGroupFingerprint(group));
+            } else if (snapshot != null && snapshot.getGroupFingerprint(group.name()) != null &&
+                    !groupFingerprints.containsKey(group)) {
+                source = snapshot;
+                fingerprints.put(group.name(), snapshot.getGroupFingerprint(group.name()));
+            } else {
+                continue;
+            }
+            if (group == inputGroup.attractions) {
+                tables.put("hotelRooms", source == null ? hotelRooms : source.getTable("hotelRooms"));
+                tables.put("hospitals", source == null ? hospitals : source.getTable("hospitals"));
+                tables.put("parkVisitors", source == null ? parkVisitors : source.getTable("parkVisitors"));
+            } else if (group == inputGroup.autoSkims) {
+                skims.add(source == null ? autoTime : source.getSkim("autoTime"));
+                skims.add(source == null ? autoDistance : source.getSkim("autoDistance"));
+            } else {
+                skims.add(source == null ? truckDistance : source.getSkim("truckDistance"));
+            }
+        }
+        dataSnapshot.write(snapshotFile, fingerprint, fingerprints, getZones(), tables,
+                skims.toArray(new skimMatrix[skims.size()]));
+    }
+
+
+    private void readInputFiles (EnumSet<inputGroup> groups, boolean readZonalData) {
+        // read input files. Independent files are read concurrently, skims start as soon as the zone system is available
+
+        ResourceBundle rb = appRb;
+        inputLoader loader = new inputLoader();
+        Future<TableDataSet> zonalSystemFile = readZonalData ? loader.readTable(rb.getString("zonal.system")) :
+                CompletableFuture.completedFuture(zonalSystem);
+        Future<TableDataSet> seDataFile = null;
+        Future<TableDataSet> hhByIncFile = null;
+        Future<TableDataSet> tripRateFile = null;
+        Future<TableDataSet> lnTripRateFile = null;
+        if (readZonalData) {
+            seDataFile = loader.readTable(rb.getString("socio.economic.data.file"));
+            hhByIncFile = loader.readTable(rb.getString("socio.economic.hh.by.inc"));
+            tripRateFile = loader.readSharedTable(rb.getString("trip.rates"));
+            if (ResourceUtil.getBooleanProperty(rb, "use.ln.trip.rates.for.sut.mut", false))
+                lnTripRateFile = loader.readSharedTable(rb.getString("ln.trip.rates"));
+        }
+        Future<TableDataSet> hotelFile = null;
+        Future<TableDataSet> hospitalFile = null;
+        Future<TableDataSet> parkFile = null;
+        if (groups.contains(inputGroup.attractions)) {
+            hotelFile = loader.readTable(rb.getString("hotel.rooms.vacation.rentals"));
+            hospitalFile = loader.readTable(rb.getString("hospitals"));
+            parkFile = loader.readTable(rb.getString("park.visitors"));
+        }
+        Future<skimMatrix> autoTimeFile = null;
+        Future<skimMatrix> autoDistanceFile = null;
+        Future<skimMatrix> truckDistanceFile = null;
+        if (groups.contains(inputGroup.autoSkims) || groups.contains(inputGroup.truckSkim)) {
+            String format = getSkimFormat(rb);
+            if (groups.contains(inputGroup.autoSkims)) {
+                autoTimeFile = submitSkim(loader, rb, year, format, "autoTime", zonalSystemFile);
+                autoDistanceFile = submitSkim(loader, rb, year, format, "autoDistance", zonalSystemFile);
+            }
+            if (groups.contains(inputGroup.truckSkim))
+                truckDistanceFile = submitSkim(loader, rb, year, format, "truckDistance", zonalSystemFile);
+        }
+
+        try {
+            if (readZonalData) {
+                TableDataSet seDataTable = inputLoader.get(seDataFile);
+                appendHouseholdsByIncome(seDataTable, inputLoader.get(hhByIncFile));
+                setZonalData(inputLoader.get(zonalSystemFile), seDataTable);
+                tripRates = inputLoader.get(tripRateFile);
+                if (lnTripRateFile != null) lnTripRates = inputLoader.get(lnTripRateFile);
+            }
+            if (parkFile != null) setAttractions(inputLoader.get(hotelFile), inputLoader.get(hospitalFile),
+                    inputLoader.get(parkFile));
+            if (autoDistanceFile != null) setAutoSkims(inputLoader.get(autoTimeFile), inputLoader.get(autoDistanceFile));
+            if (truckDistanceFile != null) setTruckSkim(inputLoader.get(truckDistanceFile));
+        } finally {
+            loader.shutdown();
+        }
+        loader.logTimings();
+    }
+
+
+    private static void appendHouseholdsByIncome (TableDataSet seData, TableDataSet hhByInc) {
         // Add households by income, which is used by the commercial vehicle model trip rates
-        TableDataSet hhByInc = ncstmUtil.importTable(rb.getString("socio.economic.hh.by.inc"));
         hhByInc.buildIndex(hhByInc.getColumnPosition("MODEL_TAZ"));
         int[] seZones = seData.getColumnAsInt("MODEL_TAZ");
         float[] inc1 = new float[seZones.length];
@@ -57,38 +255,67 @@ public class ncstmData {
         seData.appendColumn(inc3, "INC3");
         seData.appendColumn(inc4, "INC4");
         seData.appendColumn(inc5, "INC5");
+    }
 
-        // build index on model TAZ number
-        seData.buildIndex(seData.getColumnPosition("MODEL_TAZ"));
 
-        String fileName = rb.getString("zonal.system");
-        zonalSystem = ncstmUtil.importTable(fileName);    
-      
-        //building index on the TAZ column
+    private void setZonalData (TableDataSet zonalSystemTable, TableDataSet seDataTable) {
+        // set zonal data
+        zonalSystem = zonalSystemTable;
         zonalSystem.buildIndex(zonalSystem.getColumnPosition("TAZ"));
-        
-        personLongDistanceTravelMonth = rb.getString("month.modeled");
 
-        hotelRooms = ncstmUtil.importTable(rb.getString("hotel.rooms.vacation.rentals"));
-        hotelRooms.buildIndex(hotelRooms.getColumnPosition("Model_SMZ"));
+        seData = seDataTable;
 
-        hospitals = ncstmUtil.importTable(rb.getString("hospitals"));
-        hospitals.buildIndex(hospitals.getColumnPosition("TAZ_NCSTM"));
+        // build index on model TAZ number
+        seData.buildIndex(seData.getColumnPosition("MODEL_TAZ"));
 
-        parkVisitors = ncstmUtil.importTable(rb.getString("park.visitors"));
-        parkVisitors.buildIndex(parkVisitors.getColumnPosition("NCSTM"));
+        personLongDistanceTravelMonth = appRb.getString("month.modeled");
 
         numberOfZones = zonalSystem.getRowCount();
 //        logger.info("MaxTAZ: "+ numberOfZones);
+        buildColumnarStores();
+    }
+
+
+    private void setAttractions (TableDataSet hotelTable, TableDataSet hospitalTable, TableDataSet parkTable) {
+        // set attraction tables of the long-distance auto model. parkVisitors is set last, as getters check it to
+        // find out whether the group has been read
+        hotelTable.buildIndex(hotelTable.getColumnPosition("Model_SMZ"));
+        hospitalTable.buildIndex(hospitalTable.getColumnPosition("TAZ_NCSTM"));
+        parkTable.buildIndex(parkTable.getColumnPosition("NCSTM"));
+        hotelRooms = hotelTable;
+        hospitals = hospitalTable;
+        parkVisitors = parkTable;
+        loadedGroups.add(inputGroup.attractions);
+    }
+
+
+    private void requireAttractions () {
+        if (parkVisitors == null) require(inputGroup.attractions);
+    }
+
+
+    private void buildColumnarStores () {
+        // copy zone system and socio-economic data into columnar stores that serve the hot getters below
+        zoneSystemAttributes = new zoneAttributes(zonalSystem, "TAZ", "zonal system");
+        seAttributes = new zoneAttributes(seData, "MODEL_TAZ", "socio-economic data");
+        fipsOfZone = zoneSystemAttributes.getIntColumn("Fips");
+        areaTypeOfZone = zoneSystemAttributes.getIntColumn("AREA_TYPE");
+        msaOfZone = zoneSystemAttributes.hasColumn("msa") ? zoneSystemAttributes.getIntColumn("msa") : null;
+    }
+
+
+    public int[] getZones () {
+        // return int array with zone IDs. The array is shared and must not be changed
+        return zoneSystemAttributes.getKeys();
     }
 
 
-    public static int[] getZones () {
-        // return int array with zone IDs
-        return zonalSystem.getColumnAsInt("TAZ");
+    public int getZoneOrdinal (int taz) {
+        // return position of taz in getZones(), or -1 if taz is not part of the zone system
+        return zoneSystemAttributes.getOrdinal(taz);
     }
 
-    public static boolean applyR3logit (int taz) {
+    public boolean applyR3logit (int taz) {
         // Find out if mode split is modeled for this zone (applies mostly to zones east of the Mississippi
 
         for (int row = 1; row <= zonalSystem.getRowCount(); row++) {
@@ -100,7 +327,7 @@ public class ncstmData {
     }
 
 
-    public static int getNumberOfZones() {
+    public int getNumberOfZones() {
         return numberOfZones;
     }
 
@@ -110,19 +337,32 @@ public class ncstmData {
     }
 
 
-    public static TableDataSet getZoneSystem() {
+    public TableDataSet getZoneSystem() {
         // return TableDataSet of zone system
         return zonalSystem;
     }
 
-    public static float getSEdataItem (String dataItem, int zone) {
+    public float getSEdataItem (String dataItem, int zone) {
         // return single zone value with socio-economic data of column dataItem
-        return seData.getIndexedValueAt(zone, dataItem);
+        return seAttributes.getValue(seAttributes.getColumnHandle(dataItem), zone);
     }
 
 
-    public static float getHotelRooms (int taz) {
+    public int getSEdataColumn (String dataItem) {
+        // return handle of socio-economic data column, to be resolved once before looping over zones
+        return seAttributes.getColumnHandle(dataItem);
+    }
+
+
+    public float getSEdataItem (int column, int zone) {
+        // return single zone value with socio-economic data of column handle
+        return seAttributes.getValue(column, zone);
+    }
+
+
+    public float getHotelRooms (int taz) {
         // return calibrated hotel room weight
+        requireAttractions();
         try {
             float rooms = hotelRooms.getIndexedValueAt(taz, "Hotel_Rms") + hotelRooms.getIndexedValueAt(taz, "Vac_BedRms");
             float calibrator = hotelRooms.getIndexedValueAt(taz, "Adjustment");
@@ -135,8 +375,9 @@ public class ncstmData {
     }
 
 
-    public static float getBeachRelevance (int taz) {
+    public float getBeachRelevance (int taz) {
         // return 0, 1, 2 or 3 for no beach, Beach low, Beach medium and Beach high
+        requireAttractions();
         try {
             return (int) hotelRooms.getIndexedValueAt(taz, "Beach_TAZ");
         } catch (Exception e) {
@@ -145,8 +386,9 @@ public class ncstmData {
     }
 
 
-    public static float getHospitalBeds (int taz) {
+    public float getHospitalBeds (int taz) {
         // return calibrated hospital beds weight
+        requireAttractions();
         try {
             float beds = hospitals.getIndexedValueAt(taz, "Tot_Beds");
             float shareLongDistance = hospitals.getIndexedValueAt(taz, "shareLongDistance");
@@ -158,8 +400,9 @@ public class ncstmData {
     }
 
 
-    public static float getParkVisitors (int taz) {
+    public float getParkVisitors (int taz) {
         // return calibrated hospital beds weight
+        requireAttractions();
         try {
             float visitors;
             if (personLongDistanceTravelMonth.equalsIgnoreCase("average")) {
@@ -175,105 +418,184 @@ public class ncstmData {
     }
 
 
-    public static int getFipsOfZone (int taz) {
-        return (int) zonalSystem.getIndexedValueAt(taz, "Fips");
+    private int getExistingZoneOrdinal (int taz) {
+        int ordinal = zoneSystemAttributes.getOrdinal(taz);
+        if (ordinal < 0) throw new RuntimeException("Zone " + taz + " not found in zonal system");
+        return ordinal;
     }
 
 
-    public static int getAreaTypeOfZone (int taz) {
-        return (int) zonalSystem.getIndexedValueAt(taz, "AREA_TYPE");
+    public int getFipsOfZone (int taz) {
+        return fipsOfZone[getExistingZoneOrdinal(taz)];
     }
 
-    public static int getMSAOfZone (int taz) {
-        try {
-            return (int) zonalSystem.getIndexedValueAt(taz, "msa");
-        } catch (Exception e) {
+
+    public int getAreaTypeOfZone (int taz) {
+        return areaTypeOfZone[getExistingZoneOrdinal(taz)];
+    }
+
+    public int getMSAOfZone (int taz) {
+        int ordinal = zoneSystemAttributes.getOrdinal(taz);
+        if (msaOfZone == null || ordinal < 0) {
             logger.warn("Could not find MSA of TAZ " + taz);
             return 0;
         }
+        return msaOfZone[ordinal];
     }
 
 
-    public static void readSkims(ResourceBundle rb, int year) {
-        // read skim matrices
-        if (rb.getString("format.of.skims").equals("transcad")) {
+    private static String getSkimFormat (ResourceBundle rb) {
+        // return format of skim matrices
+        String format = rb.getString("format.of.skims");
+        if (format.equals("transcad")) {
             logger.info("  Reading TransCAD skim matrices");
-            readTransCADMatrix(rb);
-        } else if (rb.getString("format.of.skims").equals("zmx")) {
+        } else if (format.equals("zmx")) {
             logger.info("  Reading zip skim matrices");
-            readZipMatrices(rb, year);
-        } else if (rb.getString("format.of.skims").equals("csv")) {
+        } else if (format.equals("csv")) {
             logger.info("  Reading csv skim matrices");
-            readCsvMatrices(rb, year);
         } else {
-            logger.error("Unknown skim format set at format.of.skims: " + rb.getString("format.of.skims") +
-                    ". Use transcad, zmx or csv instead.");
+            logger.error("Unknown skim format set at format.of.skims: " + format + ". Use transcad, zmx or csv instead.");
+            throw new RuntimeException("Unknown skim format " + format);
         }
+        return format;
+    }
+
+
+    private static Future<skimMatrix> submitSkim (inputLoader loader, ResourceBundle rb, int year, String format,
+                                                  String skimName, Future<TableDataSet> zonalSystemFile) {
+        // read skim on its own thread once the zone system is available
+        String fileName = getSkimFileName(rb, year, format, skimName);
+        skimMatrix.storagePrecision precision = getSkimPrecision(rb);
+        return loader.submit(skimName + " " + inputLoader.getKey(fileName), skimName + " " + fileName, () -> {
+            int[] zones = inputLoader.get(zonalSystemFile).getColumnAsInt("TAZ");
+            return readSkim(rb, year, format, skimName, zones).toPrecision(precision);
+        });
+    }
+
+
+    private static skimMatrix.storagePrecision getSkimPrecision (ResourceBundle rb) {
+        // return precision used to store skims in memory: single (default), fixed16 or half
+        String precision = ResourceUtil.getProperty(rb, "skim.storage.precision", "single");
+        try {
+            return skimMatrix.storagePrecision.valueOf(precision);
+        } catch (IllegalArgumentException e) {
+            throw new RuntimeException("Unknown skim.storage.precision " + precision + ". Use single, fixed16 or half.");
+        }
+    }
+
+
+    private void setAutoSkims (skimMatrix autoTimeSkim, skimMatrix autoDistanceSkim) {
+        // set auto skims. autoDistance is set last, as getters check it to find out whether the group has been read
+        validateSkim(autoTimeSkim);
+        validateSkim(autoDistanceSkim);
         // overwrite intrazonal distance in Atlanta, as many trips there are longer than 50 miles, even though the
         // calculated intrazonal travel distance is under 50 miles
-        autoDistance.setValueAt(313011, 313011, 50.1f);
+        autoDistanceSkim = autoDistanceSkim.withValueAt(313011, 313011, 50.1f);
+        autoTime = autoTimeSkim;
+        autoDistance = autoDistanceSkim;
+        loadedGroups.add(inputGroup.autoSkims);
     }
 
 
-    private static void readTransCADMatrix(ResourceBundle rb){
-    	// read in transCad matrices
-        // read auto skims
-        String fileNameAutos = ResourceUtil.getProperty(rb, "transcad.auto.skim");
-    	MatrixReader transcadReaderAutos = MatrixReader.createReader(MatrixType.TRANSCAD, new File(fileNameAutos));
-        autoTime = transcadReaderAutos.readMatrix(ResourceUtil.getProperty(rb, "time.matrix.name"));
-        autoDistance = transcadReaderAutos.readMatrix(ResourceUtil.getProperty(rb, "distance.matrix.name"));
-        // read truck skims
-        String fileNameTrucks = ResourceUtil.getProperty(rb, "transcad.truck.skim");
-        MatrixReader transcadReaderTrucks = MatrixReader.createReader(MatrixType.TRANSCAD, new File(fileNameTrucks));
-        truckDistance = transcadReaderTrucks.readMatrix(ResourceUtil.getProperty(rb, "distance.matrix.name"));
+    private void setTruckSkim (skimMatrix truckDistanceSkim) {
+        // set truck skim
+        validateSkim(truckDistanceSkim);
+        truckNeighbours = null;
+        truckDistance = truckDistanceSkim;
+        loadedGroups.add(inputGroup.truckSkim);
     }
 
 
-    private static void readZipMatrices(ResourceBundle rb, int year) {
-        // read zmx zip matrices
-        // read auto skims
-        MatrixReader readerAutoTime = MatrixReader.createReader(rb.getString("zmx.auto.time.skim") + year + ".zmx");
-        autoTime = readerAutoTime.readMatrix();
-        MatrixReader readerAutoDistance = MatrixReader.createReader(rb.getString("zmx.auto.distance.skim") + year + ".zmx");
-        autoDistance = readerAutoDistance.readMatrix();
-        // read truck skims
-        MatrixReader readerTruckDistance = MatrixReader.createReader(rb.getString("zmx.truck.distance.skim") + year + ".zmx");
-        truckDistance = readerTruckDistance.readMatrix();
+    private skimMatrix getTruckSkim () {
+        // return truck distance skim, which is read on first access if needed
+        skimMatrix skim = truckDistance;
+        if (skim == null) {
+            require(inputGroup.truckSkim);
+            skim = truckDistance;
+        }
+        return skim;
     }
 
 
-    private static void readCsvMatrices (ResourceBundle rb, int year) {
-        // read csv zip matrices
+    private void requireAutoSkims () {
+        if (autoDistance == null) require(inputGroup.autoSkims);
+    }
+
 
-        String fileNameAutoDist = rb.getString("csv.auto.distance.skim") + year + ".csv";
-        autoDistance = readSingleCsvMatrix(fileNameAutoDist, "dist");
-        String fileNameAutoTime = rb.getString("csv.auto.time.skim") + year + ".csv";
-        autoTime = readSingleCsvMatrix(fileNameAutoTime, "time");
-        String fileNameTrkDist = rb.getString("csv.truck.distance.skim") + year + ".csv";
-        truckDistance = readSingleCsvMatrix(fileNameTrkDist, "dist");
+    private static void validateSkim (skimMatrix skim) {
+        // report missing cells (NaN, or negative for zones missing in the skim file) once, so that inner loops that
+        // read rows by zone ordinal need not check every value
+        int[] zones = skim.getZones();
+        float[] row = null;
+        long missing = 0;
+        StringBuilder examples = new StringBuilder();
+        for (int i = 0; i < zones.length; i++) {
+            row = skim.getRow(i, row);
+            for (int j = 0; j < zones.length; j++) {
+                if (row[j] >= 0) continue;      // also false for NaN
+                if (missing < 10) examples.append(" ").append(zones[i]).append("-").append(zones[j]);
+                missing++;
+            }
+        }
+        if (missing > 0) logger.warn("  Skim " + skim.getName() + " has " + missing + " missing or negative cells," +
+                " for example O-D pairs" + examples);
     }
 
 
-    private static Matrix readSingleCsvMatrix (String fileName, String columnName) {
-        // read single csv matrix from fileName
+    private static skimMatrix readSkim (ResourceBundle rb, int year, String format, String skimName, int[] zones) {
+        // read single skim, either from binary skim cache or from original skim file
 
-        int[] zones = getZones();
-        TableDataSet tblSet = ncstmUtil.importTable(fileName);
-        Matrix mat = new Matrix(zones.length, zones.length);
-        mat.setExternalNumbersZeroBased(zones);
-        for (int row = 1; row < tblSet.getRowCount(); row++) {
-            int orig = (int) tblSet.getValueAt(row, "orig");
-            int dest = (int) tblSet.getValueAt(row, "dest");
-            float dist = tblSet.getValueAt(row, columnName);
-            mat.setValueAt(orig, dest, dist);
+        File cacheFile = skimCache.getCacheFile(rb, skimName, year);
+        File sourceFile = new File(getSkimFileName(rb, year, format, skimName));
+        String matrixName = !format.equals("transcad") ? "" : skimName.equals("autoTime") ?
+                ResourceUtil.getProperty(rb, "time.matrix.name") : ResourceUtil.getProperty(rb, "distance.matrix.name");
+        String source = skimCache.getSourceDescription(format, sourceFile, matrixName);
+        if (cacheFile != null && skimCache.isValid(cacheFile, source, zones)) {
+            return skimCache.read(cacheFile, skimName);
         }
-        return mat;
+        skimMatrix skim;
+        if (format.equals("csv")) {
+            String columnName = skimName.equals("autoTime") ? "time" : "dist";
+            skim = csvSkimReader.read(sourceFile.getPath(), columnName, skimName, zones);
+        } else {
+            Matrix mat;
+            if (format.equals("transcad")) mat = readTransCADMatrix(rb, skimName);
+            else mat = MatrixReader.createReader(sourceFile.getPath()).readMatrix();
+            skim = skimMatrix.fromMatrix(skimName, mat, zones);
+        }
+        if (cacheFile == null) return skim;
+        skimCache.write(cacheFile, source, skim);
+        return skimCache.read(cacheFile, skimName);
     }
 
 
-    public static float getTruckDistance (int i, int j) {
+    private static String getSkimFileName (ResourceBundle rb, int year, String format, String skimName) {
+        // return name of file that stores skimName in format
+        if (format.equals("transcad")) {
+            if (skimName.equals("truckDistance")) return ResourceUtil.getProperty(rb, "transcad.truck.skim");
+            else return ResourceUtil.getProperty(rb, "transcad.auto.skim");
+        }
+        String token;
+        if (skimName.equals("autoTime")) token = format + ".auto.time.skim";
+        else if (skimName.equals("autoDistance")) token = format + ".auto.distance.skim";
+        else token = format + ".truck.distance.skim";
+        return rb.getString(token) + year + "." + format;
+    }
+
+
+    private static Matrix readTransCADMatrix(ResourceBundle rb, String skimName){
+    	// read in transCad matrix
+        MatrixReader transcadReader = MatrixReader.createReader(MatrixType.TRANSCAD,
+                new File(getSkimFileName(rb, 0, "transcad", skimName)));
+        if (skimName.equals("autoTime")) return transcadReader.readMatrix(ResourceUtil.getProperty(rb, "time.matrix.name"));
+        else return transcadReader.readMatrix(ResourceUtil.getProperty(rb, "distance.matrix.name"));
+    }
+
+
+    public float getTruckDistance (int i, int j) {
+        skimMatrix skim = getTruckSkim();
         try {
-            return truckDistance.getValueAt(i, j);
+            return skim.getValueAt(i, j);
         } catch (Exception e) {
             logger.error("No truck distance value from zone " + i + " to zone " + j);
             return -1;
@@ -281,7 +603,30 @@ public class ncstmData {
     }
 
 
-    public static float getAutoTravelTime (int i, int j) {
+    public float getTruckDistanceByIndex (int originOrdinal, int destinationOrdinal) {
+        // return truck distance for zone ordinals, i.e. positions in getZones(), without translation or error handling
+        return getTruckSkim().getValueAtIndex(originOrdinal, destinationOrdinal);
+    }
+
+
+    public float[] getTruckDistanceRow (int originOrdinal, float[] row) {
+        // copy truck distances from originOrdinal to all zones into row, which is allocated if null or of wrong length.
+        // Destinations are zone ordinals, i.e. positions in getZones()
+        return getTruckSkim().getRow(originOrdinal, row);
+    }
+
+
+    public synchronized zoneNeighbours getTruckNeighbours (float radius) {
+        // return index of destinations within at least radius miles of truck distance, built on first request
+        if (truckNeighbours == null || truckNeighbours.getRadius() < radius) {
+            truckNeighbours = new zoneNeighbours(getTruckSkim(), Math.max(radius, neighbourRadius));
+        }
+        return truckNeighbours;
+    }
+
+
+    public float getAutoTravelTime (int i, int j) {
+        requireAutoSkims();
         try {
             return autoTime.getValueAt(i, j);
         } catch (Exception e) {
@@ -291,61 +636,51 @@ public class ncstmData {
     }
 
 
-    public static Matrix getAutoTimeSkim () {
-        // return time skim
-        return autoTime;
+    public Matrix getAutoTimeSkim () {
+        // return new copy of time skim, owned by the caller
+        requireAutoSkims();
+        return autoTime.toMatrix();
     }
 
 
-    public static Matrix getAutoDistanceSkim () {
-        // return distance skim
-        return autoDistance;
+    public Matrix getAutoDistanceSkim () {
+        // return new copy of distance skim, owned by the caller
+        requireAutoSkims();
+        return autoDistance.toMatrix();
     }
 
 
-    public static void readTripRates (ResourceBundle rb) {
-        // read trip rates for local trucks
-
-        if (ResourceUtil.getBooleanProperty(rb, "use.ln.trip.rates.for.sut.mut", false)) {
-            String fileName = rb.getString("ln.trip.rates");
-            lnTripRates = ncstmUtil.importTable(fileName);
-        }
-        String fileName = rb.getString("trip.rates");
-        tripRates = ncstmUtil.importTable(fileName);
+    public synchronized void releaseAutoSkims () {
+        // drop auto skims once a library holds its own Matrix copies of them (e.g. NELDT in the long-distance auto
+        // model), so that a skim stored in reduced precision is not kept next to its float copy. The skims are read
+        // again on next access
+        autoDistance = null;
+        autoTime = null;
+        loadedGroups.remove(inputGroup.autoSkims);
     }
-    
 
-    public static float[] getTripRates(String colName){
+
+    public float[] getTripRates(String colName){
     	// return array of trip rates
     	return tripRates.getColumnAsFloat(colName);
     }
 
 
-    public static float[] getLnTripRates(String colName){
+    public float[] getLnTripRates(String colName){
         // return array of ln() trip rates
         return lnTripRates.getColumnAsFloat(colName);
     }
 
 
-    public static String[] getTripIndustries(String colName){
+    public String[] getTripIndustries(String colName){
     	// return array of industry types
     	return tripRates.getColumnAsString(colName);
     }
 
 
-    public static String[] getLnTripIndustries(String colName){
+    public String[] getLnTripIndustries(String colName){
         // return array of industry types
         return lnTripRates.getColumnAsString(colName);
     }
-
-
-    public static TableDataSet readProdAndAttr(ResourceBundle rb, String fileName){
-    	//reads productions and attractions
-    	producePAs pas = new producePAs(rb);
-    	pas.run();
-    	prodAndAttr = ncstmUtil.importTable(fileName);
-    	prodAndAttr.buildIndex(1);
-    	return prodAndAttr;
-    }
     
 }
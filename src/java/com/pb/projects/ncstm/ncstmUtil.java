@@ -5,9 +5,13 @@ import com.pb.common.datafile.TableDataSet;
 import com.pb.common.matrix.MatrixType;
 import com.pb.common.matrix.MatrixWriter;
 import com.pb.common.util.ResourceUtil;
+import com.pb.sawdust.util.concurrent.DnCRecursiveAction;
+import com.pb.sawdust.util.concurrent.ForkJoinPoolFactory;
 import org.apache.log4j.Logger;
 import java.io.*;
 import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinTask;
 
 /**
  * Utilities for model to simulate truck flows for the North Carolina Statewide Model (NCSTM)
@@ -17,6 +21,7 @@ import java.util.ResourceBundle;
 public class ncstmUtil {
 
     static Logger logger = Logger.getLogger(ncstmUtil.class);
+    private static final ConcurrentHashMap<String, TableDataSet> sharedTables = new ConcurrentHashMap<>();
 
 
     public static PrintWriter openFileForSequentialWriting(String fileName) {
@@ -54,6 +59,24 @@ public class ncstmUtil {
     }
 
 
+    public static TableDataSet importSharedTable(String filePath) {
+        // read a csv file once per JVM and share it between model runs. The table must be treated as read-only
+        return sharedTables.computeIfAbsent(new File(filePath).getAbsolutePath(), path -> importTable(filePath));
+    }
+
+
+    public static void runAction(DnCRecursiveAction action) {
+        // run action on the shared fork-join pool and wait for it. Called from a task that already runs in a fork-join
+        // pool, the action runs in that pool and the calling worker helps with it instead of blocking
+        if (ForkJoinTask.inForkJoinPool()) {
+            action.invoke();
+        } else {
+            ForkJoinPoolFactory.getForkJoinPool().execute(action);
+            action.getResult();
+        }
+    }
+
+
     public static float rounder(float value, int digits) {
         // rounds value to digits behind the decimal point
         return Math.round(value * Math.pow(10, digits) + 0.5)/(float) Math.pow(10, digits);
@@ -0,0 +1,173 @@
+package com.pb.projects.ncstm;
+
+import com.pb.common.util.ResourceUtil;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.ResourceBundle;
+
+/**
+ * Binary cache of skim matrices for the North Carolina Statewide Model (NCSTM). A skim is converted once into a flat,
+ * row-major float file with a zone-index header and memory-mapped on later runs, so that model runs on the same
+ * machine share the skims through the page cache of the operating system.
+ *
+ * File layout (little endian): magic, version, length of source description m, m bytes of UTF-8 source description,
+ * number of zones n, n zone IDs, n * n float values. The source description identifies the skim format, the absolute
+ * path, size and modification time of the source file, so that runs sharing a cache directory never map a skim read
+ * from a different file.
+ */
+public class skimCache {
+
+    static Logger logger = Logger.getLogger(skimCache.class);
+    private static final int MAGIC = 0x4E43534B;    // "NCSK"
+    private static final int VERSION = 2;
+
+
+    public static File getCacheFile (ResourceBundle rb, String skimName, int year) {
+        // return cache file for skimName, or null if no cache directory is set
+        String directory = ResourceUtil.getProperty(rb, "skim.cache.directory", null);
+        if (directory == null || directory.isEmpty()) return null;
+        return new File(directory, skimName + "_" + year + ".skim");
+    }
+
+
+    public static String getSourceDescription (String format, File sourceFile, String matrixName) {
+        // describe source of a skim by format, matrix name within the file, absolute path, size and modification time
+        File file = sourceFile.getAbsoluteFile();
+        return format + "|" + matrixName + "|" + file.getPath() + "|" + file.length() + "|" + file.lastModified();
+    }
+
+
+    public static boolean isValid (File cacheFile, String source, int[] zones) {
+        // check that cache exists and was written from the same source file for the same zone system
+        if (!cacheFile.exists()) return false;
+        try (RandomAccessFile raf = new RandomAccessFile(cacheFile, "r")) {
+            cacheHeader header = readHeader(raf.getChannel());
+            if (header == null) return false;
+            if (!header.source.equals(source)) {
+                logger.info("  Skim cache " + cacheFile + " was written from " + header.source + " and will be rebuilt");
+                return false;
+            }
+            if (!Arrays.equals(header.zones, zones)) {
+                logger.info("  Skim cache " + cacheFile + " was written for a different zone system and will be rebuilt");
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            logger.warn("  Could not read skim cache " + cacheFile + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+
+    private static cacheHeader readHeader (FileChannel channel) throws IOException {
+        // read magic, version, source description, zone count and zone IDs, return null if file is not a valid skim cache
+        ByteBuffer start = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        if (channel.read(start, 0) < 12) return null;
+        if (start.getInt(0) != MAGIC || start.getInt(4) != VERSION) return null;
+        int sourceLength = start.getInt(8);
+        if (sourceLength < 0 || 16L + sourceLength > channel.size()) return null;
+        ByteBuffer source = ByteBuffer.allocate(sourceLength + 4).order(ByteOrder.LITTLE_ENDIAN);
+        if (!readFully(channel, source, 12)) return null;
+        int numberOfZones = source.getInt(sourceLength);
+        long zonesOffset = 16L + sourceLength;
+        long expectedSize = zonesOffset + 4L * numberOfZones + 4L * numberOfZones * numberOfZones;
+        if (numberOfZones < 0 || channel.size() != expectedSize) return null;
+        ByteBuffer zoneIds = ByteBuffer.allocate(4 * numberOfZones).order(ByteOrder.LITTLE_ENDIAN);
+        if (!readFully(channel, zoneIds, zonesOffset)) return null;
+        int[] zones = new int[numberOfZones];
+        zoneIds.asIntBuffer().get(zones);
+        return new cacheHeader(new String(source.array(), 0, sourceLength, StandardCharsets.UTF_8), zones,
+                zonesOffset + 4L * numberOfZones);
+    }
+
+
+    private static boolean readFully (FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        // fill buffer from position, return false at end of file, leave buffer at position 0
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) return false;
+        }
+        buffer.flip();
+        return true;
+    }
+
+
+    public static skimMatrix read (File cacheFile, String skimName) {
+        // memory-map skim from cache file read-only, so that caches in shared read-only directories can be used.
+        // skimMatrix.withValueAt copies the skim before a value is changed
+        try (RandomAccessFile raf = new RandomAccessFile(cacheFile, "r")) {
+            FileChannel channel = raf.getChannel();
+            cacheHeader header = readHeader(channel);
+            if (header == null) throw new RuntimeException("Not a valid skim cache file: " + cacheFile);
+            int[] zones = header.zones;
+            long size = 4L * zones.length * zones.length;
+            if (size > Integer.MAX_VALUE) throw new RuntimeException("Skim cache " + cacheFile + " is too large to be mapped");
+            FloatBuffer values = channel.map(FileChannel.MapMode.READ_ONLY, header.valuesOffset, size).
+                    order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            logger.info("  Mapped skim " + skimName + " from cache " + cacheFile);
+            return new skimMatrix(skimName, zones, values);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not map skim cache " + cacheFile, e);
+        }
+    }
+
+
+    public static void write (File cacheFile, String source, skimMatrix skim) {
+        // write skim to cache file. A temporary file is renamed at the end, so that concurrent runs never see half a file
+        int[] zones = skim.getZones();
+        File parent = cacheFile.getAbsoluteFile().getParentFile();
+        if (!parent.exists() && !parent.mkdirs()) throw new RuntimeException("Could not create directory " + parent);
+        File tmpFile = new File(parent, cacheFile.getName() + "." + System.nanoTime() + ".tmp");
+        try (RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw")) {
+            FileChannel channel = raf.getChannel();
+            byte[] sourceBytes = source.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer header = ByteBuffer.allocate(16 + sourceBytes.length + 4 * zones.length).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(sourceBytes.length).put(sourceBytes).putInt(zones.length);
+            for (int zone: zones) header.putInt(zone);
+            header.flip();
+            while (header.hasRemaining()) channel.write(header);
+            ByteBuffer row = ByteBuffer.allocate(4 * zones.length).order(ByteOrder.LITTLE_ENDIAN);
+            FloatBuffer values = skim.getValues().duplicate();
+            values.position(0);
+            for (int i = 0; i < zones.length; i++) {
+                row.clear();
+                FloatBuffer rowValues = values.duplicate();
+                rowValues.position(i * zones.length).limit((i + 1) * zones.length);
+                row.asFloatBuffer().put(rowValues);
+                while (row.hasRemaining()) channel.write(row);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write skim cache " + cacheFile, e);
+        }
+        try {
+            Files.move(tmpFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not move " + tmpFile + " to " + cacheFile, e);
+        }
+        logger.info("  Wrote skim " + skim.getName() + " to cache " + cacheFile);
+    }
+
+
+    private static class cacheHeader {
+        private final String source;
+        private final int[] zones;
+        private final long valuesOffset;
+
+        private cacheHeader (String source, int[] zones, long valuesOffset) {
+            this.source = source;
+            this.zones = zones;
+            this.valuesOffset = valuesOffset;
+        }
+    }
+}
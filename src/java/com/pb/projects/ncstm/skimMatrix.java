@@ -0,0 +1,298 @@
+package com.pb.projects.ncstm;
+
+import com.pb.common.matrix.Matrix;
+import org.apache.log4j.Logger;
+
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**
+ * Skim matrix for the North Carolina Statewide Model (NCSTM), stored as a flat row-major buffer in the order of the
+ * zone system. The buffer either lives on the heap or is memory-mapped from a binary skim cache file.
+ *
+ * Values may be stored with reduced precision to halve the memory of a skim (see storagePrecision):
+ *   single:  32-bit float, exact
+ *   fixed16: 16-bit code c with value = min + c * step and step = (max - min) / 65534. The absolute error is at most
+ *            step / 2, e.g. 0.05 miles for a distance skim ranging from 0 to 6,000 miles
+ *   half:    16-bit IEEE 754 half-precision float. The relative error is at most 2^-11 (0.05%), e.g. 0.5 minutes for a
+ *            travel time of 1,000 minutes. Skims with values beyond 65,504 cannot be stored as half
+ *
+ * Reduced precision does not save memory where a library requires float copies (toMatrix). The long-distance auto
+ * model (model type 3) passes both auto skims to NELDT as Matrix and releases the skims afterwards, so that it holds
+ * 4 bytes per cell like a single-precision skim.
+ */
+public class skimMatrix {
+
+    static Logger logger = Logger.getLogger(skimMatrix.class);
+    public enum storagePrecision {single, fixed16, half}
+    private static final int FIXED16_NAN = 0xffff;
+    private static final float HALF_MAX = 65504f;
+
+    private final String name;
+    private final int[] zones;
+    private final int[] zoneIndex;
+    private final storagePrecision precision;
+    private final FloatBuffer values;
+    private final ShortBuffer packedValues;
+    private final float offset;
+    private final float step;
+
+
+    public skimMatrix (String name, int[] zones, FloatBuffer values) {
+        // Constructor
+        this(name, zones, storagePrecision.single, values, null, 0, 0);
+    }
+
+
+    private skimMatrix (String name, int[] zones, storagePrecision precision, FloatBuffer values,
+                        ShortBuffer packedValues, float offset, float step) {
+        // Constructor for any storage precision
+        this.name = name;
+        this.zones = zones;
+        this.precision = precision;
+        this.values = values;
+        this.packedValues = packedValues;
+        this.offset = offset;
+        this.step = step;
+        int capacity = values != null ? values.capacity() : packedValues.capacity();
+        if ((long) zones.length * zones.length != capacity) throw new RuntimeException("Skim " + name +
+                " holds " + capacity + " values, but " + zones.length + " zones require " +
+                (long) zones.length * zones.length + " values.");
+        zoneIndex = new int[ncstmUtil.getHighestVal(zones) + 1];
+        Arrays.fill(zoneIndex, -1);
+        for (int i = 0; i < zones.length; i++) zoneIndex[zones[i]] = i;
+    }
+
+
+    public static skimMatrix fromMatrix (String name, Matrix mat, int[] zones) {
+        // copy a Matrix into a heap skim ordered by zones. Zones not found in mat get a value of -1
+
+        int[] externalNumbers = mat.getExternalRowNumbers();   // position 0 is not used
+        int[] matIndex = new int[Math.max(ncstmUtil.getHighestVal(externalNumbers), ncstmUtil.getHighestVal(zones)) + 1];
+        Arrays.fill(matIndex, -1);
+        for (int i = 1; i < externalNumbers.length; i++) matIndex[externalNumbers[i]] = i - 1;
+        float[][] matValues = mat.getValues();
+
+        float[] flat = new float[zones.length * zones.length];
+        for (int i = 0; i < zones.length; i++) {
+            int row = matIndex[zones[i]];
+            for (int j = 0; j < zones.length; j++) {
+                int col = matIndex[zones[j]];
+                flat[i * zones.length + j] = (row < 0 || col < 0) ? -1 : matValues[row][col];
+            }
+        }
+        return new skimMatrix(name, zones, FloatBuffer.wrap(flat));
+    }
+
+
+    public skimMatrix toPrecision (storagePrecision target) {
+        // return copy of this skim stored with target precision, or this skim if it already has target precision
+
+        if (target == precision) return this;
+        int size = zones.length * zones.length;
+        if (target == storagePrecision.single) {
+            float[] flat = new float[size];
+            for (int pos = 0; pos < size; pos++) flat[pos] = getValueAtPosition(pos);
+            return new skimMatrix(name, zones, FloatBuffer.wrap(flat));
+        }
+
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        for (int pos = 0; pos < size; pos++) {
+            float value = getValueAtPosition(pos);
+            if (Float.isNaN(value)) continue;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        if (Float.isInfinite(min) && min > 0) {
+            min = 0;                                // no values but NaN
+            max = 0;
+        }
+        if (Float.isInfinite(min) || Float.isInfinite(max) ||
+                (target == storagePrecision.half && Math.max(-min, max) > HALF_MAX)) {
+            logger.warn("  Skim " + name + " ranges from " + min + " to " + max + " and cannot be stored as " +
+                    target + ", it is kept as " + precision);
+            return this;
+        }
+
+        short[] packed = new short[size];
+        float newStep = (max > min) ? (max - min) / (FIXED16_NAN - 1) : 1;
+        skimMatrix result = new skimMatrix(name, zones, target, null, ShortBuffer.wrap(packed), min, newStep);
+        float maxError = 0;
+        for (int pos = 0; pos < size; pos++) {
+            float value = getValueAtPosition(pos);
+            packed[pos] = result.encode(value);
+            if (!Float.isNaN(value)) maxError = Math.max(maxError, Math.abs(result.getValueAtPosition(pos) - value));
+        }
+        logger.info("  Stored skim " + name + " as " + target + ", largest deviation from original values: " + maxError);
+        return result;
+    }
+
+
+    private short encode (float value) {
+        // encode value in 16 bits according to precision of this skim
+        if (precision == storagePrecision.half) return floatToHalf(value);
+        if (Float.isNaN(value)) return (short) FIXED16_NAN;
+        int code = Math.round((value - offset) / step);
+        if (code < 0 || code >= FIXED16_NAN) {
+            logger.warn("  Value " + value + " is out of range of skim " + name + " and is truncated");
+            code = Math.max(0, Math.min(FIXED16_NAN - 1, code));
+        }
+        return (short) code;
+    }
+
+
+    private float decode (short code) {
+        // decode 16-bit value according to precision of this skim
+        if (precision == storagePrecision.half) return halfToFloat(code);
+        int unsigned = code & 0xffff;
+        if (unsigned == FIXED16_NAN) return Float.NaN;
+        return offset + unsigned * step;
+    }
+
+
+    static short floatToHalf (float value) {
+        // convert float to IEEE 754 half-precision bits, rounding to nearest even
+        int bits = Float.floatToIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int abs = bits & 0x7fffffff;
+        if (abs > 0x7f800000) return (short) (sign | 0x7e00);                 // NaN
+        if (abs >= 0x477ff000) return (short) (sign | 0x7c00);                // 65520 and beyond rounds to infinity
+        if (abs < 0x38800000) {                                                // subnormal half below 2^-14
+            return (short) (sign | Math.round(Float.intBitsToFloat(abs) * 16777216f));
+        }
+        int rounded = abs + 0xfff + ((abs >>> 13) & 1);
+        return (short) (sign | ((rounded - 0x38000000) >>> 13));
+    }
+
+
+    static float halfToFloat (short half) {
+        // convert IEEE 754 half-precision bits to float
+        int bits = half & 0xffff;
+        int sign = (bits & 0x8000) << 16;
+        int exponent = (bits >>> 10) & 0x1f;
+        int mantissa = bits & 0x3ff;
+        if (exponent == 0x1f) return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+        if (exponent == 0) {
+            float subnormal = mantissa / 16777216f;
+            return sign == 0 ? subnormal : -subnormal;
+        }
+        return Float.intBitsToFloat(sign | ((exponent + 112) << 23) | (mantissa << 13));
+    }
+
+
+    public String getName () {
+        return name;
+    }
+
+
+    public int[] getZones () {
+        return zones;
+    }
+
+
+    public int getNumberOfZones () {
+        return zones.length;
+    }
+
+
+    public storagePrecision getPrecision () {
+        return precision;
+    }
+
+
+    FloatBuffer getValues () {
+        // return float buffer, only available for skims stored in single precision
+        if (values == null) throw new RuntimeException("Skim " + name + " is stored as " + precision);
+        return values;
+    }
+
+
+    private int getPosition (int i, int j) {
+        // translate external zone numbers into position in flat value buffer
+        int row = zoneIndex[i];
+        int col = zoneIndex[j];
+        if (row < 0 || col < 0) throw new RuntimeException("Zone pair " + i + "/" + j + " is not part of skim " + name);
+        return row * zones.length + col;
+    }
+
+
+    private float getValueAtPosition (int position) {
+        if (values != null) return values.get(position);
+        return decode(packedValues.get(position));
+    }
+
+
+    public float getValueAt (int i, int j) {
+        // return value for external zone numbers i and j
+        return getValueAtPosition(getPosition(i, j));
+    }
+
+
+    public float getValueAtIndex (int row, int col) {
+        // return value for zone ordinals row and col, i.e. positions in getZones()
+        return getValueAtPosition(row * zones.length + col);
+    }
+
+
+    public float[] getRow (int row, float[] target) {
+        // copy values of origin ordinal row into target, which is allocated if it is null or has the wrong length
+        if (target == null || target.length != zones.length) target = new float[zones.length];
+        if (values != null) {
+            FloatBuffer rowValues = values.duplicate();
+            rowValues.position(row * zones.length);
+            rowValues.get(target);
+        } else {
+            int start = row * zones.length;
+            for (int col = 0; col < zones.length; col++) target[col] = decode(packedValues.get(start + col));
+        }
+        return target;
+    }
+
+
+    public boolean isReadOnly () {
+        return values != null ? values.isReadOnly() : packedValues.isReadOnly();
+    }
+
+
+    public skimMatrix withValueAt (int i, int j, float value) {
+        // return skim that holds value for external zone numbers i and j. This is this skim if it already holds value or
+        // is writable, otherwise a heap copy of this read-only (e.g. memory-mapped) skim
+        if (getValueAt(i, j) == value) return this;
+        skimMatrix skim = this;
+        if (isReadOnly()) {
+            if (values == null) {
+                short[] packed = new short[packedValues.capacity()];
+                packedValues.duplicate().get(packed);
+                skim = new skimMatrix(name, zones, precision, null, ShortBuffer.wrap(packed), offset, step);
+            } else {
+                float[] flat = new float[values.capacity()];
+                values.duplicate().get(flat);
+                skim = new skimMatrix(name, zones, FloatBuffer.wrap(flat));
+            }
+            logger.info("  Copied read-only skim " + name + " to memory to change a value");
+        }
+        skim.setValueAt(i, j, value);
+        return skim;
+    }
+
+
+    public void setValueAt (int i, int j, float value) {
+        // set value for external zone numbers i and j, the skim must not be read-only
+        if (values != null) values.put(getPosition(i, j), value);
+        else packedValues.put(getPosition(i, j), encode(value));
+    }
+
+
+    public Matrix toMatrix () {
+        // return new copy as Matrix for libraries that require the common-base matrix class. The copy is owned by the
+        // caller and not kept by the skim, so that a memory-mapped skim is not duplicated on the heap for longer than
+        // the caller needs it
+        float[][] rows = new float[zones.length][zones.length];
+        for (int i = 0; i < zones.length; i++) getRow(i, rows[i]);
+        Matrix matrix = new Matrix(name, name, rows);
+        matrix.setExternalNumbersZeroBased(zones);
+        return matrix;
+    }
+}
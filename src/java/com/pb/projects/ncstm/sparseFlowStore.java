@@ -0,0 +1,132 @@
+package com.pb.projects.ncstm;
+
+import java.util.Arrays;
+
+/**
+ * Sparse square flow matrix for county-to-county commodity flows of the North Carolina Statewide Model (NCSTM).
+ * Every row is an open-addressing hash table from destination position to value with primitive keys, so that only
+ * O-D pairs with flows take memory. Values may be added concurrently; every row is locked on its own. Rows are
+ * returned sorted by destination, so that cells are visited in the same order as in a dense loop.
+ */
+public class sparseFlowStore {
+
+    private static final int EMPTY = -1;
+    private final int size;
+    private final flowRow[] rows;
+
+
+    public sparseFlowStore (int size) {
+        // Constructor for a size x size matrix
+        this.size = size;
+        rows = new flowRow[size];
+        for (int i = 0; i < size; i++) rows[i] = new flowRow();
+    }
+
+
+    public int getSize () {
+        return size;
+    }
+
+
+    public void add (int orig, int dest, float value) {
+        // add value to cell orig/dest
+        if (dest < 0 || dest >= size) throw new ArrayIndexOutOfBoundsException(dest);
+        flowRow row = rows[orig];
+        synchronized (row) {
+            row.add(dest, value);
+        }
+    }
+
+
+    public float getValue (int orig, int dest) {
+        // return value of cell orig/dest, 0 if nothing was added
+        flowRow row = rows[orig];
+        synchronized (row) {
+            return row.get(dest);
+        }
+    }
+
+
+    public int getRow (int orig, int[] destinations, float[] values) {
+        // copy cells of row orig sorted by destination into destinations and values, which must hold getSize()
+        // elements, and return the number of cells
+        flowRow row = rows[orig];
+        synchronized (row) {
+            if (row.keys == null) return 0;
+            long[] sorted = new long[row.count];
+            int n = 0;
+            for (int slot = 0; slot < row.keys.length; slot++)
+                if (row.keys[slot] != EMPTY) sorted[n++] = ((long) row.keys[slot] << 32) | slot;
+            Arrays.sort(sorted);
+            for (int k = 0; k < n; k++) {
+                int slot = (int) sorted[k];
+                destinations[k] = row.keys[slot];
+                values[k] = row.values[slot];
+            }
+            return n;
+        }
+    }
+
+
+    public long getNumberOfNonZeros () {
+        long n = 0;
+        for (flowRow row: rows) {
+            synchronized (row) {
+                n += row.count;
+            }
+        }
+        return n;
+    }
+
+
+    private static class flowRow {
+        private int[] keys;
+        private float[] values;
+        private int count;
+
+        private int findSlot(int dest) {
+            // return slot of dest, or of the empty slot where it would be inserted. The slot is taken from the highest
+            // log2(length) bits of a multiplicative hash, so that all bits of dest contribute
+            int mask = keys.length - 1;
+            int slot = (dest * 0x9E3779B9) >>> Integer.numberOfLeadingZeros(mask);
+            while (keys[slot] != EMPTY && keys[slot] != dest) slot = (slot + 1) & mask;
+            return slot;
+        }
+
+        private float get(int dest) {
+            if (keys == null) return 0;
+            int slot = findSlot(dest);
+            return keys[slot] == dest ? values[slot] : 0;
+        }
+
+        private void add(int dest, float value) {
+            if (keys == null) {
+                keys = new int[8];
+                values = new float[8];
+                Arrays.fill(keys, EMPTY);
+            }
+            int slot = findSlot(dest);
+            if (keys[slot] == dest) {
+                values[slot] += value;
+                return;
+            }
+            keys[slot] = dest;
+            values[slot] = value;
+            if (++count * 2 > keys.length) grow();
+        }
+
+        private void grow() {
+            int[] oldKeys = keys;
+            float[] oldValues = values;
+            keys = new int[2 * oldKeys.length];
+            values = new float[keys.length];
+            Arrays.fill(keys, EMPTY);
+            for (int slot = 0; slot < oldKeys.length; slot++) {
+                if (oldKeys[slot] == EMPTY) continue;
+                int newSlot = findSlot(oldKeys[slot]);
+                keys[newSlot] = oldKeys[slot];
+                values[newSlot] = oldValues[slot];
+            }
+        }
+    }
+}
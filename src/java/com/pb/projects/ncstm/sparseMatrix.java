@@ -0,0 +1,133 @@
+package com.pb.projects.ncstm;
+
+import java.util.Arrays;
+
+/**
+ * Sparse matrix in compressed row storage for the North Carolina Statewide Model (NCSTM). Origins and destinations
+ * are zone ordinals, i.e. positions in getZones(). The non-zero cells of origin i are stored at positions getFirst(i)
+ * to getEnd(i) - 1, in any order of destinations. Several matrices may share the same structure (rowStart and
+ * columns) and differ in their values only.
+ */
+public class sparseMatrix {
+
+    private final String name;
+    private final int[] zones;
+    private final int[] rowStart;
+    private final int[] columns;
+    private final float[] values;
+
+
+    public sparseMatrix (String name, int[] zones, int[] rowStart, int[] columns, float[] values) {
+        // Constructor
+        if (rowStart.length != zones.length + 1 || columns.length != rowStart[zones.length] ||
+                values.length != columns.length) throw new RuntimeException("Inconsistent structure of sparse matrix " + name);
+        this.name = name;
+        this.zones = zones;
+        this.rowStart = rowStart;
+        this.columns = columns;
+        this.values = values;
+    }
+
+
+    public static sparseMatrix fromNeighbours (String name, int[] zones, zoneNeighbours neighbours, float maxDistance) {
+        // create matrix with one cell per O-D pair within maxDistance, with values set to the distance. Destinations
+        // of every row are in the order of the neighbourhood index, i.e. sorted by distance
+        int[] rowStart = new int[zones.length + 1];
+        for (int orig = 0; orig < zones.length; orig++) {
+            int end = neighbours.getFirst(orig);
+            while (end < neighbours.getEnd(orig) && neighbours.getDistance(end) <= maxDistance) end++;
+            rowStart[orig + 1] = rowStart[orig] + end - neighbours.getFirst(orig);
+        }
+        int[] columns = new int[rowStart[zones.length]];
+        float[] distances = new float[columns.length];
+        for (int orig = 0; orig < zones.length; orig++) {
+            for (int k = 0; k < rowStart[orig + 1] - rowStart[orig]; k++) {
+                columns[rowStart[orig] + k] = neighbours.getDestination(neighbours.getFirst(orig) + k);
+                distances[rowStart[orig] + k] = neighbours.getDistance(neighbours.getFirst(orig) + k);
+            }
+        }
+        return new sparseMatrix(name, zones, rowStart, columns, distances);
+    }
+
+
+    public sparseMatrix withValues (String newName) {
+        // return matrix that shares the structure of this matrix, with all values set to 0
+        return new sparseMatrix(newName, zones, rowStart, columns, new float[columns.length]);
+    }
+
+
+    public boolean sharesStructure (sparseMatrix other) {
+        // true if other stores the same cells, i.e. was created by withValues of the same matrix
+        return other.rowStart == rowStart && other.columns == columns;
+    }
+
+
+    public String getName () {
+        return name;
+    }
+
+
+    public int[] getZones () {
+        return zones;
+    }
+
+
+    public int getNumberOfNonZeros () {
+        return columns.length;
+    }
+
+
+    public int getFirst (int orig) {
+        return rowStart[orig];
+    }
+
+
+    public int getEnd (int orig) {
+        return rowStart[orig + 1];
+    }
+
+
+    public int getColumn (int position) {
+        return columns[position];
+    }
+
+
+    public float getValue (int position) {
+        return values[position];
+    }
+
+
+    public void setValue (int position, float value) {
+        values[position] = value;
+    }
+
+
+    public float getValueAtIndex (int orig, int dest) {
+        // return value for zone ordinals orig and dest, 0 for cells that are not stored
+        for (int k = rowStart[orig]; k < rowStart[orig + 1]; k++) if (columns[k] == dest) return values[k];
+        return 0;
+    }
+
+
+    public float[] getRow (int orig, float[] target) {
+        // copy dense row orig into target, which is allocated if it is null or has the wrong length
+        if (target == null || target.length != zones.length) target = new float[zones.length];
+        else Arrays.fill(target, 0);
+        for (int k = rowStart[orig]; k < rowStart[orig + 1]; k++) target[columns[k]] += values[k];
+        return target;
+    }
+
+
+    public double getRowSum (int orig) {
+        double sum = 0;
+        for (int k = rowStart[orig]; k < rowStart[orig + 1]; k++) sum += values[k];
+        return sum;
+    }
+
+
+    public double[] getColumnSums () {
+        double[] sums = new double[zones.length];
+        for (int k = 0; k < columns.length; k++) sums[columns[k]] += values[k];
+        return sums;
+    }
+}
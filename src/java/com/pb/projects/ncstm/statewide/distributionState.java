@@ -0,0 +1,119 @@
+package com.pb.projects.ncstm.statewide;
+
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * State of the short-distance truck distribution of the North Carolina Statewide Model (NCSTM), kept between runs for
+ * incremental re-runs. For every truck class, the state holds gamma, productions and attractions, and the row and
+ * column factors of the balanced trip table T(i,j) = rowFactor(i) * columnFactor(j) * friction(i,j). A state is
+ * only reused if zone system, classes, gammas, friction resolution and the number of O-D pairs within reach match.
+ */
+public class distributionState {
+
+    static Logger logger = Logger.getLogger(distributionState.class);
+    private static final int MAGIC = 0x4E435344;    // "NCSD"
+    private static final int VERSION = 1;
+    final int[] zones;
+    final String[] names;
+    final double[] gammas;
+    final float frictionResolution;
+    final int nonZeros;
+    final float[][] productions;
+    final float[][] attractions;
+    final double[][] rowFactors;
+    final double[][] columnFactors;
+
+
+    distributionState (int[] zones, String[] names, double[] gammas, float frictionResolution, int nonZeros,
+                       float[][] productions, float[][] attractions, double[][] rowFactors, double[][] columnFactors) {
+        // Constructor
+        this.zones = zones;
+        this.names = names;
+        this.gammas = gammas;
+        this.frictionResolution = frictionResolution;
+        this.nonZeros = nonZeros;
+        this.productions = productions;
+        this.attractions = attractions;
+        this.rowFactors = rowFactors;
+        this.columnFactors = columnFactors;
+    }
+
+
+    boolean matches (int[] zones, String[] names, double[] gammas, float frictionResolution, int nonZeros) {
+        // true if this state was written for the same distribution problem
+        return Arrays.equals(this.zones, zones) && Arrays.equals(this.names, names) &&
+                Arrays.equals(this.gammas, gammas) && this.frictionResolution == frictionResolution &&
+                this.nonZeros == nonZeros;
+    }
+
+
+    static distributionState read (File stateFile) {
+        // read state of previous run, return null if there is none or it cannot be read
+        if (!stateFile.exists()) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) throw new IOException("unknown format");
+            int[] zones = new int[in.readInt()];
+            for (int i = 0; i < zones.length; i++) zones[i] = in.readInt();
+            float frictionResolution = in.readFloat();
+            int nonZeros = in.readInt();
+            int classes = in.readInt();
+            String[] names = new String[classes];
+            double[] gammas = new double[classes];
+            float[][] productions = new float[classes][zones.length];
+            float[][] attractions = new float[classes][zones.length];
+            double[][] rowFactors = new double[classes][zones.length];
+            double[][] columnFactors = new double[classes][zones.length];
+            for (int c = 0; c < classes; c++) {
+                names[c] = in.readUTF();
+                gammas[c] = in.readDouble();
+                for (int i = 0; i < zones.length; i++) {
+                    productions[c][i] = in.readFloat();
+                    attractions[c][i] = in.readFloat();
+                    rowFactors[c][i] = in.readDouble();
+                    columnFactors[c][i] = in.readDouble();
+                }
+            }
+            return new distributionState(zones, names, gammas, frictionResolution, nonZeros, productions,
+                    attractions, rowFactors, columnFactors);
+        } catch (IOException e) {
+            logger.warn("  Could not read distribution state " + stateFile + ", distributing from scratch: " +
+                    e.getMessage());
+            return null;
+        }
+    }
+
+
+    void write (File stateFile) {
+        // write state, a temporary file is renamed at the end so that an interrupted run leaves the old state intact
+        File tmpFile = new File(stateFile.getPath() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(zones.length);
+                for (int zone: zones) out.writeInt(zone);
+                out.writeFloat(frictionResolution);
+                out.writeInt(nonZeros);
+                out.writeInt(names.length);
+                for (int c = 0; c < names.length; c++) {
+                    out.writeUTF(names[c]);
+                    out.writeDouble(gammas[c]);
+                    for (int i = 0; i < zones.length; i++) {
+                        out.writeFloat(productions[c][i]);
+                        out.writeFloat(attractions[c][i]);
+                        out.writeDouble(rowFactors[c][i]);
+                        out.writeDouble(columnFactors[c][i]);
+                    }
+                }
+            }
+            Files.move(tmpFile.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            logger.warn("  Could not write distribution state " + stateFile + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.pb.projects.ncstm.statewide;
+
+import com.pb.common.util.ResourceUtil;
+import com.pb.projects.ncstm.ncstmUtil;
+import com.pb.projects.ncstm.sparseMatrix;
+import com.pb.sawdust.calculator.Function1;
+import com.pb.sawdust.util.concurrent.ForkJoinPoolFactory;
+import com.pb.sawdust.util.concurrent.IteratorAction;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ResourceBundle;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Calibration of the gravity distribution parameters (gamma) of the short-distance truck model of the North Carolina
+ * Statewide Model (NCSTM). Gamma is searched on a grid that is narrowed around the best candidate in every round.
+ * The candidates of a round are distributed in memory in parallel, reusing skim, neighbourhood index and productions,
+ * and nothing is written to disk. A candidate is rated either by the absolute deviation of its average trip length
+ * from a target, or by the sum of squared deviations of its trip-length distribution from target shares.
+ *
+ * Candidates are balanced the same way as the trip distribution of the run: by balancing factors with the settings
+ * of sdt.incremental.* if useFactorBalancing() was called, otherwise by the balancer of the gravity engine.
+ *
+ * Properties (read by shortDistanceTruck if sdt.calibration is true):
+ *   mut/sut/cv.target.trip.length      target average trip length in miles
+ *   sdt.calibration.tlfd.file          csv file with target shares: upperMiles,MultiUnit,SingleUnit,CommercialVeh
+ *   sdt.calibration.gamma.min / max    search range, default -1.0 to -0.001
+ *   sdt.calibration.rounds             number of rounds, default 6
+ *   sdt.calibration.candidates         candidates per round, default number of processors, at least 4
+ */
+public class gravityCalibration {
+
+    static Logger logger = Logger.getLogger(gravityCalibration.class);
+    private final gravityEngine engine;
+    private final sparseMatrix distances;
+    private final double minGamma;
+    private final double maxGamma;
+    private final int rounds;
+    private final int candidates;
+    private boolean factorBalancing;
+    private double maxRelativeError;
+    private int maxIterations;
+
+
+    public gravityCalibration (gravityEngine engine, ResourceBundle rb) {
+        // Constructor
+        this.engine = engine;
+        this.distances = engine.getCellDistances();
+        minGamma = ResourceUtil.getDoubleProperty(rb, "sdt.calibration.gamma.min", -1.0);
+        maxGamma = ResourceUtil.getDoubleProperty(rb, "sdt.calibration.gamma.max", -0.001);
+        rounds = ResourceUtil.getIntegerProperty(rb, "sdt.calibration.rounds", 6);
+        candidates = Math.max(4, ResourceUtil.getIntegerProperty(rb, "sdt.calibration.candidates",
+                Runtime.getRuntime().availableProcessors()));
+    }
+
+
+    public void useFactorBalancing (double maxRelativeError, int maxIterations) {
+        // balance candidates by factors, as the incremental distribution does
+        factorBalancing = true;
+        this.maxRelativeError = maxRelativeError;
+        this.maxIterations = maxIterations;
+    }
+
+
+    public double calibrate (final String name, final float[] prod, final float[] attr, final double targetTripLength,
+                             final double[] binUpperBounds, final double[] targetShares) {
+        // return gamma that best reproduces targetTripLength, or targetShares of trips with a length up to
+        // binUpperBounds if these are given
+        long startTime = System.currentTimeMillis();
+        double low = minGamma;
+        double high = maxGamma;
+        double bestGamma = Double.NaN;
+        double bestDeviation = Double.POSITIVE_INFINITY;
+        for (int round = 0; round < rounds; round++) {
+            final double[] gammas = new double[candidates];
+            final double[] deviations = new double[candidates];
+            final double[] tripLengths = new double[candidates];
+            List<Integer> candidateIndex = new ArrayList<>();
+            for (int i = 0; i < candidates; i++) {
+                gammas[i] = low + (high - low) * i / (candidates - 1);
+                candidateIndex.add(i);
+            }
+            Function1<Integer,Void> evaluateFunction = new Function1<Integer,Void>() {
+                public Void apply(Integer i) {
+                    sparseMatrix trips = factorBalancing ?
+                            engine.distributeClass(name, gammas[i], prod, attr, maxRelativeError, maxIterations) :
+                            engine.distributeClass(name, gammas[i], prod, attr);
+                    double[] lengths = getTripLengths(trips, binUpperBounds);
+                    tripLengths[i] = lengths[0];
+                    if (binUpperBounds == null) {
+                        deviations[i] = Math.abs(lengths[0] - targetTripLength);
+                    } else {
+                        for (int bin = 0; bin < binUpperBounds.length; bin++)
+                            deviations[i] += Math.pow(lengths[bin + 1] - targetShares[bin], 2);
+                    }
+                    return null;
+                }
+            };
+            IteratorAction<Integer> evaluateTask = new IteratorAction<>(candidateIndex.iterator(), evaluateFunction);
+            ForkJoinPool pool = ForkJoinPoolFactory.getForkJoinPool();
+            pool.execute(evaluateTask);
+            evaluateTask.waitForCompletion();
+
+            int best = 0;
+            for (int i = 1; i < candidates; i++) if (deviations[i] < deviations[best]) best = i;
+            if (deviations[best] < bestDeviation) {
+                bestDeviation = deviations[best];
+                bestGamma = gammas[best];
+            }
+            logger.info("  " + name + " round " + (round + 1) + ": best gamma " + gammas[best] +
+                    " with average trip length " + String.format("%.2f", tripLengths[best]) + " miles, deviation " +
+                    String.format("%.4e", deviations[best]));
+            low = gammas[Math.max(0, best - 1)];
+            high = gammas[Math.min(candidates - 1, best + 1)];
+        }
+        logger.info("  Calibrated " + name + " in " +
+                ncstmUtil.rounder((System.currentTimeMillis() - startTime) / 1000f, 1) + " seconds");
+        return bestGamma;
+    }
+
+
+    private double[] getTripLengths (sparseMatrix trips, double[] binUpperBounds) {
+        // return average trip length at position 0, followed by the share of trips in every bin
+        int bins = binUpperBounds == null ? 0 : binUpperBounds.length;
+        double[] result = new double[bins + 1];
+        double total = 0;
+        double distanceSum = 0;
+        for (int k = 0; k < trips.getNumberOfNonZeros(); k++) {
+            double value = trips.getValue(k);
+            double dist = distances.getValue(k);
+            total += value;
+            distanceSum += value * dist;
+            for (int bin = 0; bin < bins; bin++) {
+                if (dist <= binUpperBounds[bin]) {
+                    result[bin + 1] += value;
+                    break;
+                }
+            }
+        }
+        if (total <= 0) return result;
+        result[0] = distanceSum / total;
+        for (int bin = 1; bin <= bins; bin++) result[bin] /= total;
+        return result;
+    }
+}
@@ -0,0 +1,452 @@
+package com.pb.projects.ncstm.statewide;
+
+import com.pb.common.matrix.ColumnVector;
+import com.pb.common.matrix.Matrix;
+import com.pb.common.matrix.MatrixBalancerRM;
+import com.pb.common.matrix.RowVector;
+import com.pb.projects.ncstm.frictionFunction;
+import com.pb.projects.ncstm.matrixBalancer;
+import com.pb.projects.ncstm.ncstmUtil;
+import com.pb.projects.ncstm.sparseMatrix;
+import com.pb.projects.ncstm.zoneNeighbours;
+import com.pb.sawdust.calculator.Function1;
+import com.pb.sawdust.util.concurrent.DnCRecursiveAction;
+import com.pb.sawdust.util.concurrent.ForkJoinPoolFactory;
+import com.pb.sawdust.util.concurrent.IteratorAction;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Gravity model for several truck classes of the North Carolina Statewide Model (NCSTM). The seed matrices of all
+ * classes are filled in one pass over the neighbourhood index, with origin rows split across a fork-join pool, so
+ * that every O-D distance is read once for all classes. Afterwards, the classes are balanced concurrently.
+ *
+ * Seed of class c: production[c][o] * attraction[c][d] * exp(gamma[c] * distance), for destinations d within
+ * maxDistance of origin o. All other cells remain 0. distributeSparse() stores and balances only the cells within
+ * maxDistance, which takes a fraction of the memory and time of the dense matrices returned by distribute().
+ */
+public class gravityEngine {
+
+    static Logger logger = Logger.getLogger(gravityEngine.class);
+    private final int[] zones;
+    private final zoneNeighbours neighbours;
+    private final float maxDistance;
+    private final matrixBalancer balancer;
+    private final float frictionResolution;
+    // settings of MatrixBalancerRM, which balances dense matrices if no balancer is given
+    private static final double RM_MAX_RELATIVE_ERROR = 0.0001;
+    private static final int RM_MAX_ITERATIONS = 10;
+
+
+    public gravityEngine (int[] zones, zoneNeighbours neighbours, float maxDistance, matrixBalancer balancer,
+                          float frictionResolution) {
+        // Constructor. Zone ordinals of neighbours refer to positions in zones. Dense matrices are balanced by
+        // MatrixBalancerRM if balancer is null. Friction is tabulated with frictionResolution (0: exact)
+        if (neighbours.getRadius() < maxDistance) throw new RuntimeException("Neighbourhood index covers " +
+                neighbours.getRadius() + " miles, but the gravity model requires " + maxDistance + " miles");
+        this.zones = zones;
+        this.neighbours = neighbours;
+        this.maxDistance = maxDistance;
+        this.balancer = balancer;
+        this.frictionResolution = frictionResolution;
+    }
+
+
+    private frictionFunction[] getFrictionFunctions (double[] gammas) {
+        frictionFunction[] functions = new frictionFunction[gammas.length];
+        for (int c = 0; c < gammas.length; c++)
+            functions[c] = frictionFunction.get(gammas[c], frictionResolution, maxDistance);
+        return functions;
+    }
+
+
+    public Matrix[] distribute (final String[] names, double[] gammas, ColumnVector[] productions,
+                                RowVector[] attractions) {
+        // return balanced trip tables of all classes
+        long startTime = System.currentTimeMillis();
+        int classes = names.length;
+        final float[][] prod = new float[classes][zones.length];
+        final float[][] attr = new float[classes][zones.length];
+        for (int c = 0; c < classes; c++) {
+            for (int i = 0; i < zones.length; i++) {
+                prod[c][i] = productions[c].getValueAt(zones[i]);
+                attr[c][i] = attractions[c].getValueAt(zones[i]);
+            }
+        }
+        final float[][][] seeds = computeSeeds(gammas, prod, attr);
+        logger.info("  Calculated seed matrices of " + classes + " truck classes in " +
+                ncstmUtil.rounder((System.currentTimeMillis() - startTime) / 1000f, 1) + " seconds");
+
+        final Matrix[] balanced = new Matrix[classes];
+        final MatrixBalancerRM[] balancers = new MatrixBalancerRM[classes];
+        Integer[] classIndex = new Integer[classes];
+        for (int c = 0; c < classes; c++) {
+            if (balancer == null) {
+                Matrix seed = new Matrix(names[c], names[c], seeds[c]);
+                seed.setExternalNumbersZeroBased(zones, zones);
+                balancers[c] = new MatrixBalancerRM(seed, productions[c], attractions[c], RM_MAX_RELATIVE_ERROR,
+                        RM_MAX_ITERATIONS, MatrixBalancerRM.ADJUST.NONE);
+            }
+            classIndex[c] = c;
+        }
+        Function1<Integer,Void> balanceFunction = new Function1<Integer,Void>() {
+            public Void apply(Integer c) {
+                if (balancer == null) {
+                    balanced[c] = balancers[c].balance();
+                } else {
+                    balancer.balance(names[c], seeds[c], prod[c], attr[c]);
+                    balanced[c] = new Matrix(names[c], names[c], seeds[c]);
+                    balanced[c].setExternalNumbersZeroBased(zones, zones);
+                }
+                return null;
+            }
+        };
+        Iterator<Integer> classIterator = Arrays.asList(classIndex).iterator();
+        IteratorAction<Integer> balanceTask = new IteratorAction<>(classIterator, balanceFunction);
+        ForkJoinPool pool = ForkJoinPoolFactory.getForkJoinPool();
+        pool.execute(balanceTask);
+        balanceTask.waitForCompletion();
+        logger.info("  Distributed " + classes + " truck classes in " +
+                ncstmUtil.rounder((System.currentTimeMillis() - startTime) / 1000f, 1) + " seconds");
+        return balanced;
+    }
+
+
+    public sparseMatrix[] distributeSparse (String[] names, double[] gammas, float[][] prod, float[][] attr) {
+        // return balanced trip tables of all classes, storing only O-D pairs within maxDistance. prod and attr are
+        // indexed by zone ordinals
+        if (balancer == null) throw new RuntimeException("Sparse gravity model requires a matrixBalancer");
+        long startTime = System.currentTimeMillis();
+        final int classes = names.length;
+        final sparseMatrix[] trips = new sparseMatrix[classes];
+        trips[0] = sparseMatrix.fromNeighbours(names[0], zones, neighbours, maxDistance);
+        for (int c = 1; c < classes; c++) trips[c] = trips[0].withValues(names[c]);
+        DnCRecursiveAction action = new SparseSeedRowsAction(getFrictionFunctions(gammas), prod, attr, trips);
+        ncstmUtil.runAction(action);
+        logger.info("  Calculated sparse seed matrices of " + classes + " truck classes with " +
+                trips[0].getNumberOfNonZeros() + " cells each in " +
+                ncstmUtil.rounder((System.currentTimeMillis() - startTime) / 1000f, 1) + " seconds");
+
+        final float[][] rowTargets = prod;
+        final float[][] columnTargets = attr;
+        Integer[] classIndex = new Integer[classes];
+        for (int c = 0; c < classes; c++) classIndex[c] = c;
+        Function1<Integer,Void> balanceFunction = new Function1<Integer,Void>() {
+            public Void apply(Integer c) {
+                balancer.balance(trips[c].getName(), trips[c], rowTargets[c], columnTargets[c]);
+                return null;
+            }
+        };
+        Iterator<Integer> classIterator = Arrays.asList(classIndex).iterator();
+        IteratorAction<Integer> balanceTask = new IteratorAction<>(classIterator, balanceFunction);
+        ForkJoinPool pool = ForkJoinPoolFactory.getForkJoinPool();
+        pool.execute(balanceTask);
+        balanceTask.waitForCompletion();
+        logger.info("  Distributed " + classes + " truck classes in " +
+                ncstmUtil.rounder((System.currentTimeMillis() - startTime) / 1000f, 1) + " seconds");
+        return trips;
+    }
+
+
+    public sparseMatrix[] distributeIncremental (String[] names, double[] gammas, final float[][] prod,
+                                                 final float[][] attr, File stateFile, final double maxRelativeError,
+                                                 final int maxIterations) {
+        // return balanced trip tables of O-D pairs within maxDistance like distributeSparse(). Row and column factors
+        // are kept in stateFile, and balancing starts from the factors of the previous run, so that a run with a few
+        // changed zones converges in a few iterations. Without a matching state, balancing starts from the seed
+        // production * attraction * friction. Balancing continues until row and column totals are within
+        // maxRelativeError of their targets
+        long startTime = System.currentTimeMillis();
+        final int classes = names.length;
+        final sparseMatrix[] friction = new sparseMatrix[classes];
+        friction[0] = sparseMatrix.fromNeighbours(names[0], zones, neighbours, maxDistance);
+        for (int c = 1; c < classes; c++) friction[c] = friction[0].withValues(names[c]);
+        float[][] ones = new float[classes][zones.length];
+        for (float[] one: ones) Arrays.fill(one, 1);
+        DnCRecursiveAction action = new SparseSeedRowsAction(getFrictionFunctions(gammas), ones, ones, friction);
+        ncstmUtil.runAction(action);
+
+        int nonZeros = friction[0].getNumberOfNonZeros();
+        distributionState previous = distributionState.read(stateFile);
+        if (previous != null && !previous.matches(zones, names, gammas, frictionResolution, nonZeros)) {
+            logger.info("  Distribution state " + stateFile + " was written for different zones or parameters, " +
+                    "distributing from scratch");
+            previous = null;
+        }
+        final double[][] rowFactors = new double[classes][zones.length];
+        final double[][] columnFactors = new double[classes][zones.length];
+        for (int c = 0; c < classes; c++) {
+            if (previous != null) {
+                int changed = 0;
+                for (int i = 0; i < zones.length; i++) {
+                    if (prod[c][i] != previous.productions[c][i] || attr[c][i] != previous.attractions[c][i]) changed++;
+                }
+                logger.info("  " + names[c] + ": " + changed + " zones with changed productions or attractions");
+                System.arraycopy(previous.rowFactors[c], 0, rowFactors[c], 0, zones.length);
+                System.arraycopy(previous.columnFactors[c], 0, columnFactors[c], 0, zones.length);
+            } else {
+                for (int j = 0; j < zones.length; j++) columnFactors[c][j] = attr[c][j];
+            }
+        }
+
+        Integer[] classIndex = new Integer[classes];
+        for (int c = 0; c < classes; c++) classIndex[c] = c;
+        Function1<Integer,Void> balanceFunction = new Function1<Integer,Void>() {
+            public Void apply(Integer c) {
+                balanceFactors(friction[c], prod[c], attr[c], rowFactors[c], columnFactors[c], maxRelativeError,
+                        maxIterations, true);
+                return null;
+            }
+        };
+        Iterator<Integer> classIterator = Arrays.asList(classIndex).iterator();
+        IteratorAction<Integer> balanceTask = new IteratorAction<>(classIterator, balanceFunction);
+        ForkJoinPool pool = ForkJoinPoolFactory.getForkJoinPool();
+        pool.execute(balanceTask);
+        balanceTask.waitForCompletion();
+
+        sparseMatrix[] trips = new sparseMatrix[classes];
+        for (int c = 0; c < classes; c++) {
+            trips[c] = friction[c].withValues(names[c]);
+            for (int i = 0; i < zones.length; i++) {
+                for (int k = friction[c].getFirst(i); k < friction[c].getEnd(i); k++) trips[c].setValue(k,
+                        (float) (rowFactors[c][i] * columnFactors[c][friction[c].getColumn(k)] * friction[c].getValue(k)));
+            }
+        }
+        new distributionState(zones, names, gammas, frictionResolution, nonZeros, prod, attr, rowFactors,
+                columnFactors).write(stateFile);
+        logger.info("  Distributed " + classes + " truck classes incrementally in " +
+                ncstmUtil.rounder((System.currentTimeMillis() - startTime) / 1000f, 1) + " seconds");
+        return trips;
+    }
+
+
+    public sparseMatrix getCellDistances () {
+        // return distances of all O-D pairs within maxDistance, in the cell order of the sparse trip tables
+        return sparseMatrix.fromNeighbours("distance", zones, neighbours, maxDistance);
+    }
+
+
+    public sparseMatrix distributeClass (String name, double gamma, float[] prod, float[] attr) {
+        // return trip table of a single class within maxDistance, seeded like distributeSparse() and balanced like the
+        // trip tables of distribute() and distributeSparse(): by the balancer of this engine, or with the settings of
+        // MatrixBalancerRM if there is none. Cells beyond maxDistance are 0 in the dense trip tables as well, so that
+        // balancing the sparse cells gives the same trips. Used to evaluate many candidate parameters in parallel
+        sparseMatrix trips = sparseMatrix.fromNeighbours(name, zones, neighbours, maxDistance);
+        frictionFunction[] frictions = getFrictionFunctions(new double[]{gamma});
+        for (int orig = 0; orig < zones.length; orig++)
+            computeSparseSeedRow(orig, frictions, new float[][]{prod}, new float[][]{attr}, new sparseMatrix[]{trips});
+        matrixBalancer classBalancer = balancer != null ? balancer.withoutResidualFile() :
+                new matrixBalancer(RM_MAX_RELATIVE_ERROR, RM_MAX_ITERATIONS, matrixBalancer.adjustment.none, null);
+        classBalancer.balance(name, trips, prod, attr);
+        return trips;
+    }
+
+
+    public sparseMatrix distributeClass (String name, double gamma, float[] prod, float[] attr,
+                                         double maxRelativeError, int maxIterations) {
+        // return trip table of a single class within maxDistance, balanced by factors like distributeIncremental()
+        // without a previous state. Calculated on the calling thread without logging
+        sparseMatrix friction = sparseMatrix.fromNeighbours(name, zones, neighbours, maxDistance);
+        frictionFunction frictionFn = frictionFunction.get(gamma, frictionResolution, maxDistance);
+        for (int k = 0; k < friction.getNumberOfNonZeros(); k++) {
+            float dist = friction.getValue(k);
+            if (dist == 0) dist = 0.1f;      // the friction equation crashes if distance is 0
+            friction.setValue(k, frictionFn.getFriction(dist));
+        }
+        double[] rowFactors = new double[zones.length];
+        double[] columnFactors = new double[zones.length];
+        for (int j = 0; j < zones.length; j++) columnFactors[j] = attr[j];
+        balanceFactors(friction, prod, attr, rowFactors, columnFactors, maxRelativeError, maxIterations, false);
+        for (int i = 0; i < zones.length; i++) {
+            for (int k = friction.getFirst(i); k < friction.getEnd(i); k++) friction.setValue(k,
+                    (float) (rowFactors[i] * columnFactors[friction.getColumn(k)] * friction.getValue(k)));
+        }
+        return friction;
+    }
+
+
+    private void balanceFactors (sparseMatrix friction, float[] prod, float[] attr, double[] rowFactors,
+                                 double[] columnFactors, double maxRelativeError, int maxIterations, boolean report) {
+        // Furness balancing of T(i,j) = rowFactors(i) * columnFactors(j) * friction(i,j), starting from the factors
+        // given. Only factors are updated, the trip table is never stored
+        int n = zones.length;
+        double[] columnSums = new double[n];
+        double residual = getFactorResidual(friction, prod, attr, rowFactors, columnFactors);
+        int iteration = 0;
+        while (residual > maxRelativeError && iteration < maxIterations) {
+            iteration++;
+            for (int i = 0; i < n; i++) {
+                double sum = 0;
+                for (int k = friction.getFirst(i); k < friction.getEnd(i); k++)
+                    sum += friction.getValue(k) * columnFactors[friction.getColumn(k)];
+                if (sum > 0) rowFactors[i] = prod[i] / sum;
+            }
+            Arrays.fill(columnSums, 0);
+            for (int i = 0; i < n; i++) {
+                for (int k = friction.getFirst(i); k < friction.getEnd(i); k++)
+                    columnSums[friction.getColumn(k)] += friction.getValue(k) * rowFactors[i];
+            }
+            for (int j = 0; j < n; j++) if (columnSums[j] > 0) columnFactors[j] = attr[j] / columnSums[j];
+            residual = getFactorResidual(friction, prod, attr, rowFactors, columnFactors);
+        }
+        if (!report) return;
+        String message = "  Balanced " + friction.getName() + " in " + iteration + " iterations, residual " +
+                String.format("%.2e", residual);
+        if (residual > maxRelativeError) logger.warn(message + " (target of " + maxRelativeError + " not met)");
+        else logger.info(message);
+    }
+
+
+    private double getFactorResidual (sparseMatrix friction, float[] prod, float[] attr, double[] rowFactors,
+                                      double[] columnFactors) {
+        // return largest relative deviation of a row or column total from its target. Rows and columns that cannot
+        // receive trips with the current factors of the other dimension are ignored
+        int n = zones.length;
+        double[] columnReach = new double[n];
+        double residual = 0;
+        for (int i = 0; i < n; i++) {
+            double rowReach = 0;
+            for (int k = friction.getFirst(i); k < friction.getEnd(i); k++) {
+                int j = friction.getColumn(k);
+                rowReach += friction.getValue(k) * columnFactors[j];
+                columnReach[j] += friction.getValue(k) * rowFactors[i];
+            }
+            if (rowReach > 0) residual = Math.max(residual, getDeviation(rowFactors[i] * rowReach, prod[i]));
+        }
+        for (int j = 0; j < n; j++) {
+            if (columnReach[j] > 0) residual = Math.max(residual, getDeviation(columnFactors[j] * columnReach[j], attr[j]));
+        }
+        return residual;
+    }
+
+
+    private static double getDeviation (double total, float target) {
+        if (target > 0) return Math.abs(total / target - 1);
+        return total > 0 ? Double.POSITIVE_INFINITY : 0;
+    }
+
+
+    public float[][][] computeSeeds (double[] gammas, float[][] prod, float[][] attr) {
+        // return seed matrices [class][origin][destination] indexed by zone ordinals
+        float[][][] seeds = new float[gammas.length][zones.length][zones.length];
+        DnCRecursiveAction action = new SeedRowsAction(getFrictionFunctions(gammas), prod, attr, seeds);
+        ncstmUtil.runAction(action);
+        return seeds;
+    }
+
+
+    private void computeSeedRow (int orig, frictionFunction[] frictions, float[][] prod, float[][] attr, float[][][] seeds) {
+        // fill row orig of the seed matrices of all classes
+        for (int k = neighbours.getFirst(orig); k < neighbours.getEnd(orig); k++) {
+            float dist = neighbours.getDistance(k);
+            if (dist > maxDistance) break;
+            int dest = neighbours.getDestination(k);
+            if (dist == 0) dist = 0.1f;      // the friction equation crashes if distance is 0
+            for (int c = 0; c < frictions.length; c++) {
+                float friction = frictions[c].getFriction(dist);
+                seeds[c][orig][dest] = prod[c][orig] * attr[c][dest] * friction;
+            }
+        }
+    }
+
+
+    private void computeSparseSeedRow (int orig, frictionFunction[] frictions, float[][] prod, float[][] attr,
+                                       sparseMatrix[] seeds) {
+        // fill row orig of the sparse seed matrices of all classes, which share one structure
+        sparseMatrix structure = seeds[0];
+        for (int k = structure.getFirst(orig); k < structure.getEnd(orig); k++) {
+            int dest = structure.getColumn(k);
+            float dist = neighbours.getDistance(neighbours.getFirst(orig) + k - structure.getFirst(orig));
+            if (dist == 0) dist = 0.1f;      // the friction equation crashes if distance is 0
+            for (int c = 0; c < frictions.length; c++) {
+                float friction = frictions[c].getFriction(dist);
+                seeds[c].setValue(k, prod[c][orig] * attr[c][dest] * friction);
+            }
+        }
+    }
+
+
+    private class SparseSeedRowsAction extends DnCRecursiveAction {
+        private final frictionFunction[] frictions;
+        private final float[][] prod;
+        private final float[][] attr;
+        private final sparseMatrix[] seeds;
+
+        private SparseSeedRowsAction(frictionFunction[] frictions, float[][] prod, float[][] attr, sparseMatrix[] seeds) {
+            super(0, zones.length);
+            this.frictions = frictions;
+            this.prod = prod;
+            this.attr = attr;
+            this.seeds = seeds;
+        }
+
+        private SparseSeedRowsAction(frictionFunction[] frictions, float[][] prod, float[][] attr, sparseMatrix[] seeds, long start,
+                                     long length, DnCRecursiveAction next) {
+            super(start, length, next);
+            this.frictions = frictions;
+            this.prod = prod;
+            this.attr = attr;
+            this.seeds = seeds;
+        }
+
+        @Override
+        protected void computeAction(long start, long length) {
+            for (int orig = (int) start; orig < start + length; orig++)
+                computeSparseSeedRow(orig, frictions, prod, attr, seeds);
+        }
+
+        @Override
+        protected DnCRecursiveAction getNextAction(long start, long length, DnCRecursiveAction next) {
+            return new SparseSeedRowsAction(frictions, prod, attr, seeds, start, length, next);
+        }
+
+        @Override
+        protected boolean continueDividing(long length) {
+            return getSurplusQueuedTaskCount() < 3 && length > 1;
+        }
+    }
+
+
+    private class SeedRowsAction extends DnCRecursiveAction {
+        private final frictionFunction[] frictions;
+        private final float[][] prod;
+        private final float[][] attr;
+        private final float[][][] seeds;
+
+        private SeedRowsAction(frictionFunction[] frictions, float[][] prod, float[][] attr, float[][][] seeds) {
+            super(0, zones.length);
+            this.frictions = frictions;
+            this.prod = prod;
+            this.attr = attr;
+            this.seeds = seeds;
+        }
+
+        private SeedRowsAction(frictionFunction[] frictions, float[][] prod, float[][] attr, float[][][] seeds, long start,
+                               long length, DnCRecursiveAction next) {
+            super(start, length, next);
+            this.frictions = frictions;
+            this.prod = prod;
+            this.attr = attr;
+            this.seeds = seeds;
+        }
+
+        @Override
+        protected void computeAction(long start, long length) {
+            for (int orig = (int) start; orig < start + length; orig++) computeSeedRow(orig, frictions, prod, attr, seeds);
+        }
+
+        @Override
+        protected DnCRecursiveAction getNextAction(long start, long length, DnCRecursiveAction next) {
+            return new SeedRowsAction(frictions, prod, attr, seeds, start, length, next);
+        }
+
+        @Override
+        protected boolean continueDividing(long length) {
+            return getSurplusQueuedTaskCount() < 3 && length > 1;
+        }
+    }
+}
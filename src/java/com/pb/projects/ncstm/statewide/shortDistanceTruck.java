@@ -1,9 +1,12 @@
 package com.pb.projects.ncstm.statewide;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.ResourceBundle;
 import java.util.Scanner;
 
@@ -13,11 +16,17 @@ import com.pb.common.datafile.CSVFileWriter;
 import com.pb.common.datafile.TableDataSet;
 import com.pb.common.matrix.ColumnVector;
 import com.pb.common.matrix.Matrix;
-import com.pb.common.matrix.MatrixBalancerRM;
 import com.pb.common.matrix.RowVector;
 import com.pb.common.util.ResourceUtil;
+import com.pb.projects.ncstm.binaryMatrixReader;
+import com.pb.projects.ncstm.binaryMatrixWriter;
+import com.pb.projects.ncstm.frictionFunction;
+import com.pb.projects.ncstm.matrixBalancer;
+import com.pb.projects.ncstm.modelContext;
 import com.pb.projects.ncstm.ncstmData;
 import com.pb.projects.ncstm.ncstmUtil;
+import com.pb.projects.ncstm.sparseMatrix;
+import com.pb.projects.ncstm.tripTableWriter;
 
 
 /**
@@ -29,6 +38,7 @@ public class shortDistanceTruck {
 
     static Logger logger = Logger.getLogger(shortDistanceTruck.class);
     ResourceBundle appRb;
+    private ncstmData data;
 
     private int[] taz;
     private float[] prodMU;
@@ -36,9 +46,9 @@ public class shortDistanceTruck {
     private float[] prodCV;
     private String[] modeNames;
     private Matrix[] matrixArray;
-    public static Matrix MultiUnit;
-    public static Matrix SingleUnit;
-    public static Matrix CommercialVeh;
+    private Matrix MultiUnit;
+    private Matrix SingleUnit;
+    private Matrix CommercialVeh;
     private ColumnVector productionMU;
     private ColumnVector productionSU;
     private ColumnVector productionCV;
@@ -49,9 +59,24 @@ public class shortDistanceTruck {
     private HashMap<String, Float> suParameters;
     private HashMap<String, Float> cvParameters;
 
-    public shortDistanceTruck (ResourceBundle rp) {
+    public shortDistanceTruck (modelContext context) {
         // Constructor
-        this.appRb = rp;
+        this.appRb = context.getResourceBundle();
+        this.data = context.getData();
+    }
+
+
+    public static List<String> getOutputFiles (ResourceBundle rb) {
+        // return absolute paths of all files the short-distance truck model writes with properties rb. None of them
+        // depends on the model year
+        List<String> files = new ArrayList<>();
+        String tripTable = ResourceUtil.getProperty(rb, "local.truck.model.output").replace(".mtx", ".csv");
+        files.add(new File(tripTable).getAbsolutePath());
+        files.add(new File(binaryMatrixWriter.getFileName(tripTable)).getAbsolutePath());
+        files.add(new File(ResourceUtil.getProperty(rb, "production.attraction.file")).getAbsolutePath());
+        String stateFile = ResourceUtil.getProperty(rb, "sdt.incremental.state.file", null);
+        if (stateFile != null && !stateFile.isEmpty()) files.add(new File(stateFile).getAbsolutePath());
+        return files;
     }
 
 
@@ -63,6 +88,12 @@ public class shortDistanceTruck {
         logger.info(" Running trip generation.");
         tripGeneration();
 
+        if (ResourceUtil.getBooleanProperty(appRb, "sdt.calibration", false)) {
+            logger.info(" Calibrating trip distribution parameters.");
+            calibrateDistribution();
+            return;
+        }
+
         //Run the trip distribution method
         logger.info(" Running trip distribution.");
         tripDistribution();
@@ -73,7 +104,7 @@ public class shortDistanceTruck {
     private void tripGeneration(){
         //get the zonal data as an array
         logger.info(" Reading in zonal data.");
-        taz = ncstmData.getZones();
+        taz = data.getZones();
 
         //get the trip production rates by truck class
         logger.info(" Creating hash map of parameters.");
@@ -108,7 +139,7 @@ public class shortDistanceTruck {
         attractionCV = new RowVector(prodCV);
         attractionCV.setExternalNumbersZeroBased(taz);
 
-        writeTripPsAndAz();
+        if (!ResourceUtil.getBooleanProperty(appRb, "sdt.calibration", false)) writeTripPsAndAz();
     }
 
 
@@ -133,12 +164,39 @@ public class shortDistanceTruck {
 
 
     private void tripDistribution(){
-        //call the trip distribution method for each truck type.
-        MultiUnit = singleTypeDistribution("MultiUnit",ResourceUtil.getDoubleProperty(appRb, "mut.distribution.parameter"),productionMU, attractionMU);
-//		logger.info("SUT");
-        SingleUnit = singleTypeDistribution("SingleUnit",ResourceUtil.getDoubleProperty(appRb, "sut.distribution.parameter"),productionSU, attractionSU);
-//		logger.info("CV");
-        CommercialVeh = singleTypeDistribution("CommercialVeh",ResourceUtil.getDoubleProperty(appRb, "cv.distribution.parameter"),productionCV, attractionCV);
+        //distribute all truck types in one pass, only destinations within 50 miles get trips
+        boolean sparse = ResourceUtil.getBooleanProperty(appRb, "sdt.sparse.gravity", false);
+        gravityEngine engine = createGravityEngine();
+        String[] names = new String[]{"MultiUnit", "SingleUnit", "CommercialVeh"};
+        double[] gammas = new double[]{ResourceUtil.getDoubleProperty(appRb, "mut.distribution.parameter"),
+                ResourceUtil.getDoubleProperty(appRb, "sut.distribution.parameter"),
+                ResourceUtil.getDoubleProperty(appRb, "cv.distribution.parameter")};
+        String stateFile = ResourceUtil.getProperty(appRb, "sdt.incremental.state.file", null);
+        if (stateFile != null && !stateFile.isEmpty()) {
+            // keep balancing factors between runs and start from those of the previous run
+            float[][] prod = new float[][]{prodMU, prodSU, prodCV};
+            sparseMatrix[] trips = engine.distributeIncremental(names, gammas, prod, prod, new File(stateFile),
+                    getIncrementalMaxRelativeError(), getIncrementalMaxIterations());
+            writeTrucks(names, trips, "local.truck.model.output");
+            return;
+        }
+        if (sparse) {
+            // productions equal attractions, both are indexed by zone ordinal
+            float[][] prod = new float[][]{prodMU, prodSU, prodCV};
+            sparseMatrix[] trips = engine.distributeSparse(names, gammas, prod, prod);
+            writeTrucks(names, trips, "local.truck.model.output");
+            return;
+        }
+        if (ResourceUtil.getBooleanProperty(appRb, "sdt.distribute.by.class", false)) {
+            distributeByClass(engine, names, gammas);
+            return;
+        }
+        Matrix[] trips = engine.distribute(names, gammas,
+                new ColumnVector[]{productionMU, productionSU, productionCV},
+                new RowVector[]{attractionMU, attractionSU, attractionCV});
+        MultiUnit = trips[0];
+        SingleUnit = trips[1];
+        CommercialVeh = trips[2];
 
         //create arrays that will be read into the matrix writer method
         matrixArray = new Matrix[3];
@@ -146,6 +204,148 @@ public class shortDistanceTruck {
         matrixArray = createMatrixArray(MultiUnit,SingleUnit,CommercialVeh);
         modeNames = createStringArray("MultiUnit","SingleUnit","CommercialVeh");
         writeTrucks(modeNames, matrixArray, "local.truck.model.output");
+        // release trip tables, they are not used after writing
+        MultiUnit = null;
+        SingleUnit = null;
+        CommercialVeh = null;
+        matrixArray = null;
+    }
+
+
+    private void distributeByClass(gravityEngine engine, String[] names, double[] gammas) {
+        // distribute, write and release one truck class at a time, so that only one dense trip table is held in
+        // memory. Every class is written to a temporary binary file, and these files are merged into the trip table
+        // in one interleaved pass
+        String fileName = ResourceUtil.getProperty(appRb, "local.truck.model.output").replace(".mtx", ".csv");
+        ColumnVector[] productions = new ColumnVector[]{productionMU, productionSU, productionCV};
+        RowVector[] attractions = new RowVector[]{attractionMU, attractionSU, attractionCV};
+        File[] classFiles = new File[names.length];
+        float[][] row = new float[1][taz.length];
+        try {
+            for (int c = 0; c < names.length; c++) {
+                Matrix trips = engine.distribute(new String[]{names[c]}, new double[]{gammas[c]},
+                        new ColumnVector[]{productions[c]}, new RowVector[]{attractions[c]})[0];
+                classFiles[c] = new File(fileName + "." + names[c] + ".tmp");
+                try (binaryMatrixWriter writer = new binaryMatrixWriter(classFiles[c], taz, new String[]{names[c]}, false)) {
+                    for (int orig = 0; orig < taz.length; orig++) {
+                        for (int dest = 0; dest < taz.length; dest++) row[0][dest] = trips.getValueAt(taz[orig], taz[dest]);
+                        writer.writeRow(row);
+                    }
+                } catch (IOException e) {
+                    logger.error("Could not write temporary trip table " + classFiles[c]);
+                    throw new RuntimeException(e);
+                }
+                logger.info("  Wrote and released trip table of " + names[c]);
+            }
+            mergeClassFiles(names, classFiles, fileName);
+        } finally {
+            // temporary files are removed even if distributing or merging failed
+            for (File classFile: classFiles) {
+                if (classFile != null && classFile.exists() && !classFile.delete())
+                    logger.warn("  Could not delete temporary trip table " + classFile);
+            }
+        }
+    }
+
+
+    private void mergeClassFiles(String[] names, File[] classFiles, String fileName) {
+        // read temporary trip tables of all classes row by row and write them into the trip table(s) set by
+        // trip.table.format
+        logger.info(" Writing matrix of local truck trips to csv file.");
+        float[][] rows = new float[names.length][taz.length];
+        float[][][] classRows = new float[names.length][][];
+        for (int c = 0; c < names.length; c++) classRows[c] = new float[][]{rows[c]};
+        final binaryMatrixReader[] readers = new binaryMatrixReader[names.length];
+        boolean writeCsv = binaryMatrixWriter.writeCsv(appRb);
+        boolean fastWriter = tripTableWriter.useFastWriter(appRb);
+        try (Closeable closeReaders = () -> {
+                 for (binaryMatrixReader reader: readers) if (reader != null) reader.close();
+             };
+             binaryMatrixWriter binWriter = binaryMatrixWriter.writeBinary(appRb) ?
+                     binaryMatrixWriter.open(appRb, fileName, taz, names) : null;
+             tripTableWriter.rowStream csvStream = writeCsv && fastWriter ?
+                     tripTableWriter.create(appRb, taz).openRowStream(fileName, names) : null;
+             PrintWriter pw = writeCsv && !fastWriter ? ncstmUtil.openFileForSequentialWriting(fileName) : null) {
+            for (int c = 0; c < names.length; c++) readers[c] = new binaryMatrixReader(classFiles[c]);
+            if (pw != null) {
+                pw.print("orig,dest");
+                for (String mode: names) pw.print("," + mode);
+                pw.println();
+            }
+            for (int orig = 0; orig < taz.length; orig++) {
+                for (int c = 0; c < names.length; c++) readers[c].readRow(classRows[c]);
+                if (binWriter != null) binWriter.writeRow(rows);
+                if (csvStream != null) csvStream.writeRow(orig, rows);
+                if (pw != null) {
+                    for (int dest = 0; dest < taz.length; dest++) {
+                        pw.print(taz[orig] + "," + taz[dest]);
+                        for (float[] classRow: rows) pw.print("," + classRow[dest]);
+                        pw.println();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Could not read temporary trip tables: " + e.getMessage());
+            throw new RuntimeException(e);
+        }
+    }
+
+
+    private gravityEngine createGravityEngine() {
+        // gravity model with the balancer set by sdt.sparse.gravity and balancer.native, MatrixBalancerRM otherwise
+        boolean sparse = ResourceUtil.getBooleanProperty(appRb, "sdt.sparse.gravity", false);
+        matrixBalancer balancer = (sparse || matrixBalancer.useNativeBalancer(appRb)) ?
+                matrixBalancer.create(appRb, 0.0001, matrixBalancer.adjustment.none) : null;
+        return new gravityEngine(taz, data.getTruckNeighbours(50), 50, balancer, frictionFunction.getResolution(appRb));
+    }
+
+
+    private double getIncrementalMaxRelativeError() {
+        return ResourceUtil.getDoubleProperty(appRb, "sdt.incremental.max.relative.error", 0.0001);
+    }
+
+
+    private int getIncrementalMaxIterations() {
+        return ResourceUtil.getIntegerProperty(appRb, "sdt.incremental.max.iterations", 100);
+    }
+
+
+    private void calibrateDistribution() {
+        // search distribution parameters that reproduce target average trip lengths or trip-length distributions.
+        // Nothing is written, calibrated parameters are logged
+        gravityCalibration calibration = new gravityCalibration(createGravityEngine(), appRb);
+        String stateFile = ResourceUtil.getProperty(appRb, "sdt.incremental.state.file", null);
+        if (stateFile != null && !stateFile.isEmpty())
+            calibration.useFactorBalancing(getIncrementalMaxRelativeError(), getIncrementalMaxIterations());
+        String[] names = new String[]{"MultiUnit", "SingleUnit", "CommercialVeh"};
+        String[] tokens = new String[]{"mut", "sut", "cv"};
+        float[][] prod = new float[][]{prodMU, prodSU, prodCV};
+        TableDataSet tlfd = null;
+        String tlfdFile = ResourceUtil.getProperty(appRb, "sdt.calibration.tlfd.file", null);
+        if (tlfdFile != null && !tlfdFile.isEmpty()) tlfd = ncstmUtil.importTable(tlfdFile);
+        for (int c = 0; c < names.length; c++) {
+            double[] binUpperBounds = null;
+            double[] targetShares = null;
+            double targetTripLength = ResourceUtil.getDoubleProperty(appRb, tokens[c] + ".target.trip.length", -1);
+            if (tlfd != null && tlfd.getColumnPosition(names[c]) >= 0) {
+                float[] upper = tlfd.getColumnAsFloat("upperMiles");
+                float[] shares = tlfd.getColumnAsFloat(names[c]);
+                binUpperBounds = new double[upper.length];
+                targetShares = new double[upper.length];
+                for (int bin = 0; bin < upper.length; bin++) {
+                    binUpperBounds[bin] = upper[bin];
+                    targetShares[bin] = shares[bin];
+                }
+            } else if (targetTripLength <= 0) {
+                logger.info("  No target trip length for " + names[c] + ", " + tokens[c] +
+                        ".distribution.parameter is not calibrated");
+                continue;
+            }
+            double gamma = calibration.calibrate(names[c], prod[c], prod[c], targetTripLength, binUpperBounds,
+                    targetShares);
+            logger.info("  Calibrated " + tokens[c] + ".distribution.parameter = " + gamma + " (currently " +
+                    ResourceUtil.getDoubleProperty(appRb, tokens[c] + ".distribution.parameter") + ")");
+        }
     }
 
 
@@ -187,8 +387,8 @@ public class shortDistanceTruck {
      * @return
      */
     private HashMap<String, Float> putTripRatesInHashMap(String colName){
-        String[] codes = ncstmData.getTripIndustries("Code");
-        float[] rates = ncstmData.getTripRates(colName);
+        String[] codes = data.getTripIndustries("Code");
+        float[] rates = data.getTripRates(colName);
         HashMap<String, Float> tripRates = new HashMap<>();
         for (int i = 0; i < codes.length; i++)
             tripRates.put(codes[i], rates[i]);
@@ -203,8 +403,8 @@ public class shortDistanceTruck {
      * @return
      */
     private HashMap<String, Float> putLnTripRatesInHashMap(String colName){
-        String[] codes = ncstmData.getLnTripIndustries("Code");
-        float[] rates = ncstmData.getLnTripRates(colName);
+        String[] codes = data.getLnTripIndustries("Code");
+        float[] rates = data.getLnTripRates(colName);
         HashMap<String, Float> tripRates = new HashMap<>();
         for (int i = 0; i < codes.length; i++)
             tripRates.put(codes[i], rates[i]);
@@ -218,120 +418,8 @@ public class shortDistanceTruck {
      * @return
      */
     private float[] calculateTripProductions(HashMap<String, Float> tripRates, boolean useLnTripRates){
-        taz = ncstmData.getZones();
-        float[] prod = new float[taz.length];
-        for (int zn = 0; zn < taz.length; zn++) {
-            int zone = taz[zn];
-            double production = 0;
-            if(ncstmData.zoneInNCSTMArea(zone) && ncstmData.getSEdataItem("POP", zone) > 0 &&
-                    ncstmData.getSEdataItem("TOTEMP", zone) > 0) {
-               int areaType = ncstmData.getAreaTypeOfZone(zone);
-                for (String variable: tripRates.keySet()) {
-                    if (!variable.contains("_ANYWHERE")) {
-                        if (areaType == 1 && !variable.contains("_URB")) continue;
-                        if (areaType == 2 && !variable.contains("_SUB")) continue;
-                        if (areaType == 3 && !variable.contains("_RUR")) continue;
-                    }
-                    String seItem = variable.replace("_URB", "");
-                    seItem = seItem.replace("_SUB", "");
-                    seItem = seItem.replace("_RUR", "");
-                    seItem = seItem.replace("_ANYWHERE", "");
-                    if (useLnTripRates) {
-                        // calculate logarithmic trip rate
-                        production += getLnProduction(zone, seItem, tripRates.get(variable));
-                    } else {
-                        // calculate traditional trip rate
-                        production += getProduction(zone, seItem, tripRates.get(variable));
-                    }
-                }
-                if (useLnTripRates) {
-                    prod[zn] = (float) Math.exp(production);
-                } else {
-                    prod[zn] = (float) production;
-                }
-                if (production < 0) {
-                    logger.error("Calculated negative trip rate for zone " + zone + ": " + production + ". Was set to 0.");
-                    prod[zn] = 0;
-                }
-            }
-            else prod[zn] = 0;
-        }
-        return prod;
-    }
-
-
-    private double getProduction (int zone, String seItem, float tripRate) {
-        // calculate trip production (traditional approach)
-        if (seItem.contains("CONS")) {
-            return tripRate;
-        } else if (seItem.contains("DENS")) {
-            float seData = ncstmData.getSEdataItem(seItem.replace("DENS", ""), zone);
-            float area = ncstmData.getSEdataItem("Area", zone);
-            if (area > 0) return seData / area * tripRate;
-            else return 0;
-        } else
-        return tripRate * ncstmData.getSEdataItem(seItem, zone);
-    }
-
-
-    private double getLnProduction (int zone, String seItem, float tripRate) {
-        // calculate trip production using a logarithmic function
-
-        if (seItem.contains("CONS")) {
-            return tripRate;
-        } else if (seItem.contains("DENS")) {
-            float seData = ncstmData.getSEdataItem(seItem.replace("DENS", ""), zone);
-            float area = ncstmData.getSEdataItem("Area", zone);
-            if (area > 0) return seData / area * tripRate;
-            else return 0;
-        } else {
-            if (ncstmData.getSEdataItem(seItem, zone) > 0) {
-                return tripRate * Math.log(ncstmData.getSEdataItem(seItem, zone));
-            } else {
-                return 0;
-            }
-        }
-    }
-
-
-    /**
-     * This method estimates distribution for one truck type.
-     * @param mode
-//     * @param beta
-     * @param gamma
-     * @param a
-     * @param b
-     * @return
-     */
-    private Matrix singleTypeDistribution(String mode, double gamma, ColumnVector a, RowVector b) {
-        // create seed matrix
-        Matrix mat = new Matrix("Seed", "Seed", taz.length, taz.length);
-        mat.setExternalNumbersZeroBased(taz, taz);
-        MatrixBalancerRM balancer = new MatrixBalancerRM(mat,a,b,0.0001, 10, MatrixBalancerRM.ADJUST.NONE);
-
-        for (int zoneA = 0; zoneA < taz.length; zoneA++) {
-            int originSMZ = taz[zoneA];
-//            logger.info(originSMZ + ","+a.getValueAt(originSMZ)+","+b.getValueAt(originSMZ));
-            float[] friction = new float[taz.length];
-            for (int zoneB = 0; zoneB < taz.length; zoneB++) {
-                int destinationSMZ = taz[zoneB];
-                float dist = ncstmData.getTruckDistance(originSMZ, destinationSMZ);
-//                if(dist >50) logger.info("Origin: "+originSMZ+" Destination: "+destinationSMZ+" Dist: "+dist);
-                if (dist > 50) continue;
-//                logger.info("Origin: "+originSMZ+" Destination: "+destinationSMZ+" Dist: "+dist);
-                if (dist == 0) dist = 0.1f;      // the friction equation crashes if distance is 0
-                friction[zoneB] = (float) Math.exp(gamma * dist);
-            }
-            for (int zoneB = 0; zoneB < taz.length; zoneB++) {
-                int destinationSMZ = taz[zoneB];
-                float flow = a.getValueAt(originSMZ) * b.getValueAt(destinationSMZ) * friction[zoneB];
-//                logger.info("Origin: "+originSMZ+" Destination: "+destinationSMZ+" Trips: "+flow);
-                mat.setValueAt(originSMZ, destinationSMZ, flow);
-            }
-        }
-
-        mat = balancer.balance();
-        return mat;
+        taz = data.getZones();
+        return new tripRatePlan(data, tripRates, useLnTripRates).calculateProductions(taz);
     }
 
 
@@ -353,12 +441,19 @@ public class shortDistanceTruck {
             // write csv file
             logger.info(" Writing matrix of local truck trips to csv file.");
             String fileName = ResourceUtil.getProperty(appRb, outputToken).replace(".mtx", ".csv");
+            if (binaryMatrixWriter.writeBinary(appRb))
+                binaryMatrixWriter.write(appRb, fileName, data.getZones(), modeNames, modes);
+            if (!binaryMatrixWriter.writeCsv(appRb)) return;
+            if (tripTableWriter.useFastWriter(appRb)) {
+                tripTableWriter.create(appRb, data.getZones()).write(fileName, modeNames, modes);
+                return;
+            }
             PrintWriter pw = ncstmUtil.openFileForSequentialWriting(fileName);
             pw.print("orig,dest");
             for (String mode: modeNames) pw.print("," + mode);
             pw.println();
-            for (int i: ncstmData.getZones()) {
-                for (int j: ncstmData.getZones()) {
+            for (int i: data.getZones()) {
+                for (int j: data.getZones()) {
                     pw.print(i + "," + j);
                     for (int mode = 0; mode < modeNames.length; mode++) {
                         pw.print("," + modes[mode].getValueAt(i, j));
@@ -368,4 +463,31 @@ public class shortDistanceTruck {
             }
             pw.close();
     }
+
+
+    private void writeTrucks(String[] modeNames, sparseMatrix[] modes, String outputToken) {
+        // write csv file with all O-D pairs in the same format as the dense matrices above
+        logger.info(" Writing matrix of local truck trips to csv file.");
+        String fileName = ResourceUtil.getProperty(appRb, outputToken).replace(".mtx", ".csv");
+        if (binaryMatrixWriter.writeBinary(appRb)) binaryMatrixWriter.write(appRb, fileName, taz, modeNames, modes);
+        if (!binaryMatrixWriter.writeCsv(appRb)) return;
+        if (tripTableWriter.useFastWriter(appRb)) {
+            tripTableWriter.create(appRb, taz).write(fileName, modeNames, modes);
+            return;
+        }
+        PrintWriter pw = ncstmUtil.openFileForSequentialWriting(fileName);
+        pw.print("orig,dest");
+        for (String mode: modeNames) pw.print("," + mode);
+        pw.println();
+        float[][] rows = new float[modes.length][];
+        for (int orig = 0; orig < taz.length; orig++) {
+            for (int mode = 0; mode < modes.length; mode++) rows[mode] = modes[mode].getRow(orig, rows[mode]);
+            for (int dest = 0; dest < taz.length; dest++) {
+                pw.print(taz[orig] + "," + taz[dest]);
+                for (int mode = 0; mode < modes.length; mode++) pw.print("," + rows[mode][dest]);
+                pw.println();
+            }
+        }
+        pw.close();
+    }
 }
\ No newline at end of file
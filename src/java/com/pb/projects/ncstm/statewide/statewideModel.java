@@ -1,7 +1,7 @@
 package com.pb.projects.ncstm.statewide;
 
+import com.pb.projects.ncstm.modelContext;
 import org.apache.log4j.Logger;
-import java.util.ResourceBundle;
 
 /**
  * Model to simulate statewide truck flows for the North Carolina Statewide Model (NCSTM)
@@ -11,19 +11,20 @@ import java.util.ResourceBundle;
 public class statewideModel {
 
     static Logger logger = Logger.getLogger(statewideModel.class);
-    ResourceBundle appRb;
+    private modelContext context;
 
-    public statewideModel (ResourceBundle rp) {
+    public statewideModel (modelContext context) {
         // Constructor
-        this.appRb = rp;
+        this.context = context;
     }
 
 
-    public void run (int year) {
+    public void run () {
         // Run method for statewide model
+        int year = context.getYear();
         logger.info("Started statewide truck model for year " + year);
 
-        shortDistanceTruck sdt = new shortDistanceTruck(appRb);
+        shortDistanceTruck sdt = new shortDistanceTruck(context);
         sdt.run();
 
         // Run method for statewide model
@@ -0,0 +1,149 @@
+package com.pb.projects.ncstm.statewide;
+
+import com.pb.projects.ncstm.ncstmData;
+import com.pb.projects.ncstm.ncstmUtil;
+import com.pb.sawdust.util.concurrent.DnCRecursiveAction;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * Trip generation plan of the short-distance truck model of the North Carolina Statewide Model (NCSTM). The trip rate
+ * table is compiled once into a list of terms per area type, with socio-economic columns resolved to handles, so that
+ * no string work is left when productions are calculated for every zone. Variables ending in _URB, _SUB or _RUR apply
+ * to area types 1, 2 or 3 only, variables ending in _ANYWHERE to all area types. Zones of any other area type use all
+ * variables. Terms are evaluated in the iteration order of the trip rate map.
+ *
+ * Term kinds: constant (variable contains CONS), density (contains DENS, se item per Area) and se item. In the
+ * logarithmic variant, se item terms use ln(se item) and the production of a zone is exp(sum of terms).
+ */
+public class tripRatePlan {
+
+    static Logger logger = Logger.getLogger(tripRatePlan.class);
+    private enum termKind {constant, density, item}
+    private static final String[] AREA_TYPE_SUFFIX = {null, "_URB", "_SUB", "_RUR"};
+    private final ncstmData data;
+    private final boolean logarithmic;
+    private final term[][] termsByAreaType;     // position 0 holds terms of area types other than 1, 2 and 3
+    private final int popColumn;
+    private final int totEmpColumn;
+    private final int areaColumn;
+
+
+    public tripRatePlan (ncstmData data, Map<String, Float> tripRates, boolean logarithmic) {
+        // Constructor, compiles trip rates into terms
+        this.data = data;
+        this.logarithmic = logarithmic;
+        popColumn = data.getSEdataColumn("POP");
+        totEmpColumn = data.getSEdataColumn("TOTEMP");
+        int areaColumn = -1;
+        termsByAreaType = new term[AREA_TYPE_SUFFIX.length][];
+        ArrayList<ArrayList<term>> lists = new ArrayList<>();
+        for (int areaType = 0; areaType < AREA_TYPE_SUFFIX.length; areaType++) lists.add(new ArrayList<term>());
+        for (Map.Entry<String, Float> rate: tripRates.entrySet()) {
+            String variable = rate.getKey();
+            String seItem = variable.replace("_URB", "").replace("_SUB", "").replace("_RUR", "").replace("_ANYWHERE", "");
+            term t;
+            if (seItem.contains("CONS")) {
+                t = new term(termKind.constant, -1, rate.getValue());
+            } else if (seItem.contains("DENS")) {
+                if (areaColumn < 0) areaColumn = data.getSEdataColumn("Area");
+                t = new term(termKind.density, data.getSEdataColumn(seItem.replace("DENS", "")), rate.getValue());
+            } else {
+                t = new term(termKind.item, data.getSEdataColumn(seItem), rate.getValue());
+            }
+            lists.get(0).add(t);
+            for (int areaType = 1; areaType < AREA_TYPE_SUFFIX.length; areaType++) {
+                if (variable.contains("_ANYWHERE") || variable.contains(AREA_TYPE_SUFFIX[areaType]))
+                    lists.get(areaType).add(t);
+            }
+        }
+        for (int areaType = 0; areaType < AREA_TYPE_SUFFIX.length; areaType++)
+            termsByAreaType[areaType] = lists.get(areaType).toArray(new term[lists.get(areaType).size()]);
+        this.areaColumn = areaColumn;
+    }
+
+
+    public float[] calculateProductions (int[] zones) {
+        // return trip productions of zones, calculated in parallel
+        float[] prod = new float[zones.length];
+        DnCRecursiveAction action = new ProductionAction(zones, prod);
+        ncstmUtil.runAction(action);
+        return prod;
+    }
+
+
+    private float calculateProduction (int zone) {
+        // return trip production of a single zone
+        if (!ncstmData.zoneInNCSTMArea(zone) || !(data.getSEdataItem(popColumn, zone) > 0) ||
+                !(data.getSEdataItem(totEmpColumn, zone) > 0)) return 0;
+        int areaType = data.getAreaTypeOfZone(zone);
+        term[] terms = termsByAreaType[(areaType >= 1 && areaType <= 3) ? areaType : 0];
+        double production = 0;
+        for (term t: terms) {
+            if (t.kind == termKind.constant) {
+                production += t.rate;
+            } else if (t.kind == termKind.density) {
+                float area = data.getSEdataItem(areaColumn, zone);
+                if (area > 0) production += data.getSEdataItem(t.column, zone) / area * t.rate;
+            } else if (logarithmic) {
+                float value = data.getSEdataItem(t.column, zone);
+                if (value > 0) production += t.rate * Math.log(value);
+            } else {
+                production += t.rate * data.getSEdataItem(t.column, zone);
+            }
+        }
+        if (production < 0) {
+            logger.error("Calculated negative trip rate for zone " + zone + ": " + production + ". Was set to 0.");
+            return 0;
+        }
+        return logarithmic ? (float) Math.exp(production) : (float) production;
+    }
+
+
+    private static class term {
+        private final termKind kind;
+        private final int column;
+        private final float rate;
+
+        private term (termKind kind, int column, float rate) {
+            this.kind = kind;
+            this.column = column;
+            this.rate = rate;
+        }
+    }
+
+
+    private class ProductionAction extends DnCRecursiveAction {
+        private final int[] zones;
+        private final float[] prod;
+
+        private ProductionAction(int[] zones, float[] prod) {
+            super(0, zones.length);
+            this.zones = zones;
+            this.prod = prod;
+        }
+
+        private ProductionAction(int[] zones, float[] prod, long start, long length, DnCRecursiveAction next) {
+            super(start, length, next);
+            this.zones = zones;
+            this.prod = prod;
+        }
+
+        @Override
+        protected void computeAction(long start, long length) {
+            for (int zn = (int) start; zn < start + length; zn++) prod[zn] = calculateProduction(zones[zn]);
+        }
+
+        @Override
+        protected DnCRecursiveAction getNextAction(long start, long length, DnCRecursiveAction next) {
+            return new ProductionAction(zones, prod, start, length, next);
+        }
+
+        @Override
+        protected boolean continueDividing(long length) {
+            return getSurplusQueuedTaskCount() < 3 && length > 1;
+        }
+    }
+}
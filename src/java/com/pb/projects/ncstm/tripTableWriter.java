@@ -0,0 +1,349 @@
+package com.pb.projects.ncstm;
+
+import com.pb.common.matrix.Matrix;
+import com.pb.common.util.ResourceUtil;
+import com.pb.sawdust.util.concurrent.DnCRecursiveAction;
+import com.pb.sawdust.util.concurrent.ForkJoinPoolFactory;
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.ResourceBundle;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Csv writer for trip tables of the North Carolina Statewide Model (NCSTM), writing one line orig,dest,class1,...
+ * per O-D pair. Blocks of origin rows are formatted in parallel into reusable byte buffers and written in origin
+ * order to a file channel. Values are written with a fixed number of decimals without trailing zeros. If a zero
+ * threshold is set, O-D pairs where no class exceeds the threshold are left out, and for sparse matrices only stored
+ * cells are visited, so that file size and write time scale with the number of non-zero cells.
+ *
+ * Properties:
+ *   trip.table.fast.writer       use this writer instead of PrintWriter output, default false
+ *   trip.table.zero.threshold    leave out O-D pairs with all values at or below threshold, default -1 (write all)
+ *   trip.table.decimals          number of decimals, default 6
+ */
+public class tripTableWriter {
+
+    static Logger logger = Logger.getLogger(tripTableWriter.class);
+    private static final int BLOCK_ROWS = 64;
+    private static final long[] POWERS_OF_TEN = {1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L,
+            100000000L, 1000000000L};
+    private final int[] zones;
+    private final float zeroThreshold;
+    private final int decimals;
+    private final double fixedPointLimit;   // larger values are written by Float.toString
+
+
+    public tripTableWriter (int[] zones, float zeroThreshold, int decimals) {
+        // Constructor
+        if (decimals < 0 || decimals >= POWERS_OF_TEN.length)
+            throw new RuntimeException("Number of decimals must be between 0 and " + (POWERS_OF_TEN.length - 1));
+        this.zones = zones;
+        this.zeroThreshold = zeroThreshold;
+        this.decimals = decimals;
+        // values scaled by 10^decimals must fit into a long (about 9.2e18)
+        fixedPointLimit = Math.min(1e12, 1e18 / POWERS_OF_TEN[decimals]);
+    }
+
+
+    public static boolean useFastWriter (ResourceBundle rb) {
+        return ResourceUtil.getBooleanProperty(rb, "trip.table.fast.writer", false);
+    }
+
+
+    public static tripTableWriter create (ResourceBundle rb, int[] zones) {
+        // create writer with settings read from properties
+        return new tripTableWriter(zones, (float) ResourceUtil.getDoubleProperty(rb, "trip.table.zero.threshold", -1),
+                ResourceUtil.getIntegerProperty(rb, "trip.table.decimals", 6));
+    }
+
+
+    public void write (String fileName, String[] names, final Matrix[] tables) {
+        // write dense matrices, indexed by zone numbers
+        write(fileName, names, new rowFormatter() {
+            public void formatRow(int orig, lineBuffer out, float[][] scratch) {
+                for (int dest = 0; dest < zones.length; dest++) {
+                    for (int c = 0; c < tables.length; c++) scratch[c][0] = tables[c].getValueAt(zones[orig], zones[dest]);
+                    appendLine(out, orig, dest, scratch, 0);
+                }
+            }
+        }, tables.length);
+    }
+
+
+    public void write (String fileName, String[] names, final sparseMatrix[] tables) {
+        // write sparse matrices, indexed by zone ordinals. Destinations are written in zone order
+        boolean shared = true;
+        for (sparseMatrix table: tables) shared &= table.sharesStructure(tables[0]);
+        if (zeroThreshold >= 0 && shared) {
+            final int[] order = getColumnOrder(tables[0]);
+            write(fileName, names, new rowFormatter() {
+                public void formatRow(int orig, lineBuffer out, float[][] scratch) {
+                    for (int k = tables[0].getFirst(orig); k < tables[0].getEnd(orig); k++) {
+                        int position = order[k];
+                        for (int c = 0; c < tables.length; c++) scratch[c][0] = tables[c].getValue(position);
+                        appendLine(out, orig, tables[0].getColumn(position), scratch, 0);
+                    }
+                }
+            }, tables.length);
+        } else {
+            write(fileName, names, new rowFormatter() {
+                public void formatRow(int orig, lineBuffer out, float[][] scratch) {
+                    for (int c = 0; c < tables.length; c++) scratch[c] = tables[c].getRow(orig, scratch[c]);
+                    for (int dest = 0; dest < zones.length; dest++) appendLine(out, orig, dest, scratch, dest);
+                }
+            }, tables.length);
+        }
+    }
+
+
+    private void write (String fileName, String[] names, rowFormatter formatter, int classes) {
+        // format blocks of origins in parallel, a batch of blocks at a time, and write them in order
+        long startTime = System.currentTimeMillis();
+        int slots = 2 * Runtime.getRuntime().availableProcessors();
+        lineBuffer[] buffers = new lineBuffer[slots];
+        float[][][] scratch = new float[slots][classes][1];
+        for (int slot = 0; slot < slots; slot++) buffers[slot] = new lineBuffer();
+        long bytes = 0;
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            StringBuilder header = new StringBuilder("orig,dest");
+            for (String name: names) header.append(",").append(name);
+            header.append("\n");
+            bytes += writeFully(channel, ByteBuffer.wrap(header.toString().getBytes(StandardCharsets.US_ASCII)));
+            int blocks = (zones.length + BLOCK_ROWS - 1) / BLOCK_ROWS;
+            ForkJoinPool pool = ForkJoinPoolFactory.getForkJoinPool();
+            for (int firstBlock = 0; firstBlock < blocks; firstBlock += slots) {
+                int batchSize = Math.min(slots, blocks - firstBlock);
+                DnCRecursiveAction action = new FormatAction(formatter, buffers, scratch, firstBlock, batchSize);
+                pool.execute(action);
+                action.getResult();
+                for (int slot = 0; slot < batchSize; slot++)
+                    bytes += writeFully(channel, ByteBuffer.wrap(buffers[slot].bytes, 0, buffers[slot].length));
+            }
+        } catch (IOException e) {
+            logger.error("Could not write trip table <" + fileName + ">: " + e.getMessage());
+            throw new RuntimeException(e);
+        }
+        logger.info("  Wrote " + bytes / 1024 + " kB to " + fileName + " in " +
+                ncstmUtil.rounder((System.currentTimeMillis() - startTime) / 1000f, 1) + " seconds");
+    }
+
+
+    public rowStream openRowStream (String fileName, String[] names) {
+        // open file for writing origin rows one at a time, in origin order and without parallel formatting
+        try {
+            return new rowStream(fileName, names);
+        } catch (IOException e) {
+            logger.error("Could not open trip table <" + fileName + ">: " + e.getMessage());
+            throw new RuntimeException(e);
+        }
+    }
+
+
+    private static long writeFully (FileChannel channel, ByteBuffer buffer) throws IOException {
+        long written = 0;
+        while (buffer.hasRemaining()) written += channel.write(buffer);
+        return written;
+    }
+
+
+    private static int[] getColumnOrder (sparseMatrix table) {
+        // return positions of stored cells, sorted by destination within every row
+        int[] order = new int[table.getNumberOfNonZeros()];
+        long[] keys = new long[0];
+        for (int orig = 0; orig < table.getZones().length; orig++) {
+            int first = table.getFirst(orig);
+            int length = table.getEnd(orig) - first;
+            if (keys.length < length) keys = new long[length];
+            for (int k = 0; k < length; k++) keys[k] = ((long) table.getColumn(first + k) << 32) | (first + k);
+            Arrays.sort(keys, 0, length);
+            for (int k = 0; k < length; k++) order[first + k] = (int) keys[k];
+        }
+        return order;
+    }
+
+
+    private void appendLine (lineBuffer out, int orig, int dest, float[][] values, int index) {
+        // append line for one O-D pair, unless all values are at or below the zero threshold
+        if (zeroThreshold >= 0) {
+            boolean above = false;
+            for (float[] value: values) above |= Math.abs(value[index]) > zeroThreshold;
+            if (!above) return;
+        }
+        out.appendLong(zones[orig]);
+        out.append((byte) ',');
+        out.appendLong(zones[dest]);
+        for (float[] value: values) {
+            out.append((byte) ',');
+            appendFloat(out, value[index]);
+        }
+        out.append((byte) '\n');
+    }
+
+
+    private void appendFloat (lineBuffer out, float value) {
+        // append value rounded to decimals, trailing zeros of the fraction are left out
+        double abs = Math.abs((double) value);
+        if (Float.isNaN(value) || Float.isInfinite(value) || abs >= fixedPointLimit) {
+            out.appendAscii(Float.toString(value));
+            return;
+        }
+        long scaled = Math.round(abs * POWERS_OF_TEN[decimals]);
+        if (scaled == 0) {
+            out.append((byte) '0');
+            return;
+        }
+        if (value < 0) out.append((byte) '-');
+        out.appendLong(scaled / POWERS_OF_TEN[decimals]);
+        long fraction = scaled % POWERS_OF_TEN[decimals];
+        if (fraction == 0) return;
+        int digits = decimals;
+        while (fraction % 10 == 0) {
+            fraction /= 10;
+            digits--;
+        }
+        out.append((byte) '.');
+        for (int d = digits - 1; d >= 0; d--) out.append((byte) ('0' + fraction / POWERS_OF_TEN[d] % 10));
+    }
+
+
+    public class rowStream implements Closeable {
+        // sequential writer of dense origin rows, indexed by [class][destination ordinal]
+        private final String fileName;
+        private final FileChannel channel;
+        private final lineBuffer buffer = new lineBuffer();
+
+        private rowStream(String fileName, String[] names) throws IOException {
+            this.fileName = fileName;
+            channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            buffer.appendAscii("orig,dest");
+            for (String name: names) buffer.appendAscii("," + name);
+            buffer.append((byte) '\n');
+        }
+
+        public void writeRow(int orig, float[][] values) {
+            for (int dest = 0; dest < zones.length; dest++) appendLine(buffer, orig, dest, values, dest);
+            if (buffer.length > (1 << 20)) flush();
+        }
+
+        private void flush() {
+            try {
+                writeFully(channel, ByteBuffer.wrap(buffer.bytes, 0, buffer.length));
+            } catch (IOException e) {
+                logger.error("Could not write trip table <" + fileName + ">: " + e.getMessage());
+                throw new RuntimeException(e);
+            }
+            buffer.length = 0;
+        }
+
+        @Override
+        public void close() {
+            flush();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.error("Could not close trip table <" + fileName + ">: " + e.getMessage());
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+
+    private interface rowFormatter {
+        void formatRow(int orig, lineBuffer out, float[][] scratch);
+    }
+
+
+    private static class lineBuffer {
+        // growable byte buffer that is reused for every batch
+        private byte[] bytes = new byte[1 << 16];
+        private int length;
+
+        private void ensure(int extra) {
+            if (length + extra > bytes.length) bytes = Arrays.copyOf(bytes, Math.max(2 * bytes.length, length + extra));
+        }
+
+        private void append(byte b) {
+            ensure(1);
+            bytes[length++] = b;
+        }
+
+        private void appendLong(long value) {
+            ensure(20);
+            if (value < 0) {
+                bytes[length++] = '-';
+                value = -value;
+            }
+            int start = length;
+            do {
+                bytes[length++] = (byte) ('0' + value % 10);
+                value /= 10;
+            } while (value > 0);
+            for (int i = start, j = length - 1; i < j; i++, j--) {
+                byte b = bytes[i];
+                bytes[i] = bytes[j];
+                bytes[j] = b;
+            }
+        }
+
+        private void appendAscii(String s) {
+            ensure(s.length());
+            for (int i = 0; i < s.length(); i++) bytes[length++] = (byte) s.charAt(i);
+        }
+    }
+
+
+    private class FormatAction extends DnCRecursiveAction {
+        private final rowFormatter formatter;
+        private final lineBuffer[] buffers;
+        private final float[][][] scratch;
+        private final int firstBlock;
+
+        private FormatAction(rowFormatter formatter, lineBuffer[] buffers, float[][][] scratch, int firstBlock,
+                             int batchSize) {
+            super(0, batchSize);
+            this.formatter = formatter;
+            this.buffers = buffers;
+            this.scratch = scratch;
+            this.firstBlock = firstBlock;
+        }
+
+        private FormatAction(rowFormatter formatter, lineBuffer[] buffers, float[][][] scratch, int firstBlock,
+                             long start, long length, DnCRecursiveAction next) {
+            super(start, length, next);
+            this.formatter = formatter;
+            this.buffers = buffers;
+            this.scratch = scratch;
+            this.firstBlock = firstBlock;
+        }
+
+        @Override
+        protected void computeAction(long start, long length) {
+            for (int slot = (int) start; slot < start + length; slot++) {
+                buffers[slot].length = 0;
+                int firstOrig = (firstBlock + slot) * BLOCK_ROWS;
+                for (int orig = firstOrig; orig < Math.min(zones.length, firstOrig + BLOCK_ROWS); orig++)
+                    formatter.formatRow(orig, buffers[slot], scratch[slot]);
+            }
+        }
+
+        @Override
+        protected DnCRecursiveAction getNextAction(long start, long length, DnCRecursiveAction next) {
+            return new FormatAction(formatter, buffers, scratch, firstBlock, start, length, next);
+        }
+
+        @Override
+        protected boolean continueDividing(long length) {
+            return getSurplusQueuedTaskCount() < 3 && length > 1;
+        }
+    }
+}
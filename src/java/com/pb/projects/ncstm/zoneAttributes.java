@@ -0,0 +1,108 @@
+package com.pb.projects.ncstm;
+
+import com.pb.common.datafile.TableDataSet;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Columnar store of zonal attributes for the North Carolina Statewide Model (NCSTM). Rows of a TableDataSet are
+ * given dense ordinals, and columns are copied into primitive arrays. Callers resolve a column handle once with
+ * getColumnHandle() and use it for every zone afterwards, which avoids the column-name lookup of TableDataSet.
+ */
+public class zoneAttributes {
+
+    private final TableDataSet table;
+    private final String name;
+    private final int[] keys;
+    private final int[] keyIndex;
+    private final ConcurrentHashMap<String, Integer> handles = new ConcurrentHashMap<>();
+    private volatile float[][] columns = new float[0][];
+
+
+    public zoneAttributes (TableDataSet table, String keyColumn, String name) {
+        // Constructor, builds index of key column
+        this.table = table;
+        this.name = name;
+        keys = table.getColumnAsInt(keyColumn);
+        keyIndex = new int[ncstmUtil.getHighestVal(keys) + 1];
+        Arrays.fill(keyIndex, -1);
+        for (int i = 0; i < keys.length; i++) keyIndex[keys[i]] = i;
+    }
+
+
+    public int[] getKeys () {
+        // return keys in ordinal order. The array is shared and must not be changed
+        return keys;
+    }
+
+
+    public int size () {
+        return keys.length;
+    }
+
+
+    public int getOrdinal (int key) {
+        // return dense ordinal of key, or -1 if key is not in this table
+        if (key < 0 || key >= keyIndex.length) return -1;
+        return keyIndex[key];
+    }
+
+
+    private int getExistingOrdinal (int key) {
+        int ordinal = getOrdinal(key);
+        if (ordinal < 0) throw new RuntimeException("Zone " + key + " not found in " + name);
+        return ordinal;
+    }
+
+
+    public int getColumnHandle (String column) {
+        // return handle of column. Known columns are looked up without locking, a column is copied into a primitive
+        // array when it is requested the first time
+        Integer handle = handles.get(column);
+        if (handle != null) return handle;
+        return addColumn(column);
+    }
+
+
+    private synchronized int addColumn (String column) {
+        // copy column, the handle is published after the column array so that lock-free readers always find it
+        Integer handle = handles.get(column);
+        if (handle != null) return handle;
+        if (table.getColumnPosition(column) < 0) throw new RuntimeException("Column " + column + " not found in " + name);
+        float[][] expanded = Arrays.copyOf(columns, columns.length + 1);
+        expanded[columns.length] = table.getColumnAsFloat(column);
+        handle = columns.length;
+        columns = expanded;
+        handles.put(column, handle);
+        return handle;
+    }
+
+
+    public boolean hasColumn (String column) {
+        return table.getColumnPosition(column) >= 0;
+    }
+
+
+    public float getValue (int handle, int key) {
+        // return value of column handle for zone key
+        return columns[handle][getExistingOrdinal(key)];
+    }
+
+
+    public float getValueByOrdinal (int handle, int ordinal) {
+        return columns[handle][ordinal];
+    }
+
+
+    public float[] getColumn (int handle) {
+        // return column in ordinal order. The array is shared and must not be changed
+        return columns[handle];
+    }
+
+
+    public int[] getIntColumn (String column) {
+        // return copy of column as int array in ordinal order
+        return table.getColumnAsInt(column);
+    }
+}
@@ -0,0 +1,141 @@
+package com.pb.projects.ncstm;
+
+import com.pb.sawdust.util.concurrent.DnCRecursiveAction;
+import org.apache.log4j.Logger;
+
+import java.util.Arrays;
+
+/**
+ * Neighbourhood index for the North Carolina Statewide Model (NCSTM). For every origin, the destinations within a
+ * radius are stored sorted by skim distance (ties sorted by zone ordinal) in compressed rows. Origins and destinations
+ * are zone ordinals, i.e. positions in ncstmData.getZones(). Neighbours of origin i are found at positions
+ * getFirst(i) to getEnd(i) - 1:
+ *
+ *     for (int k = nb.getFirst(i); k < nb.getEnd(i); k++) use(nb.getDestination(k), nb.getDistance(k));
+ */
+public class zoneNeighbours {
+
+    static Logger logger = Logger.getLogger(zoneNeighbours.class);
+    private final skimMatrix skim;
+    private final float radius;
+    private final int[] rowStart;
+    private final int[] destinations;
+    private final float[] distances;
+
+
+    public zoneNeighbours (skimMatrix skim, float radius) {
+        // Constructor, scans the skim once and keeps all destinations within radius
+        long startTime = System.currentTimeMillis();
+        this.skim = skim;
+        this.radius = radius;
+        int n = skim.getNumberOfZones();
+        final int[][] rowDestinations = new int[n][];
+        final float[][] rowDistances = new float[n][];
+
+        DnCRecursiveAction action = new BuildRowsAction(rowDestinations, rowDistances);
+        ncstmUtil.runAction(action);
+
+        rowStart = new int[n + 1];
+        for (int i = 0; i < n; i++) rowStart[i + 1] = rowStart[i] + rowDestinations[i].length;
+        destinations = new int[rowStart[n]];
+        distances = new float[rowStart[n]];
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(rowDestinations[i], 0, destinations, rowStart[i], rowDestinations[i].length);
+            System.arraycopy(rowDistances[i], 0, distances, rowStart[i], rowDistances[i].length);
+        }
+        logger.info("  Built index of zones within " + radius + " miles of " + skim.getName() + ": " +
+                destinations.length + " O-D pairs (" + ncstmUtil.rounder(100f * destinations.length / n / n, 2) +
+                "% of all pairs) in " + ncstmUtil.rounder((System.currentTimeMillis() - startTime) / 1000f, 1) + " seconds");
+    }
+
+
+    private void buildRow (int orig, int[][] rowDestinations, float[][] rowDistances) {
+        // collect destinations within radius and sort them by distance
+        int n = skim.getNumberOfZones();
+        float[] row = skim.getRow(orig, null);
+        long[] keys = new long[n];
+        int count = 0;
+        for (int dest = 0; dest < n; dest++) {
+            if (row[dest] <= radius) keys[count++] = sortKey(row[dest], dest);
+        }
+        Arrays.sort(keys, 0, count);
+        rowDestinations[orig] = new int[count];
+        rowDistances[orig] = new float[count];
+        for (int k = 0; k < count; k++) {
+            rowDestinations[orig][k] = (int) keys[k];
+            rowDistances[orig][k] = row[(int) keys[k]];
+        }
+    }
+
+
+    private static long sortKey (float distance, int ordinal) {
+        // combine distance and ordinal into a long that sorts by distance first, also for negative distances
+        int bits = Float.floatToIntBits(distance);
+        bits ^= (bits >> 31) & 0x7fffffff;
+        return ((long) bits << 32) | ordinal;
+    }
+
+
+    public float getRadius () {
+        return radius;
+    }
+
+
+    public int getFirst (int orig) {
+        return rowStart[orig];
+    }
+
+
+    public int getEnd (int orig) {
+        return rowStart[orig + 1];
+    }
+
+
+    public int getDestination (int position) {
+        return destinations[position];
+    }
+
+
+    public float getDistance (int position) {
+        return distances[position];
+    }
+
+
+    public int getNumberOfNeighbours (int orig) {
+        return rowStart[orig + 1] - rowStart[orig];
+    }
+
+
+    private class BuildRowsAction extends DnCRecursiveAction {
+        private final int[][] rowDestinations;
+        private final float[][] rowDistances;
+
+        private BuildRowsAction(int[][] rowDestinations, float[][] rowDistances) {
+            super(0, skim.getNumberOfZones());
+            this.rowDestinations = rowDestinations;
+            this.rowDistances = rowDistances;
+        }
+
+        private BuildRowsAction(int[][] rowDestinations, float[][] rowDistances, long start, long length,
+                                DnCRecursiveAction next) {
+            super(start, length, next);
+            this.rowDestinations = rowDestinations;
+            this.rowDistances = rowDistances;
+        }
+
+        @Override
+        protected void computeAction(long start, long length) {
+            for (int orig = (int) start; orig < start + length; orig++) buildRow(orig, rowDestinations, rowDistances);
+        }
+
+        @Override
+        protected DnCRecursiveAction getNextAction(long start, long length, DnCRecursiveAction next) {
+            return new BuildRowsAction(rowDestinations, rowDistances, start, length, next);
+        }
+
+        @Override
+        protected boolean continueDividing(long length) {
+            return getSurplusQueuedTaskCount() < 3 && length > 1;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.pb.projects.ncstm;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Accumulates zone-to-zone values of parallel tasks of the North Carolina Statewide Model (NCSTM) into shared dense
+ * matrices without locking single cells. Every task (e.g. one commodity) adds to its own sparse partialBuffer. A
+ * completed buffer is merged into the matrices in task order as soon as all buffers of earlier tasks have been merged,
+ * so that every cell receives the same sums in the same order regardless of thread scheduling. Merging is done by the
+ * thread that completes a task if no other thread is merging already. Workers claim tasks in ascending order through
+ * nextTask, which waits while maxOutstanding claimed tasks are not merged yet. This bounds the number of buffers in
+ * memory; the oldest unmerged task is always being processed by a worker that does not wait, so workers cannot
+ * deadlock.
+ */
+public class zonePairAccumulator {
+
+    private final double[][][] targets;
+    private final AtomicReferenceArray<partialBuffer> completed;
+    private final ReentrantLock mergeLock = new ReentrantLock();
+    private final Object mergeMonitor = new Object();
+    private final AtomicInteger nextToClaim = new AtomicInteger();
+    private final int maxOutstanding;
+    private volatile int nextToMerge;
+    private volatile boolean failed;
+
+
+    public zonePairAccumulator (double[][][] targets, int tasks, int maxOutstanding) {
+        // Constructor, targets are layers of square matrices (e.g. SUT and MUT trucks) that values are added to
+        this.targets = targets;
+        this.maxOutstanding = Math.max(1, maxOutstanding);
+        completed = new AtomicReferenceArray<>(tasks);
+    }
+
+
+    public int nextTask () {
+        // claim next task in task order, return -1 if all tasks are claimed. Waits while maxOutstanding claimed tasks
+        // have not been merged
+        int task = nextToClaim.getAndIncrement();
+        if (task >= completed.length()) return -1;
+        synchronized (mergeMonitor) {
+            while (task - nextToMerge >= maxOutstanding && !failed) {
+                try {
+                    mergeMonitor.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+        if (failed) throw new IllegalStateException("A task of the accumulation failed");
+        return task;
+    }
+
+
+    public void fail () {
+        // release workers waiting in nextTask after a task failed
+        synchronized (mergeMonitor) {
+            failed = true;
+            mergeMonitor.notifyAll();
+        }
+    }
+
+
+    public partialBuffer getBuffer () {
+        // return new buffer for one task, buffers must only be used by a single thread
+        return new partialBuffer(targets.length, targets[0].length);
+    }
+
+
+    public void complete (int task, partialBuffer buffer) {
+        // hand over buffer of task and merge all buffers that are ready in task order
+        if (!completed.compareAndSet(task, null, buffer))
+            throw new IllegalStateException("Task " + task + " was completed twice");
+        mergeReady();
+    }
+
+
+    public void finish () {
+        // check that all tasks were merged
+        mergeReady();
+        if (nextToMerge != completed.length())
+            throw new IllegalStateException("Only " + nextToMerge + " of " + completed.length() + " tasks were completed");
+    }
+
+
+    private void mergeReady () {
+        // merge completed buffers in task order. If another thread is merging, it picks up buffers completed meanwhile;
+        // the check after unlocking catches buffers that were completed just before the other thread released the lock
+        while (nextToMerge < completed.length() && completed.get(nextToMerge) != null) {
+            if (!mergeLock.tryLock()) return;
+            try {
+                while (nextToMerge < completed.length() && completed.get(nextToMerge) != null) {
+                    completed.getAndSet(nextToMerge, null).mergeInto(targets);
+                    nextToMerge++;
+                }
+            } finally {
+                mergeLock.unlock();
+            }
+            synchronized (mergeMonitor) {
+                mergeMonitor.notifyAll();
+            }
+        }
+    }
+
+
+    public static class partialBuffer {
+        // sparse rows of destination keys with one value per layer, stored in open-addressing tables
+        private static final int EMPTY = -1;
+        private final int layers;
+        private final int[][] keys;
+        private final double[][] values;   // values of slot s are at s * layers + layer
+        private final int[] count;
+        private final double[] sum;
+
+        private partialBuffer(int layers, int size) {
+            this.layers = layers;
+            keys = new int[size][];
+            values = new double[size][];
+            count = new int[size];
+            sum = new double[layers];
+        }
+
+        public void add(int layer, int orig, int dest, double value) {
+            // add value to cell orig/dest of layer
+            if (keys[orig] == null) {
+                keys[orig] = new int[8];
+                values[orig] = new double[8 * layers];
+                Arrays.fill(keys[orig], EMPTY);
+            }
+            int slot = findSlot(keys[orig], dest);
+            if (keys[orig][slot] != dest) {
+                keys[orig][slot] = dest;
+                if (++count[orig] * 2 > keys[orig].length) {
+                    grow(orig);
+                    slot = findSlot(keys[orig], dest);
+                }
+            }
+            values[orig][slot * layers + layer] += value;
+            sum[layer] += value;
+        }
+
+        public double getSum(int layer) {
+            return sum[layer];
+        }
+
+        private static int findSlot(int[] rowKeys, int dest) {
+            // return slot of dest, or of the empty slot where it would be inserted. The slot is taken from the highest
+            // log2(length) bits of a multiplicative hash, so that all bits of dest contribute
+            int mask = rowKeys.length - 1;
+            int slot = (dest * 0x9E3779B9) >>> Integer.numberOfLeadingZeros(mask);
+            while (rowKeys[slot] != EMPTY && rowKeys[slot] != dest) slot = (slot + 1) & mask;
+            return slot;
+        }
+
+        private void grow(int orig) {
+            int[] oldKeys = keys[orig];
+            double[] oldValues = values[orig];
+            keys[orig] = new int[2 * oldKeys.length];
+            values[orig] = new double[keys[orig].length * layers];
+            Arrays.fill(keys[orig], EMPTY);
+            for (int slot = 0; slot < oldKeys.length; slot++) {
+                if (oldKeys[slot] == EMPTY) continue;
+                int newSlot = findSlot(keys[orig], oldKeys[slot]);
+                keys[orig][newSlot] = oldKeys[slot];
+                System.arraycopy(oldValues, slot * layers, values[orig], newSlot * layers, layers);
+            }
+        }
+
+        private void mergeInto(double[][][] targets) {
+            // every cell of the targets receives exactly one addition per buffer
+            for (int orig = 0; orig < keys.length; orig++) {
+                int[] rowKeys = keys[orig];
+                if (rowKeys == null) continue;
+                for (int slot = 0; slot < rowKeys.length; slot++) {
+                    if (rowKeys[slot] == EMPTY) continue;
+                    for (int layer = 0; layer < layers; layer++)
+                        targets[layer][orig][rowKeys[slot]] += values[orig][slot * layers + layer];
+                }
+                keys[orig] = null;
+                values[orig] = null;
+            }
+        }
+    }
+}